@@ -24,6 +24,7 @@ import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 
 import javax.swing.text.SimpleAttributeSet;
@@ -31,7 +32,9 @@ import javax.swing.text.SimpleAttributeSet;
 import org.eml.MMAX2.annotation.scheme.MMAX2Attribute;
 import org.eml.MMAX2.api.MarkableAPI;
 import org.eml.MMAX2.core.MMAX2;
+import org.eml.MMAX2.discourse.MMAX2BasedataIndex;
 import org.eml.MMAX2.discourse.MMAX2DiscourseElement;
+import org.eml.MMAX2.discourse.MMAX2IntArrayBuilder;
 import org.eml.MMAX2.utils.MMAX2Constants;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -40,19 +43,34 @@ public final class Markable implements java.io.Serializable, MarkableAPI
 {       
     /** ID of this markable, copied from XML file. */
     private String ID = "";    
+    /** Ordinal number of this markable on its level, assigned by MarkableLevel when the markable is stored, or -1. Unlike the
+        ID, the ordinal is not persistent, but it is dense and stable while the level is loaded. */
+    private int ordinal = -1;
     String string = "";
-    /** Array of Arrays of IDs of consecutive Discourse Elements. */
-    private String[][] fragments;    
+    /** Fragments of this markable as pairs of (inclusive) start and (exclusive) end positions in the base data index 
+        (cf. MMAX2BasedataIndex), or -1 and -1 for a fragment that is not a range of consecutive base data elements, and which 
+        is held in explicitFragments instead. DE IDs are only created from this when requested, e.g. by getFragments(). */
+    private int[] fragmentRanges;
+    /** Fragments that are not ranges in the base data index, by fragment number, or null if all fragments are ranges. */
+    private String[][] explicitFragments;
+    /** Modification count of the base data index at the time fragmentRanges was last valid. */
+    private int fragmentIndexModificationCount;
     /** Number of single fragments this markable consists of, > 1 only for discont. Markables */
     int singleFragments;
-    /** Number of Discourse Elements this Markable is part of (calculated from this.fragments). */    
+    /** Number of Discourse Elements this Markable is part of (calculated from the fragments). */    
     int size;    
-    /** Attributes of this markable. After creation, this will include the _span_ attribute! */
+    /** Attributes of this markable, as codes by slot in the MarkableAttributeDictionary of level (0 if undefined). The array
+        is replaced rather than modified on changes, so that it can be shared with level snapshots (cf. MarkableLevelSnapshot). */
     // 1.15 Names are in canonical fom here !
-    HashMap<String, String> attributes;        
+    private int[] attributeCodes = new int[0];
+    /** Span of this markable as created by MarkableHelper.getSpan(), or null if it has to be created anew. */
+    private String span = null;
+    /** Modification count of the base data index at the time span was created. */
+    private int spanIndexModificationCount;
     
     private MarkableLevel level;    
-    private Node nodeRepresentation=null;
+    /** The element last returned by getNodeRepresentation(), or null. */
+    private transient CachedNode nodeRepresentation = null;
 
     private int[] leftHandlePositions;
     private int[] rightHandlePositions;
@@ -70,6 +88,22 @@ public final class Markable implements java.io.Serializable, MarkableAPI
     
     private boolean isInSearchResult = false;
     
+    /** A markable element together with the attribute codes and span it was created from. Since both are replaced rather 
+        than modified when this Markable changes, the element is current as long as they are identical to the current ones. */
+    private static final class CachedNode
+    {
+        final Element element;
+        final int[] attributeCodes;
+        final String span;
+        
+        CachedNode(Element _element, int[] _attributeCodes, String _span)
+        {
+            element = _element;
+            attributeCodes = _attributeCodes;
+            span = _span;
+        }
+    }
+    
     /** Creates new Markable. During initialization, this method is called during execution of 
         MarkableLevel.createMarkables(). 
      
@@ -79,36 +113,52 @@ public final class Markable implements java.io.Serializable, MarkableAPI
      */
     public Markable(Node _nodeRepresentation, String _ID, String[][] _fragments, HashMap<String, String> _attributes, MarkableLevel _level) 
     {
-        nodeRepresentation = _nodeRepresentation;
+        // _nodeRepresentation is not retained: its attributes are encoded, and getNodeRepresentation() creates a new element
         ID = _ID;
-        attributes = _attributes; 
-        fragments = _fragments;        
         level = _level;
-                
-        
+        setFragments(_fragments);
+        encodeAttributes(_attributes);
+        init();
+    }
+    
+    /** Creates new Markable from the fragment ranges, explicit fragments and attribute codes stored in a snapshot (cf. 
+        MarkableLevel.createMarkables(DataInputStream)). _ranges must refer to the current base data index, and _attributeCodes
+        to the MarkableAttributeDictionary of _level. */
+    Markable(String _ID, int[] _ranges, String[][] _explicitFragments, int[] _attributeCodes, MarkableLevel _level)
+    {
+        ID = _ID;
+        level = _level;
+        fragmentRanges = _ranges;
+        explicitFragments = _explicitFragments;
+        fragmentIndexModificationCount = level.getCurrentDiscourse().getBasedataIndex().getModificationCount();
+        attributeCodes = _attributeCodes;
+        init();
+    }
+    
+    /** Completes the construction of this Markable once its ID, fragments and attributes are set. */
+    private final void init()
+    {
         // Make level name accessible from style sheet via 'mmax_level' attribute.
-        if (attributes.containsKey("mmax_level")==false)
+        if (isDefined("mmax_level")==false)
         {
-            ((Element)nodeRepresentation).setAttribute("mmax_level",level.getMarkableLevelName());
-            attributes.put("mmax_level", level.getMarkableLevelName());
+            putAttributeValue("mmax_level", level.getMarkableLevelName());
         }
         else
         {
             // The current markable does have a mmax_level attribute
             // Check whether it matches the level name
-            if (((String)attributes.get("mmax_level")).equalsIgnoreCase(level.getMarkableLevelName())==false)
+            if (getAttributeValue("mmax_level").equalsIgnoreCase(level.getMarkableLevelName())==false)
             {
                 // The current markable has a mmax_level attribute, but is different than
                 // the level name
-                ((Element)nodeRepresentation).setAttribute("mmax_level",level.getMarkableLevelName());
-                attributes.put("mmax_level", level.getMarkableLevelName());               
+                putAttributeValue("mmax_level", level.getMarkableLevelName());               
                 level.setIsReadOnly(true);
                 System.err.println("Mismatch in mmax_level attribute: "+level.getMarkableLevelName());
             }
         }
         
         /** Set size attribute as number of single fragments. */
-        singleFragments = fragments.length;
+        singleFragments = fragmentRanges.length/2;
         
         /** Set discontinuity convenience field */
         if (singleFragments > 1) discontinuous = true;
@@ -132,10 +182,78 @@ public final class Markable implements java.io.Serializable, MarkableAPI
     /** This method is called on each markable after a change in the base data */
     public final void update(String[][] _fragments)
     {        
+        int[] oldRanges = getCurrentFragmentRanges();
+        String[][] oldExplicitFragments = explicitFragments;
         // Override existing fragments
-        fragments = _fragments;
+        setFragments(_fragments);
+        updateFragments();
+        // Most markables keep their span after a change in the base data, and need not be saved again
+        if (java.util.Arrays.equals(oldRanges, fragmentRanges) && java.util.Arrays.deepEquals(oldExplicitFragments, explicitFragments))
+        {
+            return;
+        }
+        span = null;
+        level.markableChanged(this);
+    }
+    
+    /** Replaces the fragments of this markable with ranges (pairs of start and end positions in the base data index). */
+    private final void update(int[] ranges)
+    {
+        boolean changed = explicitFragments != null || java.util.Arrays.equals(getCurrentFragmentRanges(), ranges)==false;
+        fragmentRanges = ranges;
+        explicitFragments = null;
+        fragmentIndexModificationCount = level.getCurrentDiscourse().getBasedataIndex().getModificationCount();
+        updateFragments();
+        if (changed)
+        {
+            span = null;
+            level.markableChanged(this);
+        }
+    }
+    
+    /** Stores _fragments as ranges in the base data index where possible. */
+    private final void setFragments(String[][] _fragments)
+    {
+        MMAX2BasedataIndex index = level.getCurrentDiscourse().getBasedataIndex();
+        int[] ranges = new int[_fragments.length*2];
+        String[][] explicit = null;
+        for (int f=0;f<_fragments.length;f++)
+        {
+            int start = index.getSliceStart(_fragments[f]);
+            if (start != -1)
+            {
+                ranges[f*2] = start;
+                ranges[f*2+1] = start+_fragments[f].length;
+            }
+            else
+            {
+                ranges[f*2] = -1;
+                ranges[f*2+1] = -1;
+                if (explicit == null) { explicit = new String[_fragments.length][]; }
+                explicit[f] = _fragments[f];
+            }
+        }
+        fragmentRanges = ranges;
+        explicitFragments = explicit;
+        fragmentIndexModificationCount = index.getModificationCount();
+    }
+    
+    /** Returns fragmentRanges, after adjusting it to changes in the base data index made since it was last valid. */
+    private final int[] getCurrentFragmentRanges()
+    {
+        MMAX2BasedataIndex index = level.getCurrentDiscourse().getBasedataIndex();
+        if (fragmentIndexModificationCount != index.getModificationCount())
+        {
+            index.adjustRanges(fragmentRanges, fragmentIndexModificationCount);
+            fragmentIndexModificationCount = index.getModificationCount();
+        }
+        return fragmentRanges;
+    }
+    
+    private final void updateFragments()
+    {
         /** Set size attribute as number of single fragments. */
-        singleFragments = fragments.length;
+        singleFragments = fragmentRanges.length/2;
                     
         /** Set discontinuity convenience field */
         if (singleFragments > 1) discontinuous = true;
@@ -177,14 +295,20 @@ public final class Markable implements java.io.Serializable, MarkableAPI
     public final String[] getDiscourseElementIDs()
     {
         // For discontinuous markables as well!!
+        String[][] fragments = getFragments();
+        if (fragments.length == 1)
+        {
+            return fragments[0];
+        }
         ArrayList<String> temp = new ArrayList<String>();
-        for (int z=0;z<singleFragments;z++)
+        HashSet<String> seen = new HashSet<String>();
+        for (int z=0;z<fragments.length;z++)
         {
             // Get currentFragment
             String[] currentFragment = fragments[z];
             for (int o=0;o<currentFragment.length;o++)
             {
-                if (temp.contains(currentFragment[o])==false)
+                if (seen.add(currentFragment[o]))
                 {
                     temp.add(currentFragment[o]);
                 }
@@ -199,6 +323,36 @@ public final class Markable implements java.io.Serializable, MarkableAPI
 //        String[] currentFragment = null;
         boolean result = false;
         
+        if (explicitFragments == null && level.getCurrentDiscourse().isInBasedataOrder())
+        {
+            // All fragments are ranges in the base data, so removees can be subtracted from them directly
+            MMAX2BasedataIndex index = level.getCurrentDiscourse().getBasedataIndex();
+            // Drop fragments that lost all their elements (this also copies the ranges)
+            int[] ranges = removeFromRanges(getCurrentFragmentRanges(), -1);
+            boolean removed = false;
+            for (int o=0;o<removees.length;o++)
+            {
+                int position = index.getPosition(removees[o]);
+                if (position != -1 && containsPosition(ranges, position))
+                {
+                    ranges = removeFromRanges(ranges, position);
+                    removed = true;
+                }
+            }
+            if (removed == false)
+            {
+                // Nothing to do, and nothing to save
+                return ranges.length != 0;
+            }
+            if (ranges.length != 0)
+            {
+                update(ranges);
+                result=true;
+            }
+            level.setIsDirty(true,false);
+            return result;
+        }
+        
         // getDiscourseElements is discont-ready!
         MMAX2DiscourseElement[] sequence = level.getCurrentDiscourse().getDiscourseElements(this);
         ArrayList<MMAX2DiscourseElement> DEsAsList = new ArrayList<MMAX2DiscourseElement>(java.util.Arrays.asList(sequence));        
@@ -272,6 +426,32 @@ public final class Markable implements java.io.Serializable, MarkableAPI
   */  
     public final boolean addDiscourseElements(String[] addees)
     {
+        if (explicitFragments == null && level.getCurrentDiscourse().isInBasedataOrder())
+        {
+            // All fragments are ranges in the base data, so addees can be merged into them directly
+            MMAX2BasedataIndex index = level.getCurrentDiscourse().getBasedataIndex();
+            int[] ranges = getCurrentFragmentRanges();
+            int[] merged = java.util.Arrays.copyOf(ranges, ranges.length+addees.length*2);
+            boolean allInBasedata = true;
+            for (int z=0;z<addees.length;z++)
+            {
+                int position = index.getPosition(addees[z]);
+                if (position == -1)
+                {
+                    allInBasedata = false;
+                    break;
+                }
+                merged[ranges.length+z*2] = position;
+                merged[ranges.length+z*2+1] = position+1;
+            }
+            if (allInBasedata)
+            {
+                update(mergeRanges(merged));
+                level.setIsDirty(true,false);
+                return true;
+            }
+        }
+        
         ArrayList<MMAX2DiscourseElement> addeesAsList = new ArrayList<MMAX2DiscourseElement>();
         // Get list of MMAX2DiscourseElement objects to be added
         for (int z=0;z<addees.length;z++)
@@ -334,6 +514,73 @@ public final class Markable implements java.io.Serializable, MarkableAPI
         return true;
     }
     
+    /** Returns true if some range in ranges contains position. */
+    private static final boolean containsPosition(int[] ranges, int position)
+    {
+        for (int r=0;r<ranges.length;r+=2)
+        {
+            if (position >= ranges[r] && position < ranges[r+1])
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /** Returns ranges without position, splitting the range that contains it, and without empty ranges. */
+    private static final int[] removeFromRanges(int[] ranges, int position)
+    {
+        MMAX2IntArrayBuilder result = new MMAX2IntArrayBuilder(ranges.length+2);
+        for (int r=0;r<ranges.length;r+=2)
+        {
+            int start = ranges[r];
+            int end = ranges[r+1];
+            if (position >= start && position < end)
+            {
+                if (start < position) { result.add(start); result.add(position); }
+                if (position+1 < end) { result.add(position+1); result.add(end); }
+            }
+            else if (start < end)
+            {
+                result.add(start);
+                result.add(end);
+            }
+        }
+        return result.toArray();
+    }
+    
+    /** Returns the union of ranges as a sorted list of non-adjacent ranges. */
+    private static final int[] mergeRanges(int[] ranges)
+    {
+        long[] sorted = new long[ranges.length/2];
+        for (int r=0;r<sorted.length;r++)
+        {
+            sorted[r] = ((long)ranges[r*2] << 32) | ranges[r*2+1];
+        }
+        java.util.Arrays.sort(sorted);
+        MMAX2IntArrayBuilder result = new MMAX2IntArrayBuilder(ranges.length);
+        int currentStart = -1;
+        int currentEnd = -1;
+        for (int r=0;r<sorted.length;r++)
+        {
+            int start = (int)(sorted[r] >>> 32);
+            int end = (int)sorted[r];
+            if (start >= end) continue;
+            if (currentStart != -1 && start <= currentEnd)
+            {
+                currentEnd = Math.max(currentEnd, end);
+            }
+            else
+            {
+                if (currentStart != -1) { result.add(currentStart); result.add(currentEnd); }
+                currentStart = start;
+                currentEnd = end;
+            }
+        }
+        if (currentStart != -1) { result.add(currentStart); result.add(currentEnd); }
+        return result.toArray();
+    }
+    
     public final void deleteMe()
     {
         level.deleteMarkable(this);
@@ -346,11 +593,12 @@ public final class Markable implements java.io.Serializable, MarkableAPI
     
     public final void destroyDependentComponents()
     {
-        attributes = null;
+        attributeCodes = null;
         discourseElementStartPositions = null;
         displayStartPositions = null;
         displayEndPositions = null;
-        fragments = null;
+        fragmentRanges = null;
+        explicitFragments = null;
         leftHandlePositions = null;
         rightHandlePositions = null;
         nodeRepresentation = null;
@@ -361,13 +609,72 @@ public final class Markable implements java.io.Serializable, MarkableAPI
 
     public final int getLeftmostDiscoursePosition()
     {
-        return level.getCurrentDiscourse().getDiscoursePositionFromDiscourseElementID(fragments[0][0]);
+        return level.getCurrentDiscourse().getDiscoursePositionFromDiscourseElementID(getBoundaryDiscourseElementID(true));
     }
 
     public final int getRightmostDiscoursePosition()
     {
-        String[] finalFrag = fragments[fragments.length-1];
-        return level.getCurrentDiscourse().getDiscoursePositionFromDiscourseElementID(finalFrag[finalFrag.length-1]);
+        return level.getCurrentDiscourse().getDiscoursePositionFromDiscourseElementID(getBoundaryDiscourseElementID(false));
+    }
+    
+    /** Returns the ID of the first DE of this markable, without creating its fragments. */
+    public final String getFirstDiscourseElementID()
+    {
+        return getBoundaryDiscourseElementID(true);
+    }
+    
+    /** Returns the ID of the last DE of this markable, without creating its fragments. */
+    public final String getLastDiscourseElementID()
+    {
+        return getBoundaryDiscourseElementID(false);
+    }
+    
+    /** Returns the position in the base data index of the first (if first is true) or last DE of this markable, or -1 if it has 
+        none or the DE is not in the index. */
+    final int getBoundaryBasedataPosition(boolean first)
+    {
+        int[] ranges = getCurrentFragmentRanges();
+        int count = ranges.length/2;
+        for (int z=0;z<count;z++)
+        {
+            int f = (first ? z : count-1-z);
+            int start = ranges[f*2];
+            int end = ranges[f*2+1];
+            if (start == -1)
+            {
+                String[] fragment = explicitFragments[f];
+                return level.getCurrentDiscourse().getBasedataIndex().getPosition(first ? fragment[0] : fragment[fragment.length-1]);
+            }
+            else if (start < end)
+            {
+                return (first ? start : end-1);
+            }
+        }
+        return -1;
+    }
+    
+    /** Returns the ID of the first (if first is true) or last DE of this markable. */
+    private final String getBoundaryDiscourseElementID(boolean first)
+    {
+        int[] ranges = getCurrentFragmentRanges();
+        MMAX2BasedataIndex index = level.getCurrentDiscourse().getBasedataIndex();
+        int count = ranges.length/2;
+        for (int z=0;z<count;z++)
+        {
+            int f = (first ? z : count-1-z);
+            int start = ranges[f*2];
+            int end = ranges[f*2+1];
+            if (start == -1)
+            {
+                String[] fragment = explicitFragments[f];
+                return (first ? fragment[0] : fragment[fragment.length-1]);
+            }
+            else if (start < end)
+            {
+                return index.getID(first ? start : end-1);
+            }
+        }
+        return null;
     }
     
     
@@ -476,9 +783,20 @@ public final class Markable implements java.io.Serializable, MarkableAPI
         return rightHandlePositions;
     }
     
+    /** Returns a markable element with the ID, span and attributes of this Markable, e.g. for style sheets. The element is 
+        not attached to any document, so changing it does not affect this Markable. It is created on first use, and created 
+        anew once an attribute or the span of this Markable has changed. */
     public final Node getNodeRepresentation()
     {
-        return this.nodeRepresentation; 
+        int[] codes = attributeCodes;
+        String currentSpan = getCachedSpan();
+        CachedNode cached = nodeRepresentation;
+        if (cached == null || cached.attributeCodes != codes || cached.span != currentSpan)
+        {
+            cached = new CachedNode(level.createMarkableElement(ID, currentSpan, codes), codes, currentSpan);
+            nodeRepresentation = cached;
+        }
+        return cached.element; 
     }
     
     final public String getID()
@@ -486,6 +804,18 @@ public final class Markable implements java.io.Serializable, MarkableAPI
         return this.ID;
     }
     
+    /** Returns the ordinal of this markable on its level (cf. MarkableLevel.getMarkableByOrdinal()), or -1 if it has not been 
+        stored on its level (yet). */
+    public final int getOrdinal()
+    {
+        return ordinal;
+    }
+    
+    final void setOrdinal(int _ordinal)
+    {
+        ordinal = _ordinal;
+    }
+    
     public final String getMarkableLevelName()
     {
         return this.level.getMarkableLevelName();
@@ -542,9 +872,87 @@ public final class Markable implements java.io.Serializable, MarkableAPI
         return result;
     }
 
+    /** Returns the fragments of this markable as arrays of DE IDs. These are created anew on each call. */
     public final String[][] getFragments()
     {
-        return fragments;
+        int[] ranges = getCurrentFragmentRanges();
+        MMAX2BasedataIndex index = level.getCurrentDiscourse().getBasedataIndex();
+        ArrayList<String[]> result = new ArrayList<String[]>(ranges.length/2);
+        for (int f=0;f<ranges.length/2;f++)
+        {
+            int start = ranges[f*2];
+            int end = ranges[f*2+1];
+            if (start == -1)
+            {
+                result.add(explicitFragments[f]);
+            }
+            else if (start < end)
+            {
+                // Fragments that lost all their elements are skipped 
+                result.add(index.getIDs(index.getID(start), start, end));
+            }
+        }
+        return result.toArray(new String[0][]);
+    }
+    
+    /** Returns the number of fragments of this markable, including fragments that lost all their elements. Together with
+        getFragmentSize() and getFragmentElementID(), this gives access to the DEs of this markable without creating 
+        the arrays of getFragments(). */
+    public final int getFragmentCount()
+    {
+        return getCurrentFragmentRanges().length/2;
+    }
+    
+    /** Returns the number of DEs in fragment number f (0 if it lost all its elements). */
+    public final int getFragmentSize(int f)
+    {
+        int[] ranges = getCurrentFragmentRanges();
+        if (ranges[f*2] == -1)
+        {
+            return explicitFragments[f].length;
+        }
+        return Math.max(0, ranges[f*2+1]-ranges[f*2]);
+    }
+    
+    /** Returns the ID of DE number z in fragment number f. */
+    public final String getFragmentElementID(int f, int z)
+    {
+        int[] ranges = getCurrentFragmentRanges();
+        if (ranges[f*2] == -1)
+        {
+            return explicitFragments[f][z];
+        }
+        return level.getCurrentDiscourse().getBasedataIndex().getID(ranges[f*2]+z);
+    }
+    
+    /** Returns the modification count of the base data index that the fragment ranges of this markable refer to. */
+    final int getFragmentIndexModificationCount()
+    {
+        return fragmentIndexModificationCount;
+    }
+    
+    /** Returns the fragments of this markable as ranges in the base data index (cf. fragmentRanges), e.g. for snapshots. The
+        array is shared and must not be modified. */
+    final int[] getSharedFragmentRanges()
+    {
+        return getCurrentFragmentRanges();
+    }
+    
+    /** Returns the fragments of this markable that are not ranges in the base data index (cf. explicitFragments), or null. */
+    final String[][] getExplicitFragments()
+    {
+        return explicitFragments;
+    }
+    
+    /** Returns a copy of the fragments of this markable as pairs of (inclusive) start and (exclusive) end positions in the 
+        base data index, or null if some fragment is not a range of consecutive base data elements. */
+    public final int[] getFragmentRanges()
+    {
+        if (explicitFragments != null)
+        {
+            return null;
+        }
+        return getCurrentFragmentRanges().clone();
     }
 
     public final boolean getIsInSearchResult()
@@ -659,24 +1067,135 @@ public final class Markable implements java.io.Serializable, MarkableAPI
     }
 
     
-    /** This method returns all of this Markable's attributes (except ID and SPAN, which are system-attributes) as a HashMap. */
+    /** This method returns all of this Markable's attributes (except ID and SPAN, which are system-attributes) as a HashMap. 
+        The HashMap is decoded anew on each call, so changes to it do not affect this Markable. */
     public final HashMap getAttributes()
     {
-        return this.attributes;
+        MarkableAttributeDictionary dictionary = level.getAttributeDictionary();
+        HashMap<String, String> result = new HashMap<String, String>();
+        for (int slot=0;slot<attributeCodes.length;slot++)
+        {
+            if (attributeCodes[slot] != 0)
+            {
+                result.put(dictionary.getName(slot), dictionary.decode(slot, attributeCodes[slot]));
+            }
+        }
+        return result;
     }
     
-    public final void setAttributes(HashMap newAttributes)
+    /** Replaces the attribute codes of this Markable with those of attributes. */
+    private final void encodeAttributes(HashMap attributes)
     {
-        this.attributes = null;
-        this.attributes = newAttributes;
-        String current = "";
-        Iterator allKeys = newAttributes.keySet().iterator();
+        MarkableAttributeDictionary dictionary = level.getAttributeDictionary();
+        int[] codes = new int[dictionary.size()];
+        Iterator allKeys = attributes.keySet().iterator();
         while(allKeys.hasNext())
         {
-            current = (String) allKeys.next();          
-            ((Element)nodeRepresentation).setAttribute(current,(String)newAttributes.get(current));
-        }             
-        ((Element)nodeRepresentation).setAttribute("mmax_level",this.level.getMarkableLevelName());
+            String name = (String) allKeys.next();
+            int slot = dictionary.getOrAddSlot(name);
+            if (slot >= codes.length)
+            {
+                codes = java.util.Arrays.copyOf(codes, dictionary.size());
+            }
+            codes[slot] = dictionary.encode(slot, (String) attributes.get(name));
+        }
+        int[] oldCodes = attributeCodes;
+        attributeCodes = codes;
+        boolean changed = false;
+        MarkableAttributeIndex index = level.getAttributeIndex();
+        for (int slot=0;slot<codes.length;slot++)
+        {
+            int oldCode = slot < oldCodes.length ? oldCodes[slot] : 0;
+            if (oldCode != codes[slot])
+            {
+                changed = true;
+                if (index != null) { index.update(this, slot, oldCode, codes[slot]); }
+            }
+        }
+        if (changed)
+        {
+            level.markableChanged(this);
+        }
+    }
+    
+    /** Sets the value of attributeName without marking the level as dirty. */
+    private final void putAttributeValue(String attributeName, String value)
+    {
+        MarkableAttributeDictionary dictionary = level.getAttributeDictionary();
+        int slot = dictionary.getOrAddSlot(attributeName);
+        int code = dictionary.encode(slot, value);
+        int oldCode = slot < attributeCodes.length ? attributeCodes[slot] : 0;
+        if (oldCode == code)
+        {
+            return;
+        }
+        int[] codes = java.util.Arrays.copyOf(attributeCodes, Math.max(attributeCodes.length, dictionary.size()));
+        codes[slot] = code;
+        attributeCodes = codes;
+        MarkableAttributeIndex index = level.getAttributeIndex();
+        if (index != null)
+        {
+            index.update(this, slot, oldCode, code);
+        }
+        level.markableChanged(this);
+    }
+    
+    /** Returns the code of this Markable's value for attributeName, or 0 if the attribute is not defined. */
+    private final int getAttributeCode(String attributeName)
+    {
+        int slot = level.getAttributeDictionary().getSlot(attributeName);
+        if (slot == -1 || slot >= attributeCodes.length) return 0;
+        return attributeCodes[slot];
+    }
+    
+    /** Returns the code of this Markable's value in slot of the level's attribute dictionary, or 0 if it is not defined. */
+    final int getAttributeCode(int slot)
+    {
+        if (slot >= attributeCodes.length) return 0;
+        return attributeCodes[slot];
+    }
+    
+    /** Returns the attribute codes of this Markable by slot. The array is never modified, and must not be modified by callers. */
+    final int[] getAttributeCodes()
+    {
+        return attributeCodes;
+    }
+    
+    /** Returns the span of this Markable as created by MarkableHelper.getSpan(), which is only created anew after its fragments
+        or the base data have changed. */
+    final String getCachedSpan()
+    {
+        int indexModificationCount = level.getCurrentDiscourse().getBasedataIndex().getModificationCount();
+        if (span == null || spanIndexModificationCount != indexModificationCount)
+        {
+            span = MarkableHelper.getSpan(this);
+            spanIndexModificationCount = indexModificationCount;
+        }
+        return span;
+    }
+    
+    /** Removes attributeName from the attributes of this Markable. */
+    public final void removeAttributeValue(String attributeName)
+    {
+        int slot = level.getAttributeDictionary().getSlot(attributeName);
+        if (slot != -1 && slot < attributeCodes.length)
+        {
+            int oldCode = attributeCodes[slot];
+            int[] codes = attributeCodes.clone();
+            codes[slot] = 0;
+            attributeCodes = codes;
+            MarkableAttributeIndex index = level.getAttributeIndex();
+            if (index != null)
+            {
+                index.update(this, slot, oldCode, 0);
+            }
+            level.markableChanged(this);
+        }
+    }
+    
+    public final void setAttributes(HashMap newAttributes)
+    {
+        encodeAttributes(newAttributes);
         // Removed on March 19, 2010: This caused all markable selections to make the annotation dirty
         // level.setIsDirty(true,false);
         // Dirtying the respective level will be handled by the calling method
@@ -716,9 +1235,10 @@ public final class Markable implements java.io.Serializable, MarkableAPI
     {
         String result = null;
         //attributeName = attributeName.toLowerCase();
-        if (this.attributes.containsKey(attributeName))
+        int slot = level.getAttributeDictionary().getSlot(attributeName);
+        if (slot != -1 && slot < attributeCodes.length && attributeCodes[slot] != 0)
         {
-            result = (String) this.attributes.get(attributeName);
+            result = level.getAttributeDictionary().decode(slot, attributeCodes[slot]);
         }
         return result;
     }
@@ -726,7 +1246,7 @@ public final class Markable implements java.io.Serializable, MarkableAPI
     public final String getAttributeValue(String name, String defaultIfUndefined)
     {
         //String result = (String) attributes.get(name.toLowerCase());
-        String result = (String) attributes.get(name);
+        String result = getAttributeValue(name);
         if (result == null) result = defaultIfUndefined;
         return result;
     }
@@ -738,16 +1258,18 @@ public final class Markable implements java.io.Serializable, MarkableAPI
         //attributes.put(attributeName.toLowerCase(), value.toLowerCase());
     	// For 1.15
         //attributes.put(attributeName.toLowerCase(), value);    	
-        attributes.put(attributeName, value);
+        putAttributeValue(attributeName, value);
         level.setIsDirty(true,false);
     }
     
+    /** Sets the value of attributeName in the node representation only. The value is lost when the node representation is 
+        created anew (cf. getNodeRepresentation()). */
     public final void setAttributeValueToNode(String attributeName, String value)
     {
         // Todo: Make sure that attribute really exists!!
         //nodeRepresentation.getAttributes().getNamedItem(attributeName).setNodeValue(value.toLowerCase());
     	// For 1.15
-    	nodeRepresentation.getAttributes().getNamedItem(attributeName).setNodeValue(value);
+    	getNodeRepresentation().getAttributes().getNamedItem(attributeName).setNodeValue(value);
     }
 
     // 1.15 Tentatively removed
@@ -761,11 +1283,11 @@ public final class Markable implements java.io.Serializable, MarkableAPI
     
     
     /** This method returns true if an attribute with name attributeName is defined for this Markable, i.e. if it 
-       has a non-null value in this.attributes, false otherwise. */
+       has a value in this.attributeCodes, false otherwise. */
     public final boolean isDefined(String attributeName)
     {
 //        attributeName = attributeName.toLowerCase();
-        return this.attributes.containsKey(attributeName);
+        return getAttributeCode(attributeName) != 0;
     }
 
     // 1.15 Tentatively removed    
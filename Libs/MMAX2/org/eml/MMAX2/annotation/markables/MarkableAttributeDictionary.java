@@ -0,0 +1,197 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.annotation.markables;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eml.MMAX2.annotation.scheme.MMAX2AnnotationScheme;
+import org.eml.MMAX2.annotation.scheme.MMAX2Attribute;
+
+/** Per-level dictionary for the attributes of Markables. Every attribute name is assigned a slot, in the order in which
+    attributes are defined in the annotation scheme, followed by names not in the scheme in the order in which they are first
+    seen. For every slot, each distinct value is assigned an int code > 0, so that a Markable only needs to store one int per
+    slot (0 meaning that the attribute is not defined), and each distinct name and value is held only once per level.
+    Codes are never reassigned, so codes stored in Markables remain valid. 
+    Reads do not lock: names and values are held in append-only arrays, which are replaced by larger copies when full and 
+    published through the volatile field table after each addition, and names and values are looked up in ConcurrentHashMaps.
+    Only adding a slot or a value locks the dictionary. */
+final class MarkableAttributeDictionary
+{
+    /** Immutable view of the names and values in the dictionary. Arrays are shared between successive tables, but only 
+        written beyond the counts of the table that was published before. */
+    private static final class Table
+    {
+        /** Attribute names by slot. */
+        final String[] names;
+        final int slotCount;
+        /** For every slot, values by code. Index 0 is null. */
+        final String[][] values;
+
+        Table(String[] _names, int _slotCount, String[][] _values)
+        {
+            names = _names;
+            slotCount = _slotCount;
+            values = _values;
+        }
+    }
+
+    /** Maps attribute names to their slot. */
+    private final ConcurrentHashMap<String, Integer> slotOfName = new ConcurrentHashMap<String, Integer>();
+    /** For every slot, maps values to their code. Replaced by a larger copy when a slot is added. */
+    private volatile ConcurrentHashMap<String, Integer>[] codeOfValue = newCodeMaps(8);
+    /** The current table, which is replaced after every addition. */
+    private volatile Table table = new Table(new String[8], 0, new String[8][]);
+    /** For every slot, the number of codes assigned so far (incl. 0). Only used by writers. */
+    private int[] valueCounts = new int[8];
+
+    MarkableAttributeDictionary(MMAX2AnnotationScheme scheme)
+    {
+        if (scheme != null)
+        {
+            ArrayList schemeAttributes = scheme.getAttributes();
+            for (int z=0;z<schemeAttributes.size();z++)
+            {
+                getOrAddSlot(((MMAX2Attribute) schemeAttributes.get(z)).getDisplayName());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentHashMap<String, Integer>[] newCodeMaps(int capacity)
+    {
+        return new ConcurrentHashMap[capacity];
+    }
+
+    /** Returns the number of slots, i.e. of distinct attribute names. */
+    final int size()
+    {
+        return table.slotCount;
+    }
+
+    /** Returns the slot of attribute name, or -1 if no markable on this level has had an attribute of this name. */
+    final int getSlot(String name)
+    {
+        Integer slot = slotOfName.get(name);
+        if (slot == null) return -1;
+        return slot.intValue();
+    }
+
+    final int getOrAddSlot(String name)
+    {
+        Integer slot = slotOfName.get(name);
+        if (slot != null)
+        {
+            return slot.intValue();
+        }
+        return addSlot(name);
+    }
+
+    private final synchronized int addSlot(String name)
+    {
+        Integer slot = slotOfName.get(name);
+        if (slot != null)
+        {
+            return slot.intValue();
+        }
+        Table current = table;
+        int newSlot = current.slotCount;
+        String[] names = current.names;
+        String[][] values = current.values;
+        ConcurrentHashMap<String, Integer>[] codes = codeOfValue;
+        if (newSlot == names.length)
+        {
+            names = java.util.Arrays.copyOf(names, newSlot*2);
+            values = java.util.Arrays.copyOf(values, newSlot*2);
+            codes = java.util.Arrays.copyOf(codes, newSlot*2);
+            valueCounts = java.util.Arrays.copyOf(valueCounts, newSlot*2);
+        }
+        names[newSlot] = name;
+        values[newSlot] = new String[4];
+        valueCounts[newSlot] = 1;
+        codes[newSlot] = new ConcurrentHashMap<String, Integer>();
+        codeOfValue = codes;
+        table = new Table(names, newSlot+1, values);
+        // Publish the slot only once its arrays are visible
+        slotOfName.put(name, Integer.valueOf(newSlot));
+        return newSlot;
+    }
+
+    final String getName(int slot)
+    {
+        return table.names[slot];
+    }
+
+    /** Returns the code of value in slot, assigning a new one if value has not been seen in this slot before. A null value
+        is encoded as 0, i.e. as undefined. */
+    final int encode(int slot, String value)
+    {
+        if (value == null) return 0;
+        Integer code = codeOfValue[slot].get(value);
+        if (code != null)
+        {
+            return code.intValue();
+        }
+        return addValue(slot, value);
+    }
+
+    private final synchronized int addValue(int slot, String value)
+    {
+        ConcurrentHashMap<String, Integer> codes = codeOfValue[slot];
+        Integer code = codes.get(value);
+        if (code != null)
+        {
+            return code.intValue();
+        }
+        Table current = table;
+        int newCode = valueCounts[slot];
+        String[] slotValues = current.values[slot];
+        // Readers of the current table may be using its slot array, so a larger copy of slotValues goes into a new one
+        String[][] values = current.values.clone();
+        if (newCode == slotValues.length)
+        {
+            slotValues = java.util.Arrays.copyOf(slotValues, newCode*2);
+        }
+        slotValues[newCode] = value;
+        values[slot] = slotValues;
+        valueCounts[slot] = newCode+1;
+        table = new Table(current.names, current.slotCount, values);
+        // Publish the code only once its value is visible
+        codes.put(value, Integer.valueOf(newCode));
+        return newCode;
+    }
+
+    /** Returns the number of codes assigned in slot so far, incl. 0. */
+    final synchronized int getCodeCount(int slot)
+    {
+        return valueCounts[slot];
+    }
+
+    /** Returns the code of value in slot, or 0 if value has not been seen in this slot. */
+    final int getCode(int slot, String value)
+    {
+        if (value == null) return 0;
+        Integer code = codeOfValue[slot].get(value);
+        if (code == null) return 0;
+        return code.intValue();
+    }
+
+    /** Returns the value with code in slot, or null if code is 0. */
+    final String decode(int slot, int code)
+    {
+        return table.values[slot][code];
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.annotation.markables;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import org.eml.MMAX2.annotation.query.MMAX2MatchingCriterion;
+
+/** Inverted index from attribute values to the Markables on one MarkableLevel that have them. Postings are bit sets over the
+    ordinals of the markables on the level (cf. Markable.getOrdinal()), so that the results for several criteria can be
+    combined by bitwise operations. Postings are built per attribute on the first query for it, and are kept up to date by
+    Markable and MarkableLevel afterwards. Postings are keyed by the value codes of the level's MarkableAttributeDictionary, with
+    code 0 collecting the markables for which the attribute is undefined. Since all markables in one posting have the same
+    value, a criterion is evaluated only once per distinct value. */
+final class MarkableAttributeIndex
+{
+    private final MarkableLevel level;
+    private final MarkableAttributeDictionary dictionary;
+    /** Ordinals of the markables currently on the level. */
+    private final BitSet live = new BitSet();
+    /** By slot, null if not built yet, or else by value code the ordinals of the markables with this value. */
+    private final ArrayList<ArrayList<BitSet>> postings = new ArrayList<ArrayList<BitSet>>();
+    /** Incremented whenever a markable is added, removed, or changes an attribute value. */
+    private int modificationCount = 0;
+
+    /** Creates an index over the markables currently stored on _level. */
+    MarkableAttributeIndex(MarkableLevel _level, MarkableAttributeDictionary _dictionary)
+    {
+        level = _level;
+        dictionary = _dictionary;
+        int ordinalCount = level.getOrdinalCount();
+        for (int ordinal=0;ordinal<ordinalCount;ordinal++)
+        {
+            if (level.getMarkableByOrdinal(ordinal) != null) live.set(ordinal);
+        }
+    }
+
+    /** Returns the postings for slot, building them if required. */
+    private final ArrayList<BitSet> getPostings(int slot)
+    {
+        while (postings.size() <= slot)
+        {
+            postings.add(null);
+        }
+        ArrayList<BitSet> slotPostings = postings.get(slot);
+        if (slotPostings == null)
+        {
+            slotPostings = new ArrayList<BitSet>();
+            postings.set(slot, slotPostings);
+            for (int ordinal=live.nextSetBit(0);ordinal>=0;ordinal=live.nextSetBit(ordinal+1))
+            {
+                getPosting(slotPostings, level.getMarkableByOrdinal(ordinal).getAttributeCode(slot)).set(ordinal);
+            }
+        }
+        return slotPostings;
+    }
+
+    private static final BitSet getPosting(ArrayList<BitSet> slotPostings, int code)
+    {
+        while (slotPostings.size() <= code)
+        {
+            slotPostings.add(new BitSet());
+        }
+        return slotPostings.get(code);
+    }
+
+    final synchronized int getModificationCount()
+    {
+        return modificationCount;
+    }
+
+    /** Returns the ordinal of markable, or -1 if markable is not indexed. */
+    final synchronized int getOrdinal(Markable markable)
+    {
+        int ordinal = markable.getOrdinal();
+        if (ordinal == -1 || live.get(ordinal)==false || level.getMarkableByOrdinal(ordinal) != markable) return -1;
+        return ordinal;
+    }
+
+    /** Returns the ordinals of the markables that match criterion on attribute attributeName. If matchAll is true,
+        MarkableHelper.matchesAll() is used, and MarkableHelper.matchesAny() otherwise. The result may be modified. */
+    final synchronized BitSet getMatchingOrdinals(String attributeName, MMAX2MatchingCriterion criterion, boolean matchAll)
+    {
+        BitSet result = new BitSet();
+        int slot = dictionary.getSlot(attributeName);
+        if (slot == -1)
+        {
+            // No markable has ever had this attribute, so they are all alike
+            int first = live.nextSetBit(0);
+            if (first != -1 && matches(level.getMarkableByOrdinal(first), criterion, matchAll))
+            {
+                result.or(live);
+            }
+            return result;
+        }
+        ArrayList<BitSet> slotPostings = getPostings(slot);
+        for (int code=0;code<slotPostings.size();code++)
+        {
+            BitSet posting = slotPostings.get(code);
+            int first = posting.nextSetBit(0);
+            if (first != -1 && matches(level.getMarkableByOrdinal(first), criterion, matchAll))
+            {
+                result.or(posting);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the markables with the ordinals in ordinals, in the order of their ordinals. */
+    final synchronized ArrayList getMarkables(BitSet ordinals)
+    {
+        ArrayList result = new ArrayList(ordinals.cardinality());
+        for (int ordinal=ordinals.nextSetBit(0);ordinal>=0;ordinal=ordinals.nextSetBit(ordinal+1))
+        {
+            Markable markable = level.getMarkableByOrdinal(ordinal);
+            if (markable != null) result.add(markable);
+        }
+        return result;
+    }
+
+    private static final boolean matches(Markable markable, MMAX2MatchingCriterion criterion, boolean matchAll)
+    {
+        if (matchAll) return MarkableHelper.matchesAll(markable, criterion);
+        return MarkableHelper.matchesAny(markable, criterion);
+    }
+
+    /** Adds markable, which has just been stored on the level, to the postings of all built slots. */
+    final synchronized void add(Markable markable)
+    {
+        int ordinal = markable.getOrdinal();
+        if (ordinal == -1 || live.get(ordinal)) return;
+        live.set(ordinal);
+        for (int slot=0;slot<postings.size();slot++)
+        {
+            ArrayList<BitSet> slotPostings = postings.get(slot);
+            if (slotPostings != null)
+            {
+                getPosting(slotPostings, markable.getAttributeCode(slot)).set(ordinal);
+            }
+        }
+        modificationCount++;
+    }
+
+    /** Removes markable, which has just been deleted from the level, from the postings of all built slots. */
+    final synchronized void remove(Markable markable)
+    {
+        int ordinal = markable.getOrdinal();
+        if (ordinal == -1 || live.get(ordinal)==false) return;
+        for (int slot=0;slot<postings.size();slot++)
+        {
+            ArrayList<BitSet> slotPostings = postings.get(slot);
+            if (slotPostings != null)
+            {
+                getPosting(slotPostings, markable.getAttributeCode(slot)).clear(ordinal);
+            }
+        }
+        live.clear(ordinal);
+        modificationCount++;
+    }
+
+    /** Moves markable from the posting for oldCode to that for newCode in slot. Markables that are not indexed (because they
+        have not been stored on the level yet) are ignored. */
+    final synchronized void update(Markable markable, int slot, int oldCode, int newCode)
+    {
+        int ordinal = markable.getOrdinal();
+        if (oldCode == newCode || ordinal == -1 || live.get(ordinal)==false)
+        {
+            return;
+        }
+        // Counted even for slots without postings, since results for undefined attributes may change
+        modificationCount++;
+        if (slot >= postings.size() || postings.get(slot) == null)
+        {
+            return;
+        }
+        ArrayList<BitSet> slotPostings = postings.get(slot);
+        getPosting(slotPostings, oldCode).clear(ordinal);
+        getPosting(slotPostings, newCode).set(ordinal);
+    }
+}
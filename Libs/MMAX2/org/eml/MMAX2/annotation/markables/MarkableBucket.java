@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.annotation.markables;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/** Growable collection of the Markables that a MarkableLevel associates with one discourse element. Markables are
+    appended in amortised constant time, and kept in the order in which they were added. Retrieval methods return read-only 
+    views, which are created once after each modification (one in insertion order, and one per comparator for sorted 
+    retrievals) and then shared by all callers, so that repeated retrievals neither sort nor allocate, even if callers 
+    alternate between comparators. A view is replaced rather than modified when the bucket changes, so callers holding an 
+    older view are not affected. */
+final class MarkableBucket
+{
+    /** Shared empty view. */
+    static final Markable[] EMPTY = new Markable[0];
+    /** Maximum number of sorted views kept, since callers of MarkableLevel.getMarkablesAtDiscourseElementID() may pass a new 
+        comparator on every call. */
+    private static final int MAX_SORTED_VIEWS = 4;
+    private Markable[] markables = new Markable[2];
+    private int size = 0;
+    /** Copy of markables in insertion order, or null if it has to be recreated. */
+    private Markable[] view = null;
+    /** The comparators for which sorted views exist, in the first sortedViewCount entries, or null. */
+    private Comparator[] sortedViewComparators = null;
+    /** Copies of markables sorted by the comparator at the same index in sortedViewComparators, or null. */
+    private Markable[][] sortedViews = null;
+    private int sortedViewCount = 0;
+
+    MarkableBucket()
+    {
+
+    }
+
+    final void add(Markable markable)
+    {
+        if (size == markables.length)
+        {
+            markables = Arrays.copyOf(markables, size*2);
+        }
+        markables[size++] = markable;
+        discardViews();
+    }
+
+    /** Removes markable (identity comparison), retaining the order of the remaining ones. Returns false if markable was not found. */
+    final boolean remove(Markable markable)
+    {
+        for (int u=0;u<size;u++)
+        {
+            if (markables[u]==markable)
+            {
+                System.arraycopy(markables, u+1, markables, u, size-u-1);
+                markables[--size] = null;
+                discardViews();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    final int size()
+    {
+        return size;
+    }
+
+    /** Returns the markables in the order in which they were added. The result must not be modified. */
+    final Markable[] getView()
+    {
+        if (view == null)
+        {
+            view = (size == 0 ? EMPTY : Arrays.copyOf(markables, size));
+        }
+        return view;
+    }
+
+    /** Returns the markables sorted by comp (or in insertion order if comp is null), sorting them only if there is no view for
+        comp since the last modification. The result must not be modified. */
+    @SuppressWarnings("unchecked")
+    final Markable[] getSortedView(Comparator comp)
+    {
+        if (comp == null || size == 0)
+        {
+            return getView();
+        }
+        for (int z=0;z<sortedViewCount;z++)
+        {
+            if (sortedViewComparators[z] == comp)
+            {
+                return sortedViews[z];
+            }
+        }
+        Markable[] result = Arrays.copyOf(markables, size);
+        Arrays.sort(result, comp);
+        if (sortedViewCount == MAX_SORTED_VIEWS)
+        {
+            return result;
+        }
+        if (sortedViews == null)
+        {
+            // Usually, only one or two comparators are used
+            sortedViewComparators = new Comparator[2];
+            sortedViews = new Markable[2][];
+        }
+        else if (sortedViewCount == sortedViews.length)
+        {
+            sortedViewComparators = Arrays.copyOf(sortedViewComparators, MAX_SORTED_VIEWS);
+            sortedViews = Arrays.copyOf(sortedViews, MAX_SORTED_VIEWS);
+        }
+        sortedViewComparators[sortedViewCount] = comp;
+        sortedViews[sortedViewCount++] = result;
+        return result;
+    }
+
+    /** Discards all views after a modification. */
+    private final void discardViews()
+    {
+        view = null;
+        sortedViewComparators = null;
+        sortedViews = null;
+        sortedViewCount = 0;
+    }
+}
@@ -23,6 +23,7 @@ import java.awt.Rectangle;
 import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
@@ -48,7 +49,6 @@ import org.eml.MMAX2.gui.windows.MMAX2AttributePanelContainer;
 import org.eml.MMAX2.gui.windows.MMAX2QueryWindow;
 import org.eml.MMAX2.gui.windows.MarkableLevelControlWindow;
 import org.eml.MMAX2.utils.MMAX2Constants;
-import org.w3c.dom.Element;
 
 public class MarkableChart 
 {
@@ -79,6 +79,44 @@ public class MarkableChart
     private int dotsDiscoursePosition=0;
     private int marksDiscoursePosition=0;
     
+    /** Maps own level names and target level names, as passed in by the style sheet predicates inMarkableFromLevel() etc., to 
+        the LevelPairs they denote, so that neither level need be looked up by name for every query. Concurrent, since style 
+        sheets may be applied on another thread than the one adding or removing levels. */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LevelPair>> levelPairs = new ConcurrentHashMap<String, ConcurrentHashMap<String, LevelPair>>();
+    /** The markable most recently returned by getQueriedMarkable(), or null. */
+    private volatile QueriedMarkable lastQueriedMarkable = null;
+    
+    /** The own level of a style sheet containment predicate, together with the MarkableContainmentTable of its target level, or
+        null if the target level is the base data level or does not exist. */
+    private static final class LevelPair
+    {
+        final MarkableLevel ownLevel;
+        final MarkableContainmentTable table;
+        
+        LevelPair(MarkableLevel _ownLevel, MarkableContainmentTable _table)
+        {
+            ownLevel = _ownLevel;
+            table = _table;
+        }
+    }
+    
+    /** A markable together with the ID and level name it was queried with, and the deletion count of its level at that time. */
+    private static final class QueriedMarkable
+    {
+        final String markableID;
+        final String ownLevelName;
+        final Markable markable;
+        final int deletionCount;
+        
+        QueriedMarkable(String _markableID, String _ownLevelName, Markable _markable, int _deletionCount)
+        {
+            markableID = _markableID;
+            ownLevelName = _ownLevelName;
+            markable = _markable;
+            deletionCount = _deletionCount;
+        }
+    }
+    
     /** Creates new MarkableChart */
     public MarkableChart(MMAX2Discourse _discourse)
     {
@@ -628,6 +666,8 @@ public class MarkableChart
         /** Put also in hash so layers are retrieveable by level name */
         // Leave as lc when used as hash key
         levels.put(new String(level.getMarkableLevelName().toLowerCase()),level);      
+        levelPairs.clear();
+        lastQueriedMarkable = null;
         
         /** Create control in layerControlPanel */
         currentLevelControlPanel.addLevel(level);            
@@ -647,6 +687,8 @@ public class MarkableChart
     
     public final MarkableLevel removeMarkableLevel(MarkableLevel level)
     {
+        levelPairs.clear();
+        lastQueriedMarkable = null;
         return (MarkableLevel)(levels.remove(level.getMarkableLevelName().toLowerCase()));
     }
         
@@ -748,7 +790,7 @@ public class MarkableChart
             {
                 // Get all Markables from the current layer that de_id is part of (efficient, since hashed)
                 // Why sort here?
-                activeMarkables = currentLevel.getAllMarkablesAtDiscourseElement(de_id, true);            
+                activeMarkables = currentLevel.getMarkablesAtDiscourseElementView(de_id, true);            
                 if (activeMarkables != null)
                 {
                     // If some Markables were found, iterate over them
@@ -858,7 +900,7 @@ public class MarkableChart
         {
             MarkableLevel level = (MarkableLevel) orderedLevels[z];
             // Get array of all markables ending at discourseElementId
-            tempResult = level.getAllMarkablesStartedByDiscourseElement(deID);
+            tempResult = level.getMarkablesStartedByDiscourseElementView(deID);
             if (tempResult != null)
             {
                 int len = tempResult.length;
@@ -883,7 +925,7 @@ public class MarkableChart
         {
             MarkableLevel level = (MarkableLevel) orderedLevels[z];
             // Get array of all markables ending at discourseElementId
-            tempResult = level.getAllMarkablesEndedByDiscourseElement(deID);
+            tempResult = level.getMarkablesEndedByDiscourseElementView(deID);
             if (tempResult != null)
             {
                 int len = tempResult.length;
@@ -1477,8 +1519,6 @@ public class MarkableChart
         String constitutingAttributeName = pointer.getMarkableRelation().getAttributeName();
         // Remove set_x value from markable
         currentSource.setAttributeValue(constitutingAttributeName,pointer.getTargetSpan());
-        // ... and Element
-        ((Element)currentSource.getNodeRepresentation()).setAttribute(constitutingAttributeName,pointer.getTargetSpan());
         
         // Make attributewindow reflect the changes in the attributes
         if (currentSource == currentDiscourse.getMMAX2().getCurrentPrimaryMarkable() && refreshAttributeWindow)
@@ -1537,9 +1577,6 @@ public class MarkableChart
         // Remove set_x value from markable
         //removee.removeAttribute(constitutingAttribute);
         removee.setAttributeValue(constitutingAttribute, MMAX2.defaultRelationValue);
-        // ... and Element, _before_ rerendering !!
-        //((Element)removee.getNodeRepresentation()).removeAttribute(constitutingAttribute);
-        ((Element)removee.getNodeRepresentation()).setAttribute(constitutingAttribute,MMAX2.defaultRelationValue);
         // Remove set-dependent highlighting from markable just removed.
         removee.renderMe(MMAX2Constants.RENDER_UNSELECTED);
 
@@ -1556,8 +1593,6 @@ public class MarkableChart
             set=null;                 
             // Remove set_x value from markable
             last.setAttributeValue(constitutingAttribute,MMAX2.defaultRelationValue);
-            // ... and Element
-            ((Element)last.getNodeRepresentation()).setAttribute(constitutingAttribute,MMAX2.defaultRelationValue);            
             // Remove set-dependent highlighting from last markable in set. This may remove _underlying_ highlighting as well!
             // Replace with standard unselection highlighting
             last.renderMe(MMAX2Constants.RENDER_UNSELECTED);            
@@ -1594,9 +1629,8 @@ public class MarkableChart
         String newSetID = getNextFreeMarkableSetID();
         // Get current primary markable
         Markable currentPrimary = currentDiscourse.getMMAX2().getCurrentPrimaryMarkable();
-        // Set attributes to markable and xml element 
+        // Set attributes to markable 
         currentPrimary.setAttributeValue(constitutingAttribute,newSetID);
-        ((Element)currentPrimary.getNodeRepresentation()).setAttribute(constitutingAttribute,newSetID);        
         
         // Create new set
         MarkableSet newSet = oldSet.getMarkableRelation().addMarkableWithAttributeValueToMarkableSet(currentPrimary,newSetID);
@@ -1653,8 +1687,6 @@ public class MarkableChart
         
         // Set value of this to (list of) id(s) of satellite markable(s) in MarkablePointer
         source.setAttributeValue(constitutingAttribute,pointer.getTargetSpan());
-        // ... and in element
-        ((Element)source.getNodeRepresentation()).setAttribute(constitutingAttribute,pointer.getTargetSpan());
 
         currentDiscourse.getMMAX2().setRedrawAllOnNextRefresh(true);
         source.renderMe(MMAX2Constants.RENDER_SELECTED);
@@ -1684,8 +1716,6 @@ public class MarkableChart
         
         // Set value of this to (list of) id(s) of satellite markable(s) in MarkablePointer
         source.setAttributeValue(constitutingAttribute,pointer.getTargetSpan());
-        // ... and in element
-        ((Element)source.getNodeRepresentation()).setAttribute(constitutingAttribute,pointer.getTargetSpan());        
         pointer.updateLinePoints();
         
         currentDiscourse.getMMAX2().setRedrawAllOnNextRefresh(true);
@@ -1711,7 +1741,6 @@ public class MarkableChart
         
         // Make addee member of set in terms of attributes
         addee.setAttributeValue(constitutingAttribute,set.getAttributeValue());
-        ((Element)addee.getNodeRepresentation()).setAttribute(constitutingAttribute,set.getAttributeValue());
         // Re-render after attribute change, to enforce customizazion-dependent attribute changes
         if (setRendered)
         {
@@ -1749,14 +1778,12 @@ public class MarkableChart
         
         // Set id of new set to current primary markable
         currentPrimary.setAttributeValue(relation.getAttributeName(),newSetID);
-        ((Element)currentPrimary.getNodeRepresentation()).setAttribute(relation.getAttributeName(),newSetID);
         // Make attributewindow reflect the changes in the attributes
         attributePanelContainer.displayMarkableAttributes(currentPrimary);
         
         // Add addee to newly created set for primaryMarkable
         relation.addMarkableWithAttributeValueToMarkableSet(addee,newSetID);        
         addee.setAttributeValue(relation.getAttributeName(),newSetID);
-        ((Element)addee.getNodeRepresentation()).setAttribute(relation.getAttributeName(),newSetID);
         addee.renderMe(MMAX2Constants.RENDER_IN_SET);        
         
         // Enforce customization-dependent attribs that may have become valid as a result of the set operation
@@ -1825,52 +1852,103 @@ public class MarkableChart
      
     public final boolean inMarkableFromLevel(String DE_ID, String targetLevelName)
     {
-        boolean result = false;
-        // Get all markables at this position
-        Markable[] allMarkables = getMarkableLevelByName(targetLevelName,true).getAllMarkablesAtDiscourseElement(DE_ID, false);
-        if (allMarkables.length >0)
+        // Only existence matters, so avoid copying the markables at this position
+        return getMarkableLevelByName(targetLevelName,true).hasMarkableAt(DE_ID);
+    }    
+    
+    /** Returns the LevelPair for the levels with names ownLevelName and targetLevelName, creating it if required. */
+    private final LevelPair getLevelPair(String ownLevelName, String targetLevelName)
+    {
+        ConcurrentHashMap<String, LevelPair> pairs = levelPairs.get(ownLevelName);
+        LevelPair pair = (pairs != null ? pairs.get(targetLevelName) : null);
+        if (pair != null)
         {
-            result = true;
+            return pair;
         }
-        return result;
-    }    
+        MarkableLevel ownLevel = getMarkableLevelByName(ownLevelName,true);
+        MarkableContainmentTable table = null;
+        // Basedata level objects are created anew on every call, so they cannot be tracked for changes
+        if (targetLevelName.equalsIgnoreCase("basedata")==false)
+        {
+            MarkableLevel targetLevel = levels.get(targetLevelName.toLowerCase());
+            if (targetLevel != null)
+            {
+                table = targetLevel.getContainmentTable();
+            }
+        }
+        pair = new LevelPair(ownLevel, table);
+        if (ownLevel == null || ownLevelName.equalsIgnoreCase("basedata"))
+        {
+            return pair;
+        }
+        if (pairs == null)
+        {
+            pairs = new ConcurrentHashMap<String, LevelPair>();
+            ConcurrentHashMap<String, LevelPair> existing = levelPairs.putIfAbsent(ownLevelName, pairs);
+            if (existing != null) pairs = existing;
+        }
+        pairs.put(targetLevelName, pair);
+        return pair;
+    }
+    
+    /** Returns the markable with ID markableID on ownLevel, which has the name ownLevelName. The style sheet usually queries 
+        several predicates for the same markable in a row, so the markable found last is remembered and returned again without 
+        a lookup, unless a markable has been deleted from its level since. */
+    private final Markable getQueriedMarkable(String markableID, String ownLevelName, MarkableLevel ownLevel)
+    {
+        QueriedMarkable last = lastQueriedMarkable;
+        if (last != null && last.markableID.equals(markableID) && last.ownLevelName.equals(ownLevelName) && 
+            last.deletionCount == last.markable.getMarkableLevel().getDeletionCount())
+        {
+            return last.markable;
+        }
+        // Read the count first, so that a deletion during the lookup invalidates the entry
+        int deletionCount = ownLevel.getDeletionCount();
+        Markable markable = ownLevel.getMarkableByID(markableID);
+        if (markable != null)
+        {
+            lastQueriedMarkable = new QueriedMarkable(markableID, ownLevelName, markable, deletionCount);
+        }
+        return markable;
+    }
     
     public final boolean inMarkableFromLevel(String markableID, String ownLevelName, String targetLevelName)
     {
-        boolean result = false;
+        LevelPair pair = getLevelPair(ownLevelName, targetLevelName);
         // Get markable that is required to be in some other markable
-        Markable currentMarkable = getMarkableLevelByName(ownLevelName,true).getMarkableByID(markableID);
-        // Get initial de of that
-        String initial = currentMarkable.getFragments()[0][0];
-        // Get all markables at this position
-        Markable[] allMarkables = getMarkableLevelByName(targetLevelName,true).getAllMarkablesAtDiscourseElement(initial, false);
-        // Iterate over allMarkables (only one has to be found to break)
-        for (int b=0;b<allMarkables.length;b++)
+        Markable currentMarkable = getQueriedMarkable(markableID, ownLevelName, pair.ownLevel);
+        if (pair.table != null)
         {
-            if (allMarkables[b].getSize() >=currentMarkable.getSize())
-            {
-                result = true;
-                break;
-            }
+            return pair.table.isInTarget(currentMarkable);
         }
-        return result;
+        // Get initial de of that
+        String initial = currentMarkable.getFirstDiscourseElementID();
+        return MarkableContainmentTable.isInMarkableFromLevel(currentMarkable, initial, getMarkableLevelByName(targetLevelName,true));
     }
         
     public final boolean startsMarkableFromLevel(String markableID, String ownLevelName, String targetLevelName)
     {
         // NEW: 23. February 2005
-        Markable currentMarkable = getMarkableLevelByName(ownLevelName,true).getMarkableByID(markableID);
-        String initial = currentMarkable.getFragments()[0][0];
+        LevelPair pair = getLevelPair(ownLevelName, targetLevelName);
+        Markable currentMarkable = getQueriedMarkable(markableID, ownLevelName, pair.ownLevel);
+        if (pair.table != null)
+        {
+            return pair.table.startsTarget(currentMarkable);
+        }
+        String initial = currentMarkable.getFirstDiscourseElementID();
         return getMarkableLevelByName(targetLevelName,true).hasMarkableStartingAt(initial);
     }
 
     public final boolean finishesMarkableFromLevel(String markableID, String ownLevelName, String targetLevelName)
     {
         // NEW: 23. February 2005
-        Markable currentMarkable = getMarkableLevelByName(ownLevelName,true).getMarkableByID(markableID);
-        String[][] fragments = currentMarkable.getFragments();
-        String[] finalFragment = fragments[fragments.length-1];
-        String currentMarkablesEnd = finalFragment[finalFragment.length-1];
+        LevelPair pair = getLevelPair(ownLevelName, targetLevelName);
+        Markable currentMarkable = getQueriedMarkable(markableID, ownLevelName, pair.ownLevel);
+        if (pair.table != null)
+        {
+            return pair.table.finishesTarget(currentMarkable);
+        }
+        String currentMarkablesEnd = currentMarkable.getLastDiscourseElementID();
         return getMarkableLevelByName(targetLevelName,true).hasMarkableEndingAt(currentMarkablesEnd);
     }
     
@@ -1893,6 +1971,18 @@ public class MarkableChart
         return this.orderedLevels;
     }
     
+    /** Returns the smallest base data index modification count that the fragment ranges of a markable on any level refer 
+        to, or current if there is none. */
+    public final int getOldestBasedataModificationCount(int current)
+    {
+        int result = current;
+        for (int z=0;z<this.size;z++)
+        {
+            result = Math.min(result, ((MarkableLevel) orderedLevels[z]).getOldestBasedataModificationCount(current));
+        }
+        return result;
+    }
+    
     public final MarkableLevel[] getLevels()
     {
         return getMarkableLevels();
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.annotation.markables;
+
+import java.util.BitSet;
+import java.util.Iterator;
+
+import org.eml.MMAX2.discourse.MMAX2BasedataIndex;
+
+/** Precomputed answers to the style sheet predicates MarkableChart.inMarkableFromLevel(), startsMarkableFromLevel() and
+    finishesMarkableFromLevel() with respect to one level (the target level), by base data position (cf. MMAX2BasedataIndex).
+    For every position, the table holds whether a markable on the target level starts or ends there (as BitSets), and the size
+    of the longest markable on the target level at it. These only depend on the target level, so one table (owned by the 
+    target level, cf. MarkableLevel.getContainmentTable()) serves the queries for all level pairs with this target level. All
+    columns are computed at once when the table is first used, and again after the base data has changed. When a markable on
+    the target level is registered at or unregistered from a DE, only the entries for that DE are recomputed (cf. update()).
+    Queries come from the thread running the style sheet, and do not lock: columns are replaced as a whole through a volatile
+    field, and updates only ever change the entries of the affected DE, with BitSets allocated to their full size up front. */
+final class MarkableContainmentTable
+{
+    private final MarkableLevel targetLevel;
+    /** The current columns, or null if they have to be (re)computed. */
+    private volatile Columns columns = null;
+
+    /** The entries of the table for all base data positions, for one modification count of the base data index. */
+    private static final class Columns
+    {
+        /** Modification count of the base data index that the positions refer to. */
+        private final int indexModificationCount;
+        /** Positions at which a markable on the target level starts. */
+        private final BitSet startsAt;
+        /** Positions at which a markable on the target level ends. */
+        private final BitSet endsAt;
+        /** Per position, the size of the longest markable on the target level at it, or 0. */
+        private final int[] longestAt;
+
+        private Columns(int _indexModificationCount, int size)
+        {
+            indexModificationCount = _indexModificationCount;
+            startsAt = new BitSet(size);
+            endsAt = new BitSet(size);
+            longestAt = new int[size];
+        }
+    }
+
+    MarkableContainmentTable(MarkableLevel _targetLevel)
+    {
+        targetLevel = _targetLevel;
+    }
+
+    /** Returns true if some markable on the target level at the first DE of markable is not shorter than markable. */
+    final boolean isInTarget(Markable markable)
+    {
+        Columns current = getColumns();
+        int position = markable.getBoundaryBasedataPosition(true);
+        if (position == -1)
+        {
+            return isInMarkableFromLevel(markable, markable.getFirstDiscourseElementID(), targetLevel);
+        }
+        return current.longestAt[position] >= markable.getSize();
+    }
+
+    /** Returns true if some markable on the target level starts at the first DE of markable. */
+    final boolean startsTarget(Markable markable)
+    {
+        Columns current = getColumns();
+        int position = markable.getBoundaryBasedataPosition(true);
+        if (position == -1)
+        {
+            return targetLevel.hasMarkableStartingAt(markable.getFirstDiscourseElementID());
+        }
+        return current.startsAt.get(position);
+    }
+
+    /** Returns true if some markable on the target level ends at the last DE of markable. */
+    final boolean finishesTarget(Markable markable)
+    {
+        Columns current = getColumns();
+        int position = markable.getBoundaryBasedataPosition(false);
+        if (position == -1)
+        {
+            return targetLevel.hasMarkableEndingAt(markable.getLastDiscourseElementID());
+        }
+        return current.endsAt.get(position);
+    }
+
+    /** Recomputes the entries for the DE with ID de, after a markable on the target level has been registered at or 
+        unregistered from it. */
+    final synchronized void update(String de)
+    {
+        Columns current = columns;
+        if (current == null)
+        {
+            return;
+        }
+        MMAX2BasedataIndex index = targetLevel.getCurrentDiscourse().getBasedataIndex();
+        if (index.getModificationCount() != current.indexModificationCount)
+        {
+            // Everything will be recomputed on the next query anyway
+            columns = null;
+            return;
+        }
+        int position = index.getPosition(de);
+        if (position != -1)
+        {
+            compute(current, position, de);
+        }
+    }
+
+    /** Discards all entries. */
+    final synchronized void clear()
+    {
+        columns = null;
+    }
+
+    /** Returns the current columns, computing them first if they do not exist or refer to an older version of the base data. */
+    private final Columns getColumns()
+    {
+        MMAX2BasedataIndex index = targetLevel.getCurrentDiscourse().getBasedataIndex();
+        Columns current = columns;
+        if (current != null && current.indexModificationCount == index.getModificationCount())
+        {
+            return current;
+        }
+        synchronized (this)
+        {
+            current = columns;
+            if (current == null || current.indexModificationCount != index.getModificationCount())
+            {
+                current = new Columns(index.getModificationCount(), index.size());
+                Iterator<String> allDEs = targetLevel.getDiscourseElementIDsWithMarkables().iterator();
+                while (allDEs.hasNext())
+                {
+                    String de = allDEs.next();
+                    int position = index.getPosition(de);
+                    if (position != -1)
+                    {
+                        compute(current, position, de);
+                    }
+                }
+                columns = current;
+            }
+        }
+        return current;
+    }
+
+    /** Sets the entries in target for position, which is that of the DE with ID de. */
+    private final void compute(Columns target, int position, String de)
+    {
+        target.startsAt.set(position, targetLevel.hasMarkableStartingAt(de));
+        target.endsAt.set(position, targetLevel.hasMarkableEndingAt(de));
+        int longest = 0;
+        Markable[] allMarkables = targetLevel.getMarkablesAtDiscourseElementView(de, false);
+        for (int b=0;b<allMarkables.length;b++)
+        {
+            longest = Math.max(longest, allMarkables[b].getSize());
+        }
+        target.longestAt[position] = longest;
+    }
+
+    /** Returns true if some markable on targetLevel at DE initial (the first DE of markable) is not shorter than markable. */
+    static final boolean isInMarkableFromLevel(Markable markable, String initial, MarkableLevel targetLevel)
+    {
+        Markable[] allMarkables = targetLevel.getMarkablesAtDiscourseElementView(initial, false);
+        for (int b=0;b<allMarkables.length;b++)
+        {
+            if (allMarkables[b].getSize() >= markable.getSize())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.annotation.markables;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/** Writes a MarkableLevelSnapshot as a markable file. Markables are written in the order of the snapshot, i.e. in discourse
+    order, and their attributes in alphabetical order after id and span, so that unchanged content always yields the same
+    file. Elements are streamed to the underlying writer with a StAX XMLStreamWriter, which escapes values as it writes them.
+    The same element serialization (cf. writeMarkable()) is used for the records of the auto-save journal (cf. MarkableJournal),
+    so that a markable replayed from the journal equals the one read from a complete markable file. As for the attributes, 
+    both write what the markable holds, without consulting the annotation scheme.
+    The file is written to a temporary file first, which then replaces the markable file in one rename, so that the markable
+    file is never left incomplete. */
+final class MarkableFileWriter
+{
+    private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+    private MarkableFileWriter()
+    {
+
+    }
+
+    /** Writes snapshot to its markable file, after copying an existing markable file to a timestamped backup file. Returns
+        true if the markable file has been replaced. This may be called on any thread. */
+    static final boolean save(MarkableLevelSnapshot snapshot)
+    {
+        File destinationFile = new File(snapshot.fileName);
+        File tempFile = new File(snapshot.fileName+".tmp");
+        FileOutputStream fos = null;
+        boolean written = false;
+        try
+        {
+            fos = new FileOutputStream(tempFile);
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fos, snapshot.encoding));
+            write(out, snapshot);
+            // Make sure the content is on disk before the file is renamed
+            fos.getFD().sync();
+            written = true;
+        }
+        catch (IOException ex) { System.err.println("Error saving "+snapshot.fileName+": "+ex.getMessage()); }
+        catch (XMLStreamException ex) { System.err.println("Error saving "+snapshot.fileName+": "+ex.getMessage()); }
+        finally
+        {
+            if (fos != null)
+            {
+                try { fos.close(); }
+                catch (IOException ex) { written = false; System.err.println(ex.getMessage()); }
+            }
+        }
+        if (written == false)
+        {
+            tempFile.delete();
+            return false;
+        }
+
+        try
+        {
+            if (destinationFile.exists())
+            {
+                String timeStamp = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss-SSS").format(new Date());
+                Files.copy(destinationFile.toPath(), new File(snapshot.fileName+"."+timeStamp+".bak").toPath());
+            }
+            try
+            {
+                Files.move(tempFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(tempFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Error replacing "+snapshot.fileName+": "+ex.getMessage());
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /** Writes the header, DTD reference and markables of snapshot to out, within a markables element. out is flushed, but not
+        closed. */
+    static final void write(Writer out, MarkableLevelSnapshot snapshot) throws IOException, XMLStreamException
+    {
+        out.write(snapshot.header+"\n"+snapshot.dtdReference+"\n");
+
+        MarkableAttributeDictionary dictionary = snapshot.dictionary;
+        int[] slots = getSlotsByName(dictionary);
+
+        XMLStreamWriter writer = factory.createXMLStreamWriter(out);
+        writer.writeStartElement("markables");
+        if (snapshot.nameSpace.equals("")==false)
+        {
+            writer.writeDefaultNamespace(snapshot.nameSpace);
+        }
+        writer.writeCharacters("\n");
+        for (int z=0;z<snapshot.size();z++)
+        {
+            writeMarkable(writer, snapshot.ids[z], snapshot.spans[z], snapshot.attributeCodes[z], dictionary, slots);
+            writer.writeCharacters("\n");
+        }
+        writer.writeEndElement();
+        writer.flush();
+        out.flush();
+    }
+
+    /** Returns markable as a single markable element, as it would be written to the markable file, e.g. for a journal record.
+        This must be called on the thread that modifies markable. */
+    static final String toXMLElement(Markable markable, MarkableAttributeDictionary dictionary, int[] slots)
+    {
+        StringWriter out = new StringWriter();
+        try
+        {
+            XMLStreamWriter writer = factory.createXMLStreamWriter(out);
+            writeMarkable(writer, markable.getID(), markable.getCachedSpan(), markable.getAttributeCodes(), dictionary, slots);
+            // Closes the empty element
+            writer.writeEndDocument();
+            writer.flush();
+        }
+        catch (XMLStreamException ex)
+        {
+            // Cannot happen when writing to a StringWriter
+            throw new IllegalStateException(ex);
+        }
+        return out.toString();
+    }
+
+    /** Writes one markable element with id, span and the attributes given by codes, in the order of slots (cf. 
+        getSlotsByName()), to writer. */
+    private static final void writeMarkable(XMLStreamWriter writer, String id, String span, int[] codes, MarkableAttributeDictionary dictionary, int[] slots) throws XMLStreamException
+    {
+        writer.writeEmptyElement("markable");
+        writer.writeAttribute("id", id);
+        writer.writeAttribute("span", span);
+        for (int s=0;s<slots.length;s++)
+        {
+            int slot = slots[s];
+            if (slot < codes.length && codes[slot] != 0)
+            {
+                writer.writeAttribute(dictionary.getName(slot), dictionary.decode(slot, codes[slot]));
+            }
+        }
+    }
+
+    /** Returns the slots of dictionary in alphabetical order of their attribute names. */
+    static final int[] getSlotsByName(MarkableAttributeDictionary dictionary)
+    {
+        ArrayList<String> names = new ArrayList<String>();
+        int size = dictionary.size();
+        for (int slot=0;slot<size;slot++)
+        {
+            names.add(dictionary.getName(slot));
+        }
+        Collections.sort(names);
+        int[] slots = new int[names.size()];
+        for (int z=0;z<slots.length;z++)
+        {
+            slots[z] = dictionary.getSlot(names.get(z));
+        }
+        return slots;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.annotation.markables;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.xerces.dom.DocumentImpl;
+import org.apache.xerces.parsers.DOMParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/** Append-only journal of the markables changed on one MarkableLevel since its markable file was last written. Each record is
+    one line, either the complete markable element as written to the markable file by MarkableFileWriter (for added and 
+    modified markables), or a <deleted id="..."/> element (for deleted markables). Later records for the same ID supersede earlier ones.
+    The journal is written by auto-save, replayed into the markable DOM when the level is loaded, and deleted whenever the
+    markable file is written completely. */
+final class MarkableJournal
+{
+    private MarkableJournal()
+    {
+
+    }
+
+    /** Returns one record for each entry in changes (mapping markable IDs to markables, or to null for deleted ones). This must
+        be called on the thread that modifies the markables, while the records can be appended on any thread. */
+    static final ArrayList<String> toRecords(Map<String, Markable> changes, MarkableAttributeDictionary dictionary)
+    {
+        ArrayList<String> records = new ArrayList<String>(changes.size());
+        int[] slots = MarkableFileWriter.getSlotsByName(dictionary);
+        Iterator<String> it = changes.keySet().iterator();
+        while (it.hasNext())
+        {
+            String id = it.next();
+            Markable markable = changes.get(id);
+            if (markable != null)
+            {
+                records.add(MarkableFileWriter.toXMLElement(markable, dictionary, slots));
+            }
+            else
+            {
+                records.add("<deleted id=\""+id+"\"/>");
+            }
+        }
+        return records;
+    }
+
+    /** Appends records to journalFile, one per line. */
+    static final void append(File journalFile, String encoding, ArrayList<String> records) throws IOException
+    {
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), encoding));
+        try
+        {
+            for (int z=0;z<records.size();z++)
+            {
+                out.write(records.get(z));
+                out.write("\n");
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /** Applies the records in journalFile to the markable elements in markableDOM, and returns the number of records applied.
+        A last record that was written incompletely is ignored. Returns -1 if the journal cannot be read. */
+    static final int replay(File journalFile, String encoding, DocumentImpl markableDOM)
+    {
+        StringBuffer content = new StringBuffer();
+        BufferedReader in = null;
+        try
+        {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), encoding));
+            char[] buffer = new char[8192];
+            int read = 0;
+            while ((read = in.read(buffer)) != -1)
+            {
+                content.append(buffer, 0, read);
+            }
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Cannot read journal "+journalFile.getAbsolutePath()+": "+ex.getMessage());
+            return -1;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try { in.close(); }
+                catch (IOException ex) { }
+            }
+        }
+
+        Document journalDOM = parse(content.toString());
+        if (journalDOM == null)
+        {
+            // Records end with a line break, so drop an incomplete last record and try again
+            int lastComplete = content.lastIndexOf("\n");
+            journalDOM = parse(lastComplete == -1 ? "" : content.substring(0, lastComplete+1));
+            if (journalDOM == null)
+            {
+                System.err.println("Cannot parse journal "+journalFile.getAbsolutePath());
+                return -1;
+            }
+        }
+
+        Node root = markableDOM.getElementsByTagName("markables").item(0);
+        HashMap<String, Node> nodeOfID = new HashMap<String, Node>();
+        NodeList allMarkableNodes = markableDOM.getElementsByTagName("markable");
+        for (int z=0;z<allMarkableNodes.getLength();z++)
+        {
+            nodeOfID.put(((Element) allMarkableNodes.item(z)).getAttribute("id"), allMarkableNodes.item(z));
+        }
+        int applied = 0;
+        NodeList records = journalDOM.getDocumentElement().getChildNodes();
+        for (int z=0;z<records.getLength();z++)
+        {
+            if (records.item(z).getNodeType() != Node.ELEMENT_NODE)
+            {
+                continue;
+            }
+            Element record = (Element) records.item(z);
+            String id = record.getAttribute("id");
+            Node existing = nodeOfID.get(id);
+            if (record.getNodeName().equals("deleted"))
+            {
+                if (existing != null)
+                {
+                    root.removeChild(existing);
+                    nodeOfID.remove(id);
+                }
+            }
+            else
+            {
+                Node imported = markableDOM.importNode(record, true);
+                if (existing != null) { root.replaceChild(imported, existing); }
+                else                  { root.appendChild(imported); }
+                nodeOfID.put(id, imported);
+            }
+            applied++;
+        }
+        return applied;
+    }
+
+    /** Parses records as the children of one element, or returns null if they are not well-formed. */
+    private static final Document parse(String records)
+    {
+        DOMParser parser = new DOMParser();
+        try
+        {
+            parser.setFeature("http://xml.org/sax/features/validation",false);
+            parser.parse(new InputSource(new StringReader("<journal>\n"+records+"</journal>")));
+        }
+        catch (SAXException ex)
+        {
+            return null;
+        }
+        catch (IOException ex)
+        {
+            return null;
+        }
+        return parser.getDocument();
+    }
+}
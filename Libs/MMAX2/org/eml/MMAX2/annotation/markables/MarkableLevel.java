@@ -19,18 +19,26 @@ package org.eml.MMAX2.annotation.markables;
 // Nodes returned to StyleSheet
 import java.awt.Color;
 import java.awt.Cursor;
-import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -39,11 +47,11 @@ import javax.swing.JLabel;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 import javax.swing.plaf.basic.BasicArrowButton;
 
 import org.apache.xerces.dom.DocumentImpl;
-import org.apache.xerces.dom.ElementImpl;
 import org.apache.xpath.NodeSet;
 import org.eml.MMAX2.annotation.query.MMAX2MatchingCriterion;
 import org.eml.MMAX2.annotation.query.MMAX2QueryException;
@@ -54,9 +62,11 @@ import org.eml.MMAX2.annotation.scheme.UIMATypeMapping;
 import org.eml.MMAX2.api.AttributeAPI;
 import org.eml.MMAX2.api.MarkableLevelAPI;
 import org.eml.MMAX2.core.MMAX2;
+import org.eml.MMAX2.discourse.MMAX2BasedataIndex;
 import org.eml.MMAX2.discourse.MMAX2Discourse;
 import org.eml.MMAX2.discourse.MMAX2DiscourseElement;
 import org.eml.MMAX2.discourse.MMAX2DiscourseElementSequence;
+import org.eml.MMAX2.discourse.MMAX2DiscourseSnapshot;
 import org.eml.MMAX2.gui.display.MMAX2OneClickAnnotationSelector;
 import org.eml.MMAX2.gui.display.MarkableLevelRenderer;
 import org.eml.MMAX2.gui.document.MMAX2Document;
@@ -65,18 +75,25 @@ import org.eml.MMAX2.gui.windows.MMAX2MarkablePointerBrowser;
 import org.eml.MMAX2.gui.windows.MMAX2MarkableSetBrowser;
 import org.eml.MMAX2.utils.MMAX2Constants;
 import org.eml.MMAX2.utils.MMAX2Utils;
+import org.w3c.dom.DocumentType;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 public class MarkableLevel implements java.awt.event.ActionListener, MarkableLevelAPI
 {    
-    /** Reference to the markableDOM that the markables on this layer come from. */    
+    /** Reference to the markableDOM that the markables on this layer come from. Its markable elements are removed once the 
+        markables have been created (cf. createMarkables()). */    
     private DocumentImpl markableDOM;       
     
     /** Reference to the discourse this MarkableLayer belongs to. */
     private MMAX2Discourse currentDiscourse;    
     /** HashMap mapping all Markables in this layer to their IDs. */
     private HashMap<String, Markable> markableHash;    
+    /** All Markables in this layer by their ordinal number (cf. Markable.getOrdinal()), with null at the ordinals of deleted 
+        Markables. Ordinals are assigned in order of storage and are not reused, so they can serve as int handles. */
+    private Markable[] markablesByOrdinal = new Markable[0];
+    /** Number of ordinals assigned so far. */
+    private int ordinalCount = 0;
     /** Name of the markable xml file pertaining to this layer. */
     private String markableFileName="";    
     /** Name of the markable level (read from 'level' attribute). */
@@ -85,17 +102,78 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     private String markableFileHeader="<?xml version=\"1.0\" encoding=\"UTF-8\"?>";    
     
     private String encoding = "UTF-8";
-    /** HashMap which maps DE id string to arrays of markables associated with the DE. 
-        Filled by this.registerMarkableAtDiscourseElement, used by getMarkablesAtDiscourseElement. */
     private String markableNameSpace="";
     private String dtdReference="<!DOCTYPE markables>";
-    private HashMap<String, Markable[]> markablesAtDiscourseElement;
-    /** HashMap which maps DE id string to arrays of markables started by the DE. 
-        Filled by this.registerMarkableAtDiscourseElement, used by getMarkablesStartedByDiscourseElement. */
-    private HashMap<String, Markable[]> startedMarkablesAtDiscourseElement;
-    /** HashMap which maps DE id string to arrays of markables ended by the DE. 
-        Filled by this.registerMarkableAtDiscourseElement, used by getMarkablesEndedByDiscourseElement. */
-    private HashMap<String, Markable[]> endedMarkablesAtDiscourseElement;    
+    /** HashMap which maps DE id string to the bucket of markables associated with the DE. 
+        Filled by this.registerMarkableAtDiscourseElement, used by getMarkablesAtDiscourseElement. */
+    private HashMap<String, MarkableBucket> markablesAtDiscourseElement;
+    /** HashMap which maps DE id string to the bucket of markables started by the DE. 
+        Filled by this.registerMarkableAtStartOfFragment, used by getMarkablesStartedByDiscourseElement. */
+    private HashMap<String, MarkableBucket> startedMarkablesAtDiscourseElement;
+    /** HashMap which maps DE id string to the bucket of markables ended by the DE. 
+        Filled by this.registerMarkableAtEndOfFragment, used by getMarkablesEndedByDiscourseElement. */
+    private HashMap<String, MarkableBucket> endedMarkablesAtDiscourseElement;    
+    /** True if the markables on this level have not been created yet (cf. deferMarkableCreation()). */
+    private volatile boolean deferred = false;
+    /** Number of markable elements in markableDOM while deferred is true. */
+    private int deferredMarkableCount = 0;
+    /** True if initMarkableRelations() was called while deferred was true, and must be repeated by materialize(). */
+    private boolean markableRelationsRequested = false;
+    /** Precomputed answers to the style sheet containment predicates with this as the target level, or null until first needed 
+        (cf. getContainmentTable()). Entries are updated whenever a markable is registered at or unregistered from a DE. */
+    private volatile MarkableContainmentTable containmentTable = null;
+    /** Number of markables deleted from this level so far, so that callers remembering a markable by its ID can tell whether
+        it may have been deleted (and its ID reused) since. */
+    private volatile int deletionCount = 0;
+    /** Inverted index over the attribute values of the markables on this level, or null until the first call to
+        getMarkablesMatchingAll() or getMarkablesMatchingAny(). */
+    private volatile MarkableAttributeIndex attributeIndex = null;
+    /** Markables added, modified or deleted since the markable file or the journal was last written, by ID (with null for 
+        deleted markables), in order of their first change. Also used as the lock for the journal fields. */
+    private final LinkedHashMap<String, Markable> journalChanges = new LinkedHashMap<String, Markable>();
+    /** True if the level was set to dirty since the markable file or the journal was last written. If there are no 
+        journalChanges, the change is one that the journal cannot represent, and auto-save writes the markable file. */
+    private boolean dirtySinceJournal = false;
+    /** True once the journal has been replayed into markableDOM (cf. replayJournal()). */
+    private boolean journalReplayed = false;
+    /** Incremented whenever the level is set to dirty, so that a background save can tell whether the level has changed since
+        its snapshot was taken. */
+    private int dirtyGeneration = 0;
+    /** True if appending to the journal has failed, so that it must be replaced by a full save. */
+    private boolean journalFailed = false;
+    /** True if the journal file could not be replayed and could not be moved aside either, so that it must be kept as it is. */
+    private boolean journalUnreadable = false;
+    /** Number of records in the journal file, including those of a pending append. */
+    private int journalRecordCount = 0;
+    /** Auto-save writes the markable file instead of appending to the journal once the journal would hold more records than
+        1/JOURNAL_FRACTION of the number of markables on the level, since replaying it would then cost about as much. */
+    private static final int JOURNAL_FRACTION = 4;
+    /** Auto-save of this level that is being written in the background, or null. Cleared by the one who completes it. */
+    private final AtomicReference<PendingSave> pendingSave = new AtomicReference<PendingSave>();
+    /** Single daemon thread on which auto-saves of all levels are written. */
+    private static final ExecutorService autoSaveExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "MMAX2 auto-save");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /** Order of markables ended by a DE: by ENDCOMP, with ties broken by IDCOMP. */
+    private static final Comparator ENDED_ORDER = new Comparator()
+    {
+        @SuppressWarnings("unchecked")
+        public int compare(Object markable1, Object markable2)
+        {
+            int result = MMAX2Discourse.ENDCOMP.compare(markable1, markable2);
+            if (result == 0)
+            {
+                result = MMAX2Discourse.IDCOMP.compare(markable1, markable2);
+            }
+            return result;
+        }
+    };
     /** Array containing at index X an array of those Markables associated with the DE with discourse position x.
         Filled by this.createDisplayPositionToMarkableMapping, used by this.getMarkableAtDiscoursePosition. */
     private Markable[][] markablesAtDiscoursePosition;    
@@ -127,6 +205,9 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     private String matchableLevelName="";
     private boolean hasHandles = false;   
     private MMAX2AnnotationScheme annotationscheme = null;
+    /** Attribute names and values of all markables on this level (cf. Markable.attributeCodes). Created on first use. Volatile, 
+        so that attribute reads need not lock the level once it exists. */
+    private volatile MarkableAttributeDictionary attributeDictionary = null;
         
     private MMAX2 mmax2 = null;
     private boolean dirty = false;
@@ -140,6 +221,8 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     boolean VERBOSE = false;
     boolean DEBUG = false;
     boolean PURGE_SINGLETON_SETS = true; 
+    /** If true, auto-save appends changed markables to a journal (cf. MarkableJournal) instead of rewriting the markable file. */
+    boolean JOURNAL = true;
     
     /** Creates new MarkableLevel */
     public MarkableLevel(DocumentImpl _markableDOM, String _markableFileName, String _markableLevelName, MMAX2AnnotationScheme _scheme, String _customizationFileName)
@@ -152,6 +235,9 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
 
     	try { if (System.getProperty("purge_singleton_sets").equalsIgnoreCase("false")) {PURGE_SINGLETON_SETS = false;} }
     	catch (java.lang.NullPointerException x) { }
+
+    	try { if (System.getProperty("markable_journal").equalsIgnoreCase("false")) {JOURNAL = false;} }
+    	catch (java.lang.NullPointerException x) { }
     	    	
         customizationFileName=_customizationFileName;
         // ??
@@ -204,9 +290,9 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
         markableFileName = _markableFileName;
         markableLevelName = _markableLevelName;
         annotationscheme = _scheme;
-        markablesAtDiscourseElement = new HashMap<String, Markable[]>();
-        startedMarkablesAtDiscourseElement = new HashMap<String, Markable[]>();
-        endedMarkablesAtDiscourseElement = new HashMap<String, Markable[]>();                   
+        markablesAtDiscourseElement = new HashMap<String, MarkableBucket>();
+        startedMarkablesAtDiscourseElement = new HashMap<String, MarkableBucket>();
+        endedMarkablesAtDiscourseElement = new HashMap<String, MarkableBucket>();                   
         markableSetRelations = new HashMap<String, MarkableRelation>();
         markablePointerRelations = new HashMap<String, MarkableRelation>();        
         
@@ -378,16 +464,85 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     public final boolean hasMarkableStartingAt(String deID)
     {
+        if (deferred) { materialize(); }
         return (startedMarkablesAtDiscourseElement.get(deID)!=null);
     }
 
     public final boolean hasMarkableEndingAt(String deID)
     {        
+        if (deferred) { materialize(); }
         return (endedMarkablesAtDiscourseElement.get(deID)!=null);
     }
 
+    /** Returns true if at least one markable on this level is associated with the DE with ID deID. */
+    public final boolean hasMarkableAt(String deID)
+    {
+        if (deferred) { materialize(); }
+        return (markablesAtDiscourseElement.get(deID)!=null);
+    }
+
+    /** Returns the MarkableContainmentTable with this as the target level, creating it if required. */
+    final MarkableContainmentTable getContainmentTable()
+    {
+        MarkableContainmentTable result = containmentTable;
+        if (result == null)
+        {
+            // Markables must exist before the table is used (and materialize() must not run while the table is locked)
+            if (deferred) { materialize(); }
+            synchronized (this)
+            {
+                result = containmentTable;
+                if (result == null)
+                {
+                    result = new MarkableContainmentTable(this);
+                    containmentTable = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the smallest base data index modification count that the fragment ranges of a markable on this level refer 
+        to, or current if there is none (cf. MMAX2BasedataIndex.trimModifications()). */
+    public final int getOldestBasedataModificationCount(int current)
+    {
+        int result = current;
+        for (int o=0;o<ordinalCount;o++)
+        {
+            Markable markable = markablesByOrdinal[o];
+            if (markable != null && markable.getFragmentIndexModificationCount() < result)
+            {
+                result = markable.getFragmentIndexModificationCount();
+            }
+        }
+        return result;
+    }
+
+    /** Returns the number of markables deleted from this level so far. */
+    final int getDeletionCount()
+    {
+        return deletionCount;
+    }
+
+    /** Recomputes the entries of the containment table (if any) for DE de. */
+    private final void updateContainment(String de)
+    {
+        MarkableContainmentTable table = containmentTable;
+        if (table != null)
+        {
+            table.update(de);
+        }
+    }
+
+    /** Returns the IDs of all DEs with at least one markable on this level, which must not be modified. */
+    final Set<String> getDiscourseElementIDsWithMarkables()
+    {
+        return markablesAtDiscourseElement.keySet();
+    }
+
     public final Markable getMarkableAtSpan(String span)
     {
+        if (deferred) { materialize(); }
         Markable result = null;
         Iterator allMarkables = markableHash.values().iterator();
         while (allMarkables.hasNext())
@@ -405,6 +560,10 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     public final void setIsDirty(boolean status, boolean refresh)
     {        
+        if (status)
+        {
+            synchronized (journalChanges) { dirtySinceJournal = true; dirtyGeneration++; }
+        }
         if (dirty != status)
         {
             dirty = status;        
@@ -477,6 +636,7 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     public final void validate()
     {
+        if (deferred) { materialize(); }
         if (isVerbose()) System.err.println("Validating "+markableHash.size() +" markables from MarkableLevel "+getMarkableLevelName());
         Iterator allMarkables = markableHash.values().iterator();
         Markable current = null;
@@ -496,18 +656,141 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     public final void deleteAllMarkables()
     {
-        ArrayList temp = new ArrayList();
-        Iterator allMarkables = markableHash.values().iterator();
-        while (allMarkables.hasNext())
+        if (deferred) { materialize(); }
+        deleteMarkables(getMarkables(), true);
+    }
+    
+    /** Deletes all markables in deletees from this level. This is equivalent to calling deleteMarkable() for each, but set 
+        relations are traversed once, the position mapping is updated once per affected DE, all removed handles and markables 
+        are re-rendered in one change, and the level is set to dirty only once. */
+    public final void deleteMarkables(Collection deletees)
+    {
+        if (deferred) { materialize(); }
+        ArrayList list = new ArrayList(deletees);
+        // Check whether deletees are all markables on this level, i.e. whether the level is being cleared
+        boolean all = (list.size()==markableHash.size());
+        for (int b=0;all && b<list.size();b++)
+        {
+            Markable deletee = (Markable) list.get(b);
+            all = (markableHash.get(deletee.getID())==deletee);
+        }
+        deleteMarkables(list, all);
+    }
+    
+    /** If all is true, deletees are all markables on this level, and the DE mappings are simply cleared. */
+    private final void deleteMarkables(ArrayList deletees, boolean all)
+    {
+        if (deletees.size()==0)
+        {
+            return;
+        }
+        // Remove deletees from their sets, visiting each set relation only once
+        Iterator<MarkableRelation> allRelations = markableSetRelations.values().iterator();
+        while (allRelations.hasNext())
+        {
+            MarkableRelation relation = allRelations.next();
+            String attributeName = relation.getAttributeName();
+            for (int b=0;b<deletees.size();b++)
+            {
+                Markable deletee = (Markable) deletees.get(b);
+                String value = deletee.getAttributeValue(attributeName);
+                if (value != null && value.equals("")==false && value.equals(MMAX2.defaultRelationValue)==false)
+                {
+                    MarkableSet set = relation.getMarkableSetContainingMarkable(deletee);
+                    if (set!=null)
+                    {
+                        set.removeMarkable(deletee);
+                    }
+                }
+            }
+        }
+        
+        LinkedHashSet<String> affectedDEs = new LinkedHashSet<String>();
+        for (int b=0;b<deletees.size();b++)
+        {
+            Markable deletee = (Markable) deletees.get(b);
+            markableHash.remove(deletee.getID());
+            markablesByOrdinal[deletee.getOrdinal()] = null;
+            markableDeleted(deletee);
+            if (all==false)
+            {
+                if (attributeIndex != null)
+                {
+                    attributeIndex.remove(deletee);
+                }
+                int fragmentCount = deletee.getFragmentCount();
+                for (int z=0;z<fragmentCount;z++)
+                {
+                    int fragmentSize = deletee.getFragmentSize(z);
+                    if (fragmentSize == 0) continue;
+                    removeFromBucket(startedMarkablesAtDiscourseElement, deletee.getFragmentElementID(z, 0), deletee);
+                    removeFromBucket(endedMarkablesAtDiscourseElement, deletee.getFragmentElementID(z, fragmentSize-1), deletee);
+                    for (int o=0;o<fragmentSize;o++)
+                    {
+                        String currentDE = deletee.getFragmentElementID(z, o);
+                        removeFromBucket(markablesAtDiscourseElement, currentDE, deletee);
+                        affectedDEs.add(currentDE);
+                    }
+                }
+            }
+        }
+        if (all)
         {
-            temp.add((Markable)allMarkables.next());
+            if (containmentTable != null)
+            {
+                containmentTable.clear();
+            }
+            attributeIndex = null;
+            markablesAtDiscourseElement.clear();
+            startedMarkablesAtDiscourseElement.clear();
+            endedMarkablesAtDiscourseElement.clear();
+            if (markablesAtDiscoursePosition != null)
+            {
+                Arrays.fill(markablesAtDiscoursePosition, MarkableBucket.EMPTY);
+            }
+        }
+        else
+        {
+            Iterator<String> it = affectedDEs.iterator();
+            while (it.hasNext())
+            {
+                String de = it.next();
+                updateContainment(de);
+                updateDiscoursePositionToMarkableMapping(de);
+            }
         }
-        allMarkables = null;
         
-        for (int b=0;b<temp.size();b++)
+        if (getCurrentDiscourse().getHasGUI())
         {
-            deleteMarkable((Markable)temp.get(b));
+            // Collect the handle positions of all deletees, so that they can be re-rendered in one change
+            ArrayList<Integer> positions = new ArrayList<Integer>();
+            int start = Integer.MAX_VALUE;
+            int end = -1;
+            for (int b=0;b<deletees.size();b++)
+            {
+                Markable deletee = (Markable) deletees.get(b);
+                positions.addAll(Arrays.asList(currentDiscourse.removeDisplayAssociationsForMarkable(deletee)));
+                start = Math.min(start, deletee.getLeftmostDisplayPosition());
+                end = Math.max(end, deletee.getRightmostDisplayPosition());
+            }
+            if (positions.size() != 0)
+            {
+                Integer[] sortedPositions = positions.toArray(new Integer[positions.size()]);
+                Arrays.sort(sortedPositions);
+                renderer.removeHandlesAtDisplayPositions(sortedPositions);
+            }
+            MMAX2Document doc = currentDiscourse.getDisplayDocument();
+            doc.startChanges(start, (end-start)+1);
+            for (int b=0;b<deletees.size();b++)
+            {
+                ((Markable) deletees.get(b)).renderMe(MMAX2Constants.RENDER_REMOVED);
+            }
+            doc.commitChanges();
+            // Destroy further references to deletee markables
+            currentDiscourse.getMMAX2().setCurrentSecondaryMarkable(null);
+            currentDiscourse.getMMAX2().getCurrentTextPane().setCurrentHoveree(null,0);            
         }
+        setIsDirty(true,true);
     }
     
     public final void deleteMarkable(Markable deletee)
@@ -525,12 +808,14 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
             }
         }
         
-        // Get reference to root node
-        Node root= markableDOM.getElementsByTagName("markables").item(0);
-        // Remove deletee (as node) from this
-        root.removeChild(deletee.getNodeRepresentation());
         // Remove deletee from markableHash, the sole markable repository
         markableHash.remove(deletee.getID());
+        markablesByOrdinal[deletee.getOrdinal()] = null;
+        markableDeleted(deletee);
+        if (attributeIndex != null)
+        {
+            attributeIndex.remove(deletee);
+        }
         unregisterMarkable(deletee);
         if (getCurrentDiscourse().getHasGUI())
         {
@@ -567,35 +852,10 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
 
     public final Markable addMarkable(String[][] fragments, HashMap attributes)
     {
-        // Create new ID String 
-        String id = currentDiscourse.getCurrentMarkableChart().getNextFreeMarkableID();
+        if (deferred) { materialize(); }
         // Get independent attribute with default values, incl. those dependent on default, and so on
         MMAX2Attribute[] mmaxAttributes = (MMAX2Attribute[])annotationscheme.getInitialAttributes().toArray(new MMAX2Attribute[0]);
-        // Create node representation
-        ElementImpl node =(ElementImpl) markableDOM.createElementNS(markableNameSpace,"markable");
-        Node root= markableDOM.getElementsByTagName("markables").item(0);
-        root.insertBefore((Node)node,root.getFirstChild());
-        for (int i=0;i<mmaxAttributes.length;i++)
-        {
-            String currentAttrib = ((MMAX2Attribute)mmaxAttributes[i]).getDisplayName();
-            if (attributes.containsKey(currentAttrib)==false)
-            {
-                attributes.put(new String(currentAttrib),new String(((MMAX2Attribute)mmaxAttributes[i]).getSelectedValue()));
-                ((Element)node).setAttribute(new String(currentAttrib),new String(((MMAX2Attribute)mmaxAttributes[i]).getSelectedValue()));
-            }
-            else
-            {
-                // The supplied attributes (via create) have precedence over default ones
-            }
-        }
-        ((Element)node).setAttribute(new String("id"),new String(id));
-        // Create new markable object from above parameters
-        Markable newMarkable = new Markable((Node)node,id,fragments,attributes,this);
-
-//        System.out.println(fragments);
-        
-        markableHash.put(id, newMarkable);
-        MarkableHelper.setDisplayPositions(newMarkable);
+        Markable newMarkable = createMarkable(fragments, attributes, mmaxAttributes);
         
         for (int z=0;z<fragments.length;z++)
         {
@@ -620,30 +880,109 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
         return newMarkable;
     }
     
+    /** Adds one markable for each element of fragmentsList, with the attributes at the same index in attributesList (which 
+        may be null, or contain null for markables without supplied attributes). This is equivalent to calling 
+        addMarkable(String[][], HashMap) for each, but the position mapping is updated only once per affected DE, all new
+        markables are rendered in one document change, and the level is set to dirty only once, at the end. Returns the new 
+        markables in the order of fragmentsList. */
+    public final Markable[] addMarkables(ArrayList<String[][]> fragmentsList, ArrayList<HashMap> attributesList)
+    {
+        if (deferred) { materialize(); }
+        Markable[] result = new Markable[fragmentsList.size()];
+        if (result.length == 0)
+        {
+            return result;
+        }
+        MMAX2Attribute[] mmaxAttributes = (MMAX2Attribute[])annotationscheme.getInitialAttributes().toArray(new MMAX2Attribute[0]);
+        // Collect DEs first, so that the bucket at each is sorted only once
+        LinkedHashSet<String> affectedDEs = new LinkedHashSet<String>();
+        for (int m=0;m<result.length;m++)
+        {
+            String[][] fragments = fragmentsList.get(m);
+            HashMap attributes = (attributesList != null ? attributesList.get(m) : null);
+            if (attributes == null) attributes = new HashMap();
+            result[m] = createMarkable(fragments, attributes, mmaxAttributes);
+            for (int z=0;z<fragments.length;z++)
+            {
+                for (int y=0;y<fragments[z].length;y++)
+                {
+                    affectedDEs.add(fragments[z][y]);
+                }
+            }
+        }
+        Iterator<String> it = affectedDEs.iterator();
+        while (it.hasNext())
+        {
+            updateDiscoursePositionToMarkableMapping(it.next());
+        }
+        
+        if (currentDiscourse.getHasGUI())
+        {
+            // Render all new markables in one change covering all of them
+            int start = Integer.MAX_VALUE;
+            int end = -1;
+            for (int m=0;m<result.length;m++)
+            {
+                start = Math.min(start, result[m].getLeftmostDisplayPosition());
+                end = Math.max(end, result[m].getRightmostDisplayPosition());
+            }
+            MMAX2Document doc =currentDiscourse.getDisplayDocument();
+            doc.startChanges(start, (end-start)+1);
+            for (int m=0;m<result.length;m++)
+            {
+                result[m].renderMe(MMAX2Constants.RENDER_UNSELECTED);
+            }
+            doc.commitChanges();
+        }
+        setIsDirty(true,true);
+        return result;
+    }
+    
+    /** Creates a markable with a new ID from fragments and attributes (to which defaults from mmaxAttributes are added where 
+        missing), and stores it on this level. */
+    private final Markable createMarkable(String[][] fragments, HashMap attributes, MMAX2Attribute[] mmaxAttributes)
+    {
+        // Create new ID String 
+        String id = currentDiscourse.getCurrentMarkableChart().getNextFreeMarkableID();
+        for (int i=0;i<mmaxAttributes.length;i++)
+        {
+            String currentAttrib = ((MMAX2Attribute)mmaxAttributes[i]).getDisplayName();
+            if (attributes.containsKey(currentAttrib)==false)
+            {
+                attributes.put(new String(currentAttrib),new String(((MMAX2Attribute)mmaxAttributes[i]).getSelectedValue()));
+            }
+            else
+            {
+                // The supplied attributes (via create) have precedence over default ones
+            }
+        }
+        // Create new markable object from above parameters. Its node representation is created on demand.
+        Markable newMarkable = new Markable(null,id,fragments,attributes,this);
+        storeMarkable(newMarkable);
+        markableChanged(newMarkable);
+        MarkableHelper.setDisplayPositions(newMarkable);
+        return newMarkable;
+    }
     
     public final Markable addMarkable(String fragment)
     {
+        if (deferred) { materialize(); }
         // Create new ID String 
         String id = currentDiscourse.getCurrentMarkableChart().getNextFreeMarkableID();
         // Create fragments array of arrays from word4..word12; this is never discontinuous
-        String[][] fragments = parseMarkableSpan(fragment,currentDiscourse.getWordDOM(),this);
+        String[][] fragments = parseMarkableSpan(fragment,this);
         // Create and get attributes for new markable        
         HashMap attributes = new HashMap();
         // Get independent attribute with default values, incl. those dependent on default, and so on
         MMAX2Attribute[] mmaxAttributes = (MMAX2Attribute[])annotationscheme.getInitialAttributes().toArray(new MMAX2Attribute[0]);
-        // Create node representation
-        ElementImpl node =(ElementImpl) markableDOM.createElementNS(markableNameSpace,"markable");
-        Node root= markableDOM.getElementsByTagName("markables").item(0);
-        root.insertBefore((Node)node,root.getFirstChild());
         for (int i=0;i<mmaxAttributes.length;i++)
         {
             attributes.put(new String(((MMAX2Attribute)mmaxAttributes[i]).getDisplayName()),new String(((MMAX2Attribute)mmaxAttributes[i]).getSelectedValue()));
-            ((Element)node).setAttribute(new String(((MMAX2Attribute)mmaxAttributes[i]).getDisplayName()),new String(((MMAX2Attribute)mmaxAttributes[i]).getSelectedValue()));
         }
-        ((Element)node).setAttribute(new String("id"),new String(id));
-        // Create new markable object from above parameters
-        Markable newMarkable = new Markable((Node)node,id,fragments,attributes,this);        
-        markableHash.put(id, newMarkable);
+        // Create new markable object from above parameters. Its node representation is created on demand.
+        Markable newMarkable = new Markable(null,id,fragments,attributes,this);        
+        storeMarkable(newMarkable);
+        markableChanged(newMarkable);
         MarkableHelper.setDisplayPositions(newMarkable);
         
         for (int z=0;z<fragments.length;z++)
@@ -674,7 +1013,31 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     	saveMarkables(newFileName, false);
     }
     
+    /** Saves the markables on this level to newFileName (or to the current markable file if newFileName is empty). With a GUI,
+        snapshots and journal records must be taken on the thread that edits the level, i.e. the event dispatch thread. If this
+        is called on another thread (e.g. by an auto-save timer), the save is scheduled on the event dispatch thread, and this 
+        returns at once, rather than waiting for the event dispatch thread, which may itself be waiting for the caller. */
     public final void saveMarkables(String newFileName, boolean autoSaveMode)
+    {
+        if (currentDiscourse.getHasGUI() && SwingUtilities.isEventDispatchThread()==false)
+        {
+            final String name = newFileName;
+            final boolean mode = autoSaveMode;
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    saveMarkables(name, mode);
+                }
+            });
+            return;
+        }
+        saveMarkablesOnCurrentThread(newFileName, autoSaveMode);
+    }
+    
+    /** Saves the markables on this level as described for saveMarkables(), on the current thread, which must be the only one
+        editing the level. */
+    private final void saveMarkablesOnCurrentThread(String newFileName, boolean autoSaveMode)
     {
         if (getIsDirty()==false)
         {
@@ -690,6 +1053,24 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
             return;
         }
         
+        PendingSave pending = pendingSave.get();
+        if (autoSaveMode && pending != null && pending.result.isDone()==false)
+        {
+            System.err.println("Auto-Save: Markable level "+getMarkableLevelName()+" is still being saved, not saving!");
+            return;
+        }
+        // Complete any background save first, so that saves are completed in order
+        waitForPendingSave();
+        
+        if (autoSaveMode && JOURNAL && (newFileName.equals("") || newFileName.equals(markableFileName)) && new File(markableFileName).exists())
+        {
+            // Only write what has changed since the last save, if the journal can represent it
+            if (appendToJournal())
+            {
+                return;
+            }
+        }
+        
         if (autoSaveMode) System.err.print("Auto-Save: ");
         if (isVerbose()) System.err.println("Saving level "+getMarkableLevelName()+" ... ");
         if (newFileName.equals("")==false){ markableFileName = newFileName; }
@@ -707,60 +1088,300 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
             	else              { JOptionPane.showMessageDialog(null,"Cannot save markables on level "+getMarkableLevelName()+"!\n'Write' not allowed!","Save problem:"+markableFileName,JOptionPane.WARNING_MESSAGE);	 }                
                 return;
             }
-        	
-            /* The file to be written is already existing and writable, so create backup copy first*/
-            /* This should be the normal case */
-        	// 
-            if (autoSaveMode && isVerbose()) System.err.print("Auto-Save: ");            
+            /* The file to be written is already existing and writable, so MarkableFileWriter creates a backup copy first*/
             if (isVerbose()) System.err.println("Filename "+destinationFile.getAbsolutePath()+" exists, creating *timestamped* backup file!");
-            String timeStamp = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss-SSS").format(new Date());
-                        
-            File oldDestinationFile = new File(this.markableFileName +"."+timeStamp+".bak");
-            destinationFile.renameTo(oldDestinationFile);
         }                   
         
-	/* Write DOM to file */
         if (autoSaveMode) System.err.print("Auto-Save: ");
         System.err.println("Writing to file " + markableFileName);
+        if (isVerbose()) System.err.println("Saving "+getMarkableCount()+" markables");
         
-        BufferedWriter fw = null;
-        try 							{ fw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(markableFileName),this.encoding)); }
-        catch (java.io.IOException ex)	{ ex.printStackTrace(); }
-        
-        String rootElement ="";
-        if (markableNameSpace.equals("")) { rootElement = "<markables>"; }
-        else { rootElement = "<markables xmlns=\""+markableNameSpace+"\">"; }
-                
+        PendingSave save = null;
+        synchronized (journalChanges)
+        {
+            // The snapshot contains all changes so far, so later ones are recorded relative to it
+            save = new PendingSave(new MarkableLevelSnapshot(this, markableFileName, encoding, markableFileHeader, dtdReference, markableNameSpace), 
+                    null, null, new LinkedHashMap<String, Markable>(journalChanges), dirtySinceJournal, dirtyGeneration);
+            journalChanges.clear();
+            dirtySinceJournal = false;
+        }
+        if (autoSaveMode)
+        {
+            // Write in the background, and complete on the event dispatch thread (cf. PendingSave.result)
+            pendingSave.set(save);
+            autoSaveExecutor.execute(save.result);
+        }
+        else
+        {
+            finishSave(save, MarkableFileWriter.save(save.snapshot));
+        }
+    }
+    
+    /** Completes save, which has been written in the background, unless it has been completed already. This waits until save
+        has been written. Each save is completed exactly once, by whoever clears pendingSave first. */
+    private final void completePendingSave(PendingSave save)
+    {
+        if (pendingSave.compareAndSet(save, null)==false)
+        {
+            return;
+        }
+        boolean saved = false;
         try
         {
-            fw.write(markableFileHeader+"\n"+dtdReference+"\n"+rootElement+"\n");
-            fw.flush();
+            saved = save.result.get().booleanValue();
+        }
+        catch (java.lang.InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (java.util.concurrent.ExecutionException ex)
+        {
+            ex.getCause().printStackTrace();
+        }
+        finishSave(save, saved);
+    }
+    
+    /** Waits for a background save of this level (if any) to be written, and completes it. */
+    private final void waitForPendingSave()
+    {
+        PendingSave save = pendingSave.get();
+        if (save != null)
+        {
+            completePendingSave(save);
+        }
+    }
+    
+    /** Updates the dirty state and journal of this level after save has been written (if saved is true) or has failed. */
+    private final void finishSave(PendingSave save, boolean saved)
+    {
+        boolean unchanged = false;
+        synchronized (journalChanges)
+        {
+            if (saved == false)
+            {
+                // Restore the changes that were not written, so that they are not lost for the journal
+                LinkedHashMap<String, Markable> changes = new LinkedHashMap<String, Markable>(save.savedChanges);
+                changes.putAll(journalChanges);
+                journalChanges.clear();
+                journalChanges.putAll(changes);
+                dirtySinceJournal = dirtySinceJournal || save.savedDirtySinceJournal;
+                if (save.snapshot == null)
+                {
+                    // The journal may end in an incomplete record now, so it must be replaced by a full save
+                    journalFailed = true;
+                }
+                return;
+            }
+            if (save.snapshot == null)
+            {
+                // The level stays dirty, since its markable file is not up to date
+                System.err.println("Auto-Save: Appended "+save.journalRecords.size()+" changed markables to "+save.journalFile.getName());
+                return;
+            }
+            // The markable file is complete now, so any journal is obsolete
+            if (journalUnreadable==false)
+            {
+                new File(save.snapshot.fileName+".journal").delete();
+            }
+            journalFailed = false;
+            journalRecordCount = 0;
+            unchanged = (dirtyGeneration == save.savedGeneration);
+        }
+        if (unchanged)
+        {
+            setIsDirty(false,false);
         }
-        catch (java.io.IOException ex)
+    }
+    
+    /** Full save of this level from a snapshot, or append of records to its journal. For auto-save, the file is written on the 
+        auto-save thread, so that editing can continue meanwhile. The level state at the time the snapshot or the records were 
+        taken is kept, so that the save can be undone if it fails, and the level is only set to clean if it has not been changed
+        since. */
+    private final class PendingSave implements Callable<Boolean>
+    {
+        /** Snapshot to write to the markable file, or null if journalRecords are appended to journalFile instead. */
+        final MarkableLevelSnapshot snapshot;
+        final File journalFile;
+        final ArrayList<String> journalRecords;
+        final String journalEncoding;
+        final LinkedHashMap<String, Markable> savedChanges;
+        final boolean savedDirtySinceJournal;
+        final int savedGeneration;
+        /** Taken when the save is created, since the level may have been closed by the time the save is done. */
+        final boolean hasGUI;
+        /** Runs call(), and completes this save when done, on the event dispatch thread if there is a GUI, and else directly 
+            on the thread that has written it. */
+        final FutureTask<Boolean> result = new FutureTask<Boolean>(this)
+        {
+            protected void done()
+            {
+                if (hasGUI==false)
+                {
+                    completePendingSave(PendingSave.this);
+                    return;
+                }
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        completePendingSave(PendingSave.this);
+                    }
+                });
+            }
+        };
+        
+        PendingSave(MarkableLevelSnapshot _snapshot, File _journalFile, ArrayList<String> _journalRecords, LinkedHashMap<String, Markable> _savedChanges, boolean _savedDirtySinceJournal, int _savedGeneration)
         {
-            System.out.println(ex.getMessage());
+            snapshot = _snapshot;
+            journalFile = _journalFile;
+            journalRecords = _journalRecords;
+            journalEncoding = encoding;
+            savedChanges = _savedChanges;
+            savedDirtySinceJournal = _savedDirtySinceJournal;
+            savedGeneration = _savedGeneration;
+            hasGUI = currentDiscourse.getHasGUI();
         }
         
-        Set<String> allMarkableIDsSet = this.markableHash.keySet();
-        if (isVerbose()) System.err.println("Saving "+allMarkableIDsSet.size()+" markables");
-        Iterator<String> allMarkableIDs = allMarkableIDsSet.iterator();
-        Markable currentMarkable = null;        
-        while(allMarkableIDs.hasNext())
+        public Boolean call()
         {
-            currentMarkable = (Markable) markableHash.get(allMarkableIDs.next());
+            if (snapshot != null)
+            {
+                return Boolean.valueOf(MarkableFileWriter.save(snapshot));
+            }
             try
             {
-                fw.write(MarkableHelper.toXMLElement(currentMarkable, getCurrentAnnotationScheme())+"\n");
+                MarkableJournal.append(journalFile, journalEncoding, journalRecords);
             }
-            catch (java.io.IOException ex) { System.err.println("Error saving "+(currentMarkable.getID())); }
-        }        
-        try
+            catch (java.io.IOException ex)
+            {
+                System.err.println("Cannot write journal "+journalFile.getAbsolutePath()+": "+ex.getMessage());
+                return Boolean.FALSE;
+            }
+            return Boolean.TRUE;
+        }
+    }
+    
+    /** Returns the name of the journal file for the markable file of this level. */
+    private final String getJournalFileName()
+    {
+        return markableFileName+".journal";
+    }
+    
+    /** Records that markable (which has been stored on this level) was added or modified, for the next journal append. This is
+        called by Markable whenever its attributes or fragments change. Markables that are still being created are ignored. */
+    final void markableChanged(Markable markable)
+    {
+        if (markable.getOrdinal() == -1) return;
+        synchronized (journalChanges) { journalChanges.put(markable.getID(), markable); }
+    }
+    
+    private final void markableDeleted(Markable markable)
+    {
+        deletionCount++;
+        synchronized (journalChanges) { journalChanges.put(markable.getID(), null); }
+    }
+    
+    /** Takes the records for the changes recorded since the last save or append, and appends them to the journal on the 
+        auto-save thread. Returns false if the markable file has to be written instead, i.e. if the level has become dirty 
+        without recorded changes, or if an earlier append has failed. */
+    private final boolean appendToJournal()
+    {
+        PendingSave save = null;
+        synchronized (journalChanges)
+        {
+            if (journalFailed || journalUnreadable)
+            {
+                return false;
+            }
+            if (journalChanges.isEmpty())
+            {
+                return dirtySinceJournal==false;
+            }
+            if ((journalRecordCount+journalChanges.size())*JOURNAL_FRACTION > getMarkableCount())
+            {
+                // Rewrite the markable file, which also truncates the journal
+                return false;
+            }
+            journalRecordCount+=journalChanges.size();
+            save = new PendingSave(null, new File(getJournalFileName()), MarkableJournal.toRecords(journalChanges, getAttributeDictionary()),
+                    new LinkedHashMap<String, Markable>(journalChanges), dirtySinceJournal, dirtyGeneration);
+            journalChanges.clear();
+            dirtySinceJournal = false;
+        }
+        pendingSave.set(save);
+        autoSaveExecutor.execute(save.result);
+        return true;
+    }
+    
+    /** Applies the journal left by an earlier session (if any) to markableDOM, before markables are created from it. If 
+        anything was replayed, the level is set to dirty, so that the next save writes the markable file. */
+    private final void replayJournal()
+    {
+        if (journalReplayed || JOURNAL==false || markableDOM == null)
+        {
+            return;
+        }
+        journalReplayed = true;
+        File journalFile = new File(getJournalFileName());
+        if (journalFile.exists()==false)
+        {
+            return;
+        }
+        int applied = MarkableJournal.replay(journalFile, encoding, markableDOM);
+        if (applied == -1)
+        {
+            // Keep the journal out of the way of later saves, which would delete it, so that its edits can be recovered by hand
+            File corruptFile = new File(getJournalFileName()+".corrupt");
+            if (corruptFile.exists())
+            {
+                corruptFile = new File(getJournalFileName()+"."+System.currentTimeMillis()+".corrupt");
+            }
+            if (journalFile.renameTo(corruptFile)==false)
+            {
+                // Neither append to nor delete the journal then
+                synchronized (journalChanges) { journalUnreadable = true; }
+                corruptFile = journalFile;
+            }
+            final String message = "The auto-save journal of markable level "+getMarkableLevelName()+" could not be read, so changes\n"+
+                    "saved to it are missing from the level. The journal has been kept as\n"+corruptFile.getAbsolutePath();
+            System.err.println(message);
+            if (currentDiscourse != null && currentDiscourse.getHasGUI())
+            {
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        JOptionPane.showMessageDialog(null,message,"MMAX2: Auto-save journal problem",JOptionPane.WARNING_MESSAGE);
+                    }
+                });
+            }
+        }
+        else if (applied > 0)
         {
-            fw.write("</markables>");
-            fw.close();
+            System.err.println("Replayed "+applied+" journal entries for level "+getMarkableLevelName());
+            synchronized (journalChanges) { journalRecordCount = applied; }
+            setIsDirty(true, false);
         }
-        catch (java.io.IOException ex) { System.err.println(ex.getMessage()); }        
-        setIsDirty(false,false);        
+    }
+    
+    /** Writes the markable file if a journal is pending and nothing has changed since it was last appended to, so that the 
+        markable file equals what auto-save has stored. Otherwise, the journal is kept for replay. */
+    private final void compactJournal()
+    {
+        waitForPendingSave();
+        if (JOURNAL==false || getIsReadOnly() || markableFileName.equals("") || new File(getJournalFileName()).exists()==false)
+        {
+            return;
+        }
+        synchronized (journalChanges)
+        {
+            if (journalChanges.isEmpty()==false || dirtySinceJournal)
+            {
+                return;
+            }
+        }
+        // The level is being closed, so it is not edited any more, and must be saved before it is taken apart
+        saveMarkablesOnCurrentThread("", false);
     }
                
     
@@ -768,6 +1389,11 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
      *  adds it to this MarkableLevel's MarkableRelations list. */
     public final void initMarkableRelations(MMAX2 _mmax2)
     {
+        if (deferred)
+        {
+            markableRelationsRequested = true;
+            return;
+        }
         MMAX2Attribute[] currentAttributes = null;
         MMAX2Attribute currentAttribute = null;
         Markable currentMarkable = null;
@@ -993,44 +1619,156 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     public final void destroyDependentComponents()
     {
+        compactJournal();
         // Iterate over all Markables on this MarkableLevel
         Set allMarkableIDsSet = markableHash.keySet();
         Iterator it = allMarkableIDsSet.iterator();
         while(it.hasNext())
         {
-            ((Markable)markableHash.get(it.next())).destroyDependentComponents();
+            ((Markable)markableHash.get(it.next())).destroyDependentComponents();
+        }
+    
+        currentDiscourse = null;
+        markableDOM = null;
+        endedMarkablesAtDiscourseElement.clear();
+        endedMarkablesAtDiscourseElement = null;
+        startedMarkablesAtDiscourseElement.clear();
+        startedMarkablesAtDiscourseElement = null;
+        markableHash.clear();
+        markableHash = null;
+        markablesByOrdinal = null;
+        attributeIndex = null;
+        markablesAtDiscourseElement.clear();
+        markablesAtDiscourseElement = null;        
+        markablesAtDiscoursePosition = null;
+        renderer.destroyDependentComponents();
+        renderer = null;
+        moveUp.removeActionListener(this);
+        moveUp = null;
+        moveDown.removeActionListener(this);
+        moveDown = null;
+        updateCustomization.removeActionListener(this);
+        updateCustomization = null;
+        activatorComboBox.removeActionListener(this);
+        activatorComboBox = null;
+        switchCustomizations.removeActionListener(this);
+        switchCustomizations = null;
+        markableSetRelations.clear();
+        markableSetRelations = null;
+        markablePointerRelations.clear();
+        markablePointerRelations = null;
+        annotationscheme.destroyDependentComponents();
+        annotationscheme = null;
+//        System.gc();        
+    }
+    
+    final MarkableAttributeDictionary getAttributeDictionary()
+    {
+        MarkableAttributeDictionary result = attributeDictionary;
+        if (result == null)
+        {
+            synchronized (this)
+            {
+                result = attributeDictionary;
+                if (result == null)
+                {
+                    result = new MarkableAttributeDictionary(annotationscheme);
+                    attributeDictionary = result;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /** Returns a new markable element with id, span and the attributes with codes, which is not attached to the markable DOM. */
+    final Element createMarkableElement(String id, String span, int[] codes)
+    {
+        Element result = markableDOM.createElementNS(markableNameSpace,"markable");
+        result.setAttribute("id", id);
+        result.setAttribute("span", span);
+        MarkableAttributeDictionary dictionary = getAttributeDictionary();
+        for (int slot=0;slot<codes.length;slot++)
+        {
+            if (codes[slot] != 0)
+            {
+                result.setAttribute(dictionary.getName(slot), dictionary.decode(slot, codes[slot]));
+            }
+        }
+        return result;
+    }
+    
+    /** Returns the attribute index of this level, or null if it has not been built. */
+    final MarkableAttributeIndex getAttributeIndex()
+    {
+        return attributeIndex;
+    }
+    
+    /** Returns true if criterion can be answered from the attribute index, i.e. if it is on an attribute with atomic values. */
+    private final boolean isIndexable(MMAX2MatchingCriterion criterion)
+    {
+        String attributeName = criterion.getAttributeName();
+        if (annotationscheme == null || attributeName == null)
+        {
+            return false;
+        }
+        // Relation values are not compared as plain strings, so these are left to MarkableHelper
+        int type = annotationscheme.getAttributeTypeByAttributeName(attributeName);
+        return type != AttributeAPI.MARKABLE_SET && type != AttributeAPI.MARKABLE_POINTER;
+    }
+    
+    /** Returns the attribute index of this level, building it first if required. */
+    final MarkableAttributeIndex getOrCreateAttributeIndex()
+    {
+        if (deferred) { materialize(); }
+        synchronized (this)
+        {
+            if (attributeIndex == null)
+            {
+                attributeIndex = new MarkableAttributeIndex(this, getAttributeDictionary());
+            }
+            return attributeIndex;
+        }
+    }
+    
+    /** Returns those markables on this level that match criterion, by means of the attribute index. Returns null if the index 
+        cannot be used. */
+    private final ArrayList getIndexedMarkablesMatching(MMAX2MatchingCriterion criterion, boolean matchAll)
+    {
+        if (isIndexable(criterion)==false)
+        {
+            return null;
+        }
+        MarkableAttributeIndex index = getOrCreateAttributeIndex();
+        return index.getMarkables(index.getMatchingOrdinals(criterion.getAttributeName(), criterion, matchAll));
+    }
+    
+    /** Returns the ordinals in the attribute index (cf. getOrCreateAttributeIndex()) of the markables on this level that match 
+        criteria, combined by connector (MMAX2Constants.AND or MMAX2Constants.OR). For criterion z, MarkableHelper.matchesAll() is 
+        used if matchAll[z] is true, and MarkableHelper.matchesAny() otherwise. The results for single criteria are combined as 
+        bit sets, without creating lists of markables. Returns null if some criterion cannot be answered from the index. */
+    final BitSet getMatchingOrdinals(MMAX2MatchingCriterion[] criteria, boolean[] matchAll, int connector)
+    {
+        if (connector != MMAX2Constants.AND && connector != MMAX2Constants.OR)
+        {
+            return null;
+        }
+        for (int z=0;z<criteria.length;z++)
+        {
+            if (isIndexable(criteria[z])==false) return null;
         }
-    
-        currentDiscourse = null;
-        markableDOM = null;
-        endedMarkablesAtDiscourseElement.clear();
-        endedMarkablesAtDiscourseElement = null;
-        startedMarkablesAtDiscourseElement.clear();
-        startedMarkablesAtDiscourseElement = null;
-        markableHash.clear();
-        markableHash = null;
-        markablesAtDiscourseElement.clear();
-        markablesAtDiscourseElement = null;        
-        markablesAtDiscoursePosition = null;
-        renderer.destroyDependentComponents();
-        renderer = null;
-        moveUp.removeActionListener(this);
-        moveUp = null;
-        moveDown.removeActionListener(this);
-        moveDown = null;
-        updateCustomization.removeActionListener(this);
-        updateCustomization = null;
-        activatorComboBox.removeActionListener(this);
-        activatorComboBox = null;
-        switchCustomizations.removeActionListener(this);
-        switchCustomizations = null;
-        markableSetRelations.clear();
-        markableSetRelations = null;
-        markablePointerRelations.clear();
-        markablePointerRelations = null;
-        annotationscheme.destroyDependentComponents();
-        annotationscheme = null;
-//        System.gc();        
+        MarkableAttributeIndex index = getOrCreateAttributeIndex();
+        BitSet result = null;
+        for (int z=0;z<criteria.length;z++)
+        {
+            BitSet current = index.getMatchingOrdinals(criteria[z].getAttributeName(), criteria[z], matchAll[z]);
+            if (result == null) result = current;
+            else if (connector==MMAX2Constants.AND) result.and(current);
+            else result.or(current);
+            // No need to evaluate further criteria if nothing is left
+            if (connector==MMAX2Constants.AND && result.isEmpty()) break;
+        }
+        if (result == null) result = new BitSet();
+        return result;
     }
     
     public final MMAX2AnnotationScheme getCurrentAnnotationScheme()
@@ -1071,6 +1809,7 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
 
     public final int getMarkableCount()
     {
+        if (deferred) { return deferredMarkableCount; }
         return this.markableHash.size();
     }
     
@@ -1176,11 +1915,17 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     /** Used by MMAX query. */
     public final ArrayList getMarkablesMatchingAll(MMAX2MatchingCriterion criterion)
     {
+        if (deferred) { materialize(); }
         ArrayList resultList = new ArrayList();
         if (markableLevelName.equalsIgnoreCase("internal_basedata_representation")==false)
         {
+            ArrayList indexed = getIndexedMarkablesMatching(criterion, true);
+            if (indexed != null)
+            {
+                return indexed;
+            }
             Markable currentMarkable = null;
-            ArrayList list = new ArrayList(markableHash.values());
+            ArrayList list = getMarkables();
             for (int t=0;t<list.size();t++)
             {
                 currentMarkable = (Markable)list.get(t);
@@ -1209,11 +1954,17 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     /** Used by MMAX query. */
     public final ArrayList getMarkablesMatchingAny(MMAX2MatchingCriterion criterion)
     {        
+        if (deferred) { materialize(); }
         ArrayList resultList = new ArrayList();
         if (markableLevelName.equalsIgnoreCase("internal_basedata_representation")==false)
         {
+            ArrayList indexed = getIndexedMarkablesMatching(criterion, false);
+            if (indexed != null)
+            {
+                return indexed;
+            }
             Markable currentMarkable = null;
-            ArrayList list = new ArrayList(markableHash.values());
+            ArrayList list = getMarkables();
             for (int t=0;t<list.size();t++)
             {
                 currentMarkable = (Markable)list.get(t);
@@ -1241,14 +1992,22 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     }
    
     
+    /** Returns all markables on this level, in the order of their ordinals. */
     public final ArrayList getMarkables()
     {
-        return new ArrayList(markableHash.values());
+        if (deferred) { materialize(); }
+        ArrayList result = new ArrayList(markableHash.size());
+        for (int z=0;z<ordinalCount;z++)
+        {
+            if (markablesByOrdinal[z] != null) result.add(markablesByOrdinal[z]);
+        }
+        return result;
     }
 
     public final ArrayList getMarkables(Comparator comp)
     {
-        ArrayList temp =  new ArrayList(markableHash.values());
+        if (deferred) { materialize(); }
+        ArrayList temp =  getMarkables();
         if (comp != null)
         {
             Markable[] tempArray =  (Markable[])temp.toArray(new Markable[0]);;
@@ -1284,33 +2043,30 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     public final void updateMarkables()
     {        
+        // Deferred markables will be created from the updated base data anyway
+        if (deferred) { return; }
         startedMarkablesAtDiscourseElement = null;
-        startedMarkablesAtDiscourseElement = new HashMap();
+        startedMarkablesAtDiscourseElement = new HashMap<String, MarkableBucket>();
         endedMarkablesAtDiscourseElement = null;
-        endedMarkablesAtDiscourseElement = new HashMap();
+        endedMarkablesAtDiscourseElement = new HashMap<String, MarkableBucket>();
         
         markablesAtDiscourseElement=null;
-        markablesAtDiscourseElement=new HashMap();       
-        
-        NodeList allMarkableNodes = markableDOM.getElementsByTagName("markable");
-        Node currentMarkableNode = null;
-        int len = allMarkableNodes.getLength();
+        markablesAtDiscourseElement=new HashMap<String, MarkableBucket>();       
+        if (containmentTable != null)
+        {
+            containmentTable.clear();
+        }
         
-        String currentID = "";
         String currentSpan = "";
         
         Markable currentMarkable=null;
-        // Iterate over all Markable elements
-        for (int z=0;z<len;z++)
+        // Iterate over all Markables (markable elements are not kept after createMarkables())
+        Iterator<Markable> allMarkables = markableHash.values().iterator();
+        while (allMarkables.hasNext())
         {
-            // Get current markable element
-            currentMarkableNode = allMarkableNodes.item(z);
-            currentID = currentMarkableNode.getAttributes().getNamedItem("id").getNodeValue();            
-
-            currentMarkable = getMarkableByID(currentID);
-
+            currentMarkable = allMarkables.next();
             currentSpan = MarkableHelper.getSpan(currentMarkable);
-            currentMarkable.update(parseMarkableSpan(currentSpan, currentDiscourse.getWordDOM(),this));
+            currentMarkable.update(parseMarkableSpan(currentSpan,this));
         }                
     }
     
@@ -1322,6 +2078,7 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
      */
     public final int createMarkables()
     {        
+        replayJournal();
         boolean readOnlyAtStart=getIsReadOnly();        
         int maxIDNum = 0;
         boolean added = false;
@@ -1334,6 +2091,9 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
             Node currentMarkableNode = null;
             int len = allMarkableNodes.getLength();        
             markableHash = new HashMap<String, Markable>(len);            
+            markablesByOrdinal = new Markable[len];
+            ordinalCount = 0;
+            attributeIndex = null;
             String currentID = "";
             int currentIDNum = 0;
             String currentSpan = "";
@@ -1378,15 +2138,24 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
 
                 // Create new Markable object (not much will happen there)
                 // attributes hash has been normalized already. currentMarkableNode is still in the format read from the file. 
-                newMarkable = new Markable(currentMarkableNode, currentID, parseMarkableSpan(currentSpan,this.currentDiscourse.getWordDOM(),this), attributes,this);
+                newMarkable = new Markable(currentMarkableNode, currentID, parseMarkableSpan(currentSpan,this), attributes,this);
                 
                 // Create mapping of Markable to its ID
-                markableHash.put(currentID, newMarkable);
+                storeMarkable(newMarkable);
                 newMarkable = null;            
             }
+            // The markables hold their attributes now, so the markable elements are released. Only the empty root element is
+            // kept, as the factory for node representations (cf. createMarkableElement()).
+            Node root = markableDOM.getElementsByTagName("markables").item(0);
+            root.getParentNode().replaceChild(root.cloneNode(false), root);
         }  
-        else { markableHash = new HashMap<String, Markable>(); }
-        
+        else 
+        { 
+            markableHash = new HashMap<String, Markable>(); 
+            markablesByOrdinal = new Markable[0];
+            ordinalCount = 0;
+            attributeIndex = null; 
+        }
         if (added)
         {
             if (getCurrentDiscourse().getHasGUI())
@@ -1407,7 +2176,241 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     {
         currentDiscourse = _discourse;
     }
+
+    /** Registers this level without creating its markables, which is postponed until they are first needed, i.e. until the level
+        is set to active or visible, or until markables are retrieved from it (cf. materialize()). Returns the highest markable ID 
+        number on this level, which is read from the markable elements directly. */
+    public final int deferMarkableCreation()
+    {
+        replayJournal();
+        int maxIDNum = 0;
+        markableHash = new HashMap<String, Markable>();
+        markablesByOrdinal = new Markable[0];
+        ordinalCount = 0;
+        if (isDefined())
+        {
+            NodeList allMarkableNodes = markableDOM.getElementsByTagName("markable");
+            int len = allMarkableNodes.getLength();
+            for (int z=0;z<len;z++)
+            {
+                Node idNode = allMarkableNodes.item(z).getAttributes().getNamedItem("id");
+                if (idNode != null)
+                {
+                    int currentIDNum = MMAX2Utils.parseID(idNode.getNodeValue());
+                    if (currentIDNum > maxIDNum) maxIDNum = currentIDNum;
+                }
+            }
+            deferredMarkableCount = len;
+            deferred = true;
+        }
+        return maxIDNum;
+    }
+
+    public final boolean getIsDeferred()
+    {
+        return deferred;
+    }
+
+    /** Writes the properties of the markable file and the markables of this level to out, for a snapshot of the discourse 
+        (cf. MMAX2DiscourseSnapshot). Fragments are written as ranges in the base data index, and attribute names and values 
+        once per level, with markables referring to them by code. Markables are created first if they have been deferred. */
+    public final void writeSnapshot(DataOutputStream out) throws IOException
+    {
+        if (deferred) { materialize(); }
+        out.writeBoolean(isDefined());
+        if (isDefined()==false)
+        {
+            return;
+        }
+        DocumentType doctype = markableDOM.getDoctype();
+        out.writeBoolean(doctype != null);
+        if (doctype != null)
+        {
+            MMAX2DiscourseSnapshot.writeString(out, doctype.getPublicId());
+            MMAX2DiscourseSnapshot.writeString(out, doctype.getSystemId());
+        }
+        Node nameSpaceNode = markableDOM.getElementsByTagName("markables").item(0).getAttributes().getNamedItem("xmlns");
+        MMAX2DiscourseSnapshot.writeString(out, nameSpaceNode != null ? nameSpaceNode.getNodeValue() : null);
+        MMAX2DiscourseSnapshot.writeString(out, markableDOM.getInputEncoding());
+        
+        MarkableAttributeDictionary dictionary = getAttributeDictionary();
+        int slotCount = dictionary.size();
+        out.writeInt(slotCount);
+        for (int slot=0;slot<slotCount;slot++)
+        {
+            out.writeUTF(dictionary.getName(slot));
+            int codeCount = dictionary.getCodeCount(slot);
+            out.writeInt(codeCount);
+            for (int code=1;code<codeCount;code++)
+            {
+                out.writeUTF(dictionary.decode(slot, code));
+            }
+        }
+        
+        out.writeInt(markableHash.size());
+        for (int o=0;o<ordinalCount;o++)
+        {
+            Markable markable = markablesByOrdinal[o];
+            if (markable == null) continue;
+            out.writeUTF(markable.getID());
+            int[] ranges = markable.getSharedFragmentRanges();
+            out.writeInt(ranges.length);
+            for (int r=0;r<ranges.length;r++)
+            {
+                out.writeInt(ranges[r]);
+            }
+            String[][] explicitFragments = markable.getExplicitFragments();
+            int explicitCount = 0;
+            for (int f=0;explicitFragments != null && f<explicitFragments.length;f++)
+            {
+                if (explicitFragments[f] != null) explicitCount++;
+            }
+            out.writeInt(explicitCount);
+            for (int f=0;explicitCount > 0 && f<explicitFragments.length;f++)
+            {
+                if (explicitFragments[f] == null) continue;
+                out.writeInt(f);
+                out.writeInt(explicitFragments[f].length);
+                for (int z=0;z<explicitFragments[f].length;z++)
+                {
+                    out.writeUTF(explicitFragments[f][z]);
+                }
+            }
+            int[] codes = markable.getAttributeCodes();
+            int definedCount = 0;
+            for (int slot=0;slot<codes.length;slot++)
+            {
+                if (codes[slot] != 0) definedCount++;
+            }
+            out.writeInt(definedCount);
+            for (int slot=0;slot<codes.length;slot++)
+            {
+                if (codes[slot] == 0) continue;
+                out.writeInt(slot);
+                out.writeInt(codes[slot]);
+            }
+        }
+    }
     
+    /** Reads the properties of a markable file written by writeSnapshot() from in, and returns a markable DOM with the same 
+        DOCTYPE, name space and encoding, but without markables, or null if the level had no markable DOM. The result can be
+        passed to the constructor of a MarkableLevel, whose markables are then created with createMarkables(in). */
+    public static final DocumentImpl readSnapshotDOM(DataInputStream in) throws IOException
+    {
+        if (in.readBoolean()==false)
+        {
+            return null;
+        }
+        DocumentImpl result = new DocumentImpl();
+        if (in.readBoolean())
+        {
+            String publicId = MMAX2DiscourseSnapshot.readString(in);
+            String systemId = MMAX2DiscourseSnapshot.readString(in);
+            result.appendChild(result.createDocumentType("markables", publicId, systemId));
+        }
+        String nameSpace = MMAX2DiscourseSnapshot.readString(in);
+        String inputEncoding = MMAX2DiscourseSnapshot.readString(in);
+        Element root = result.createElement("markables");
+        if (nameSpace != null)
+        {
+            root.setAttribute("xmlns", nameSpace);
+        }
+        result.appendChild(root);
+        result.setInputEncoding(inputEncoding);
+        return result;
+    }
+    
+    /** Creates the markables on this level from the snapshot written by writeSnapshot(), instead of from the markable DOM, and 
+        returns the highest markable ID number on this level. in must be positioned after the part read by readSnapshotDOM(). 
+        The snapshot must have been written for the current base data. */
+    public final int createMarkables(DataInputStream in) throws IOException
+    {
+        replayJournal();
+        int maxIDNum = 0;
+        ordinalCount = 0;
+        attributeIndex = null;
+        if (isDefined()==false)
+        {
+            markableHash = new HashMap<String, Markable>();
+            markablesByOrdinal = new Markable[0];
+            return maxIDNum;
+        }
+        
+        // Map the codes in the snapshot to those of the dictionary of this level, which are normally the same
+        MarkableAttributeDictionary dictionary = getAttributeDictionary();
+        int slotCount = in.readInt();
+        int[] slots = new int[slotCount];
+        int[][] codes = new int[slotCount][];
+        for (int s=0;s<slotCount;s++)
+        {
+            slots[s] = dictionary.getOrAddSlot(in.readUTF());
+            codes[s] = new int[in.readInt()];
+            for (int c=1;c<codes[s].length;c++)
+            {
+                codes[s][c] = dictionary.encode(slots[s], in.readUTF());
+            }
+        }
+        
+        int len = in.readInt();
+        markableHash = new HashMap<String, Markable>(len);
+        markablesByOrdinal = new Markable[len];
+        for (int m=0;m<len;m++)
+        {
+            String id = in.readUTF();
+            int[] ranges = new int[in.readInt()];
+            for (int r=0;r<ranges.length;r++)
+            {
+                ranges[r] = in.readInt();
+            }
+            String[][] explicitFragments = null;
+            int explicitCount = in.readInt();
+            for (int e=0;e<explicitCount;e++)
+            {
+                if (explicitFragments == null) { explicitFragments = new String[ranges.length/2][]; }
+                int f = in.readInt();
+                String[] fragment = new String[in.readInt()];
+                for (int z=0;z<fragment.length;z++)
+                {
+                    fragment[z] = in.readUTF();
+                }
+                explicitFragments[f] = fragment;
+            }
+            int[] markableCodes = new int[dictionary.size()];
+            int definedCount = in.readInt();
+            for (int d=0;d<definedCount;d++)
+            {
+                int s = in.readInt();
+                markableCodes[slots[s]] = codes[s][in.readInt()];
+            }
+            int currentIDNum = MMAX2Utils.parseID(id);
+            if (currentIDNum > maxIDNum) maxIDNum = currentIDNum;
+            storeMarkable(new Markable(id, ranges, explicitFragments, markableCodes, this));
+        }
+        return maxIDNum;
+    }
+
+    /** Creates the markables on this level if this has been deferred. If the style sheet has been applied already, 
+        the discourse position mappings and display positions of the new markables are created as well, and markable relations 
+        are initialized if this had been requested in the meantime. */
+    public final synchronized void materialize()
+    {
+        if (deferred == false) { return; }
+        deferred = false;
+        if (isVerbose()) { System.err.println("Creating deferred markables on level "+markableLevelName); }
+        createMarkables();
+        deferredMarkableCount = 0;
+        if (markablesAtDiscoursePosition != null)
+        {
+            createDiscoursePositionToMarkableMapping();
+            setMarkableDisplayPositions();
+        }
+        if (markableRelationsRequested)
+        {
+            markableRelationsRequested = false;
+            initMarkableRelations(currentDiscourse.getMMAX2());
+        }
+    }
+
     public MMAX2Discourse getCurrentDiscourse()
     {
         return currentDiscourse;
@@ -1415,9 +2418,42 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     public Markable getMarkableByID(String markableId)
     {
+        if (deferred) { materialize(); }
         return (Markable) this.markableHash.get(markableId);
     }
 
+    /** Adds markable to the markables of this level under its ID, and assigns it the next free ordinal. */
+    private final void storeMarkable(Markable markable)
+    {
+        markableHash.put(markable.getID(), markable);
+        if (ordinalCount == markablesByOrdinal.length)
+        {
+            markablesByOrdinal = Arrays.copyOf(markablesByOrdinal, Math.max(16, ordinalCount*2));
+        }
+        markable.setOrdinal(ordinalCount);
+        markablesByOrdinal[ordinalCount++] = markable;
+        if (attributeIndex != null)
+        {
+            attributeIndex.add(markable);
+        }
+    }
+    
+    /** Returns the markable with ordinal on this level, or null if there is none (any more). */
+    public final Markable getMarkableByOrdinal(int ordinal)
+    {
+        if (deferred) { materialize(); }
+        if (ordinal < 0 || ordinal >= ordinalCount) return null;
+        return markablesByOrdinal[ordinal];
+    }
+    
+    /** Returns the number of ordinals assigned on this level, i.e. an upper bound (exclusive) for the ordinal of any markable
+        on it. */
+    public final int getOrdinalCount()
+    {
+        if (deferred) { materialize(); }
+        return ordinalCount;
+    }
+
     public final Markable[] getAllMarkablesStartingWith(MMAX2DiscourseElementSequence sequence)
     {       
         MMAX2DiscourseElement[] elements = sequence.getContent();
@@ -1425,7 +2461,7 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
         // Get disc pos of last element in sequence
         int lastDiscPosInElements = elements[elements.length-1].getDiscoursePosition();
         // Get all markables started by the first DE in parameter list
-        Markable[] started = getAllMarkablesStartedByDiscourseElement(elements[0].getID());
+        Markable[] started = getMarkablesStartedByDiscourseElementView(elements[0].getID());
         // Iterate over all markables started at first DE
         for (int z=0;z<started.length;z++)
         {
@@ -1467,17 +2503,25 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     /** This method returns an array of those Markable objects associated with discourseElement Id, or empty array if none. 
         Since this is on MarkableLayer level, no distinction is made wrt to active/inactive. 
-        The retrieved Array comes from a hash, so this method is efficient (a little less so if sort==true,
-        which causes the markables to be sorted in discourse order, shorter before longer ones). */
+        The retrieved Array comes from a hash, so this method is efficient (if sort==true, the markables are returned in 
+        discourse order, shorter before longer ones; the bucket is only sorted again if it has changed in between). 
+        The returned array is a copy, which the caller may modify. */
     public Markable[] getAllMarkablesAtDiscourseElement(String discourseElementId, boolean sort)
     {
-        Markable[] result = (Markable[]) markablesAtDiscourseElement.get(discourseElementId);
-        if (result == null) result = new Markable[0];
+        return getMarkablesAtDiscourseElementView(discourseElementId, sort).clone();
+    }
+
+    /** Like getAllMarkablesAtDiscourseElement(), but returns the shared view of the bucket, which must not be modified. */
+    final Markable[] getMarkablesAtDiscourseElementView(String discourseElementId, boolean sort)
+    {
+        if (deferred) { materialize(); }
+        MarkableBucket bucket = markablesAtDiscourseElement.get(discourseElementId);
+        if (bucket == null) return MarkableBucket.EMPTY;
         if (sort)
         {
-            Arrays.sort(result,getCurrentDiscourse().DISCOURSEORDERCOMP);
+            return bucket.getSortedView(MMAX2Discourse.DISCOURSEORDERCOMP);
         }
-        return result;
+        return bucket.getView();
     }
 
     
@@ -1487,13 +2531,10 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
         which causes the markables to be sorted in discourse order, shorter after longer ones). */
     public ArrayList getMarkablesAtDiscourseElementID(String discourseElementId, Comparator comp)
     {
-        Markable[] result = (Markable[]) markablesAtDiscourseElement.get(discourseElementId);
-        if (result == null) result = new Markable[0];       
-        if (comp != null)
-        {
-            Arrays.sort(result,comp);
-        }
-        return new ArrayList(java.util.Arrays.asList(result));
+        if (deferred) { materialize(); }
+        MarkableBucket bucket = markablesAtDiscourseElement.get(discourseElementId);
+        if (bucket == null) return new ArrayList();
+        return new ArrayList(java.util.Arrays.asList(bucket.getSortedView(comp)));
     }
     
 
@@ -1504,33 +2545,32 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     public ArrayList getMarkablesAtDiscoursePosition(int discPos, Comparator comp)
     {
         String discourseElementId = getCurrentDiscourse().getDiscourseElementIDAtDiscoursePosition(discPos);
-        Markable[] result = (Markable[]) markablesAtDiscourseElement.get(discourseElementId);
-        if (result == null) result = new Markable[0];       
-        if (comp != null)
-        {
-            Arrays.sort(result,comp);
-        }
-        return new ArrayList(java.util.Arrays.asList(result));
+        return getMarkablesAtDiscourseElementID(discourseElementId, comp);
     }
     
     
     /** This method returns an array of those Markable objects started at discourseElement Id, or empty array if none. 
-        Since this is on MarkableLayer level, no distinction is made wrt to active/inactive. */
+        Since this is on MarkableLayer level, no distinction is made wrt to active/inactive. 
+        The returned array is a copy, which the caller may modify. */
     public Markable[] getAllMarkablesStartedByDiscourseElement(String discourseElementId)
     {
-        // TODO: Why not sort here??
-        Markable[] result = null;
-    	//System.err.println(discourseElementId);
-        result =  (Markable[]) startedMarkablesAtDiscourseElement.get(discourseElementId);
-        if (result == null) result = new Markable[0];
-        return result;
+        return getMarkablesStartedByDiscourseElementView(discourseElementId).clone();
+    }
+
+    /** Like getAllMarkablesStartedByDiscourseElement(), but returns the shared view of the bucket, which must not be modified. */
+    final Markable[] getMarkablesStartedByDiscourseElementView(String discourseElementId)
+    {
+        if (deferred) { materialize(); }
+        MarkableBucket bucket = startedMarkablesAtDiscourseElement.get(discourseElementId);
+        if (bucket == null) return MarkableBucket.EMPTY;
+        return bucket.getView();
     }
     
     public Markable getSingleMarkableExactlyAtDiscourseElement(String discourseElementId)
     {
         Markable result=null;
-        Markable[] started = getAllMarkablesStartedByDiscourseElement(discourseElementId);
-        Markable[] ended = getAllMarkablesEndedByDiscourseElement(discourseElementId);
+        Markable[] started = getMarkablesStartedByDiscourseElementView(discourseElementId);
+        Markable[] ended = getMarkablesEndedByDiscourseElementView(discourseElementId);
         ArrayList startedAsList = new ArrayList(java.util.Arrays.asList(started));
         startedAsList.retainAll(java.util.Arrays.asList(ended));
         if (startedAsList.size()==1)
@@ -1541,43 +2581,45 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     }
     
     /** This method returns an array of those Markable objects ended at discourseElement Id, or empty array if none. 
-        Since this is on MarkableLayer level, no distinction is made wrt to active/inactive. */
+        Since this is on MarkableLayer level, no distinction is made wrt to active/inactive. 
+        The markables are returned in ENDCOMP order (IDCOMP order among equal ones). The returned array is a copy, which the 
+        caller may modify. */
     public Markable[] getAllMarkablesEndedByDiscourseElement(String discourseElementId)
     {
-        Markable[] result = null;
-        result = (Markable[]) endedMarkablesAtDiscourseElement.get(discourseElementId);
-        if (result == null) 
-        {
-            result = new Markable[0]; // un-uncommented Oct. 17
-        }
-        else
-        {
-            java.util.Arrays.sort(result,currentDiscourse.IDCOMP);
-            java.util.Arrays.sort(result,currentDiscourse.ENDCOMP);
-        }
-        return result;
+        return getMarkablesEndedByDiscourseElementView(discourseElementId).clone();
+    }
+
+    /** Like getAllMarkablesEndedByDiscourseElement(), but returns the shared view of the bucket, which must not be modified. */
+    final Markable[] getMarkablesEndedByDiscourseElementView(String discourseElementId)
+    {
+        if (deferred) { materialize(); }
+        MarkableBucket bucket = endedMarkablesAtDiscourseElement.get(discourseElementId);
+        if (bucket == null) return MarkableBucket.EMPTY; // un-uncommented Oct. 17
+        return bucket.getSortedView(ENDED_ORDER);
     }
     
     /** Main method for layer-wise retrieval of Markables from discourse positions. Returns empty Markable array if no 
         Markables are found. Since this is on MarkableLayer level, no distinction is made wrt to active/inactive. */
     public Markable[] getAllMarkablesAtDiscoursePosition(int pos)
     {
-        return markablesAtDiscoursePosition[pos];
+        if (deferred) { materialize(); }
+        Markable[] view = markablesAtDiscoursePosition[pos];
+        // The entries are the shared views of the buckets, so hand out a copy (zero-length arrays cannot be modified anyway)
+        return (view.length == 0 ? view : view.clone());
     }
     
     /** This method updates a NodeSet of those Markables at the current MarkableLayer beginning at discourseElementId, with
         longer Markables before shorter ones. Since this is on MarkableLayer level, no distinction is made wrt to active/inactive. */
     public final void getAllStartedMarkablesAsNodes(String discourseElementId, NodeSet result)
     {                       
-        // Get Array of Markables, or null if none 
-//        long time = System.currentTimeMillis();
-        Markable[] temp = getAllMarkablesStartedByDiscourseElement(discourseElementId);        
-        if (temp != null)
-        {
-            // Sort markables in discourse position order, 
-            // with longer before shorter ones (for embedding visualization) 
-            // TODO: Sort only once!
-            Arrays.sort(temp,getCurrentDiscourse().STARTCOMP);
+        if (deferred) { materialize(); }
+        MarkableBucket bucket = startedMarkablesAtDiscourseElement.get(discourseElementId);
+        if (bucket != null)
+        {
+            // Get markables in discourse position order, 
+            // with longer before shorter ones (for embedding visualization).
+            // The bucket is sorted only once, unless it is modified in between.
+            Markable[] temp = bucket.getSortedView(MMAX2Discourse.STARTCOMP);
             // Add markables to node list in ordering sequence      
             int len = temp.length;
             for (int o=0;o<len;o++)
@@ -1592,14 +2634,14 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
         shorter Markables before longer ones. Since this is on MarkableLayer level, no distinction is made wrt to active/inactive. */
     public final void getAllEndedMarkablesAsNodes(String discourseElementId, NodeSet result)
     {                
-        // Get Array of Markables, or null if none 
-        Markable[] temp = getAllMarkablesEndedByDiscourseElement(discourseElementId);
-        if (temp != null)
-        {
-            // Sort markables in rev discourse position order, 
-            // with shorter before longer ones (for embedding visualization) 
-            // TODO: Sort only once!
-            Arrays.sort(temp,getCurrentDiscourse().ENDCOMP);
+        if (deferred) { materialize(); }
+        MarkableBucket bucket = endedMarkablesAtDiscourseElement.get(discourseElementId);
+        if (bucket != null)
+        {
+            // Get markables in rev discourse position order, 
+            // with shorter before longer ones (for embedding visualization).
+            // ENDED_ORDER is ENDCOMP order, so the bucket shares its sorting with getAllMarkablesEndedByDiscourseElement.
+            Markable[] temp = bucket.getSortedView(ENDED_ORDER);
             // Add markables to node list in ordering sequence
             int len = temp.length;
             for (int o=0;o<len;o++)
@@ -1612,126 +2654,75 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
        
     public final void unregisterMarkable(Markable unregisteree)
     {
-        String frags[][] = unregisteree.getFragments();
-        String[] currentFragment = null;
-        int singleFragments = frags.length;
+        int singleFragments = unregisteree.getFragmentCount();
         for (int z=0;z<singleFragments;z++)
         {
-            currentFragment = frags[z];
+            int fragmentSize = unregisteree.getFragmentSize(z);
+            if (fragmentSize == 0) continue;
             // Inform the current layer that Markable unregisteree does no longer start at its start position
-            unregisterMarkableAtStartOfFragment(unregisteree, currentFragment[0]);
+            unregisterMarkableAtStartOfFragment(unregisteree, unregisteree.getFragmentElementID(z, 0));
             // Inform the current layer that Markable unregisteree does no longer end at its end position
-            unregisterMarkableAtEndOfFragment(unregisteree, currentFragment[currentFragment.length-1]);
-            for (int o=0;o<currentFragment.length;o++)
+            unregisterMarkableAtEndOfFragment(unregisteree, unregisteree.getFragmentElementID(z, fragmentSize-1));
+            for (int o=0;o<fragmentSize;o++)
             {
                 // Remove mapping from each of unregisterees DEs. unregisteree will have NO mappings afterwards!!
-                unregisterMarkableAtDiscourseElement(unregisteree, currentFragment[o]);
+                unregisterMarkableAtDiscourseElement(unregisteree, unregisteree.getFragmentElementID(z, o));
             }
         }
     }
     
     public final void unregisterMarkableAtDiscourseElement(Markable unregisteree, String de)
     {
-        /** Get array of those markables associated as with discourseElement de. */
-        Markable[] markables = (Markable[]) getAllMarkablesAtDiscourseElement(de,false);
-        /** Create new array with one element less */
-        Markable[] newMapping = new Markable[markables.length-1];
-        int filler=0;
-        // Iterate over all markables still associated with de
-        for (int u=0;u<markables.length;u++)
-        {
-            if (markables[u]==unregisteree)
-            {
-                filler=1;
-                continue;
-            }
-            newMapping[u-filler]=markables[u];
-        }        
-        markablesAtDiscourseElement.remove(de);        
-        if (newMapping.length > 0)
-        {
-            markablesAtDiscourseElement.put(de,newMapping);                 
-        }
+        removeFromBucket(markablesAtDiscourseElement, de, unregisteree);
+        updateContainment(de);
         updateDiscoursePositionToMarkableMapping(de);
     }
     
     public final void unregisterMarkableAtStartOfFragment(Markable unregisteree, String de)
     {
-        /** Get array of those markables associated as starting with discourseElement de. */
-        Markable[] markables = (Markable[]) getAllMarkablesStartedByDiscourseElement(de);                
-        
-        /** Create new array with one element less */
-        Markable[] newMapping = new Markable[markables.length-1];
-        int filler=0;
-        // Iterate over all markables still associated with de
-        for (int u=0;u<markables.length;u++)
-        {
-            if (markables[u]==unregisteree)
-            {
-                filler=1;
-                continue;
-            }
-            newMapping[u-filler]=markables[u];
-        }        
-        startedMarkablesAtDiscourseElement.remove(de);        
-        if (newMapping.length > 0)
-        {
-            startedMarkablesAtDiscourseElement.put(de,newMapping);                 
-        }
+        removeFromBucket(startedMarkablesAtDiscourseElement, de, unregisteree);
+        updateContainment(de);
     }
     
     public final void unregisterMarkableAtEndOfFragment(Markable unregisteree, String de)
     {
-        /** Get array of those markables associated as ending with discourseElement de. */
-        Markable[] markables = (Markable[]) getAllMarkablesEndedByDiscourseElement(de);
-        /** Create new array with one element less */
-        Markable[] newMapping = new Markable[markables.length-1];
-        int filler=0;
-        // Iterate over all markables still associated with de
-        for (int u=0;u<markables.length;u++)
+        removeFromBucket(endedMarkablesAtDiscourseElement, de, unregisteree);
+        updateContainment(de);
+    }
+    
+    /** Removes markable from the bucket for de in buckets, and removes the bucket itself if it becomes empty. */
+    private static final void removeFromBucket(HashMap<String, MarkableBucket> buckets, String de, Markable markable)
+    {
+        MarkableBucket bucket = buckets.get(de);
+        if (bucket != null)
         {
-            if (markables[u]==unregisteree)
+            bucket.remove(markable);
+            if (bucket.size()==0)
             {
-                filler=1;
-                continue;
+                buckets.remove(de);
             }
-            newMapping[u-filler]=markables[u];
-        }        
-        endedMarkablesAtDiscourseElement.remove(de);        
-        if (newMapping.length > 0)
-        {
-            endedMarkablesAtDiscourseElement.put(de,newMapping);                 
         }
     }
     
+    /** Adds markable to the bucket for de in buckets, creating the bucket if required. */
+    private static final void addToBucket(HashMap<String, MarkableBucket> buckets, String de, Markable markable)
+    {
+        MarkableBucket bucket = buckets.get(de);
+        if (bucket == null)
+        {
+            bucket = new MarkableBucket();
+            buckets.put(de,bucket);
+        }
+        bucket.add(markable);
+    }
     
     /** This method informs the current layer that Markable markable starts at DiscourseElement id. 
         It is called by the Markable constructor upon Markable creation. It has to be executed BEFORE style sheet application,
         because the method getMarkablesStartedByDiscourseElement(id) is required during style sheet execution. */
     public final void registerMarkableAtStartOfFragment(String discourseElementId, Markable markable)
     {        
-    	//System.err.println(discourseElementId);
-    	
-        /** Get array of those markables already associated as starting with discourseElement Id, or null. */
-        Markable[] markables = (Markable[]) getAllMarkablesStartedByDiscourseElement(discourseElementId);
-        Markable[] mapping = null;
-        if (markables == null)
-        {
-            // There has not yet been any markable associated as starting with this discourseElement Id
-            // So create new mapping            
-            mapping = new Markable[1];
-            mapping[0] = markable;
-        }
-        else
-        {
-            // There is already a Markable associated as starting with this discourseElement Id
-            // Create new Array with len + 1
-            mapping = new Markable[markables.length+1];
-            System.arraycopy(markables,0,mapping,0,markables.length);
-            mapping[markables.length] = markable;
-            this.startedMarkablesAtDiscourseElement.remove(discourseElementId);
-        }
-        this.startedMarkablesAtDiscourseElement.put(discourseElementId,mapping);                 
+        addToBucket(startedMarkablesAtDiscourseElement, discourseElementId, markable);
+        updateContainment(discourseElementId);
     }    
 
     /** This method informs the current layer that Markable markable ends at DiscourseElement id. 
@@ -1739,55 +2730,19 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
         because the method getMarkablesEndedByDiscourseElement(id) is required during style sheet execution. */    
     public final void registerMarkableAtEndOfFragment(String discourseElementId, Markable markable)
     {
-        /** Get array of those markables already associated as ending with discourseElement Id, or null. */
-        Markable[] markables = (Markable[]) getAllMarkablesEndedByDiscourseElement(discourseElementId);
-        Markable[] mapping = null;
-        if (markables == null)
-        {
-            // There has not yet been any markable associated as ending with this discourseElement Id
-            // So create new mapping            
-            mapping = new Markable[1];
-            mapping[0] = markable;
-        }
-        else
-        {
-            // There is already a Markable associated as ending with this discourseElement Id
-            // Create new Array with len + 1
-            mapping = new Markable[markables.length+1];
-            System.arraycopy(markables,0,mapping,0,markables.length);
-            mapping[markables.length] = markable;
-            endedMarkablesAtDiscourseElement.remove(discourseElementId);
-        }
-        endedMarkablesAtDiscourseElement.put(discourseElementId,mapping);                 
+        addToBucket(endedMarkablesAtDiscourseElement, discourseElementId, markable);
+        updateContainment(discourseElementId);
     }    
     
     /** This method is called by each Markable constructor and updates this.markablesAtDiscourseElement to reflect that Markable
-        markable is associated with the DE with ID discourseElementId. */
+        markable is associated with the DE with ID discourseElementId. Buckets grow in amortised constant time, and are only
+        sorted when they are retrieved in sorted order. */
     public final void registerMarkableAtDiscourseElement(String discourseElementId, Markable markable)
     {
-        /** Get array of those markables already associated with discourseElement Id, or null. */
-        Markable[] markables = (Markable[]) getAllMarkablesAtDiscourseElement(discourseElementId,false);
-        Markable[] mapping = null;
-        if (markables == null)
-        {
-            // There has not yet been any markable associated with this discourseElement Id
-            // So create new mapping            
-            mapping = new Markable[1];
-            mapping[0] = markable;
-        }
-        else
-        {
-            // There is already a Markable associated with this discourseElement Id
-            // Create new Array with len + 1
-            mapping = new Markable[markables.length+1];
-            System.arraycopy(markables,0,mapping,0,markables.length);
-            mapping[markables.length] = markable;
-            markablesAtDiscourseElement.remove(discourseElementId);
-        }
-        markablesAtDiscourseElement.put(discourseElementId,mapping);                    
+        addToBucket(markablesAtDiscourseElement, discourseElementId, markable);
+        updateContainment(discourseElementId);
     }
     
-    
     /** This method sets for all Markables on this level the fields displayStartPosition and displayEndPosition. */
     public final void setMarkableDisplayPositions()
     {
@@ -1830,7 +2785,9 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     public final void createDiscoursePositionToMarkableMapping()
     {
         //markablesAtDiscoursePosition = new Markable[this.getCurrentDiscourse().getTotalNumberOfDiscourseElements()][0];
-    	markablesAtDiscoursePosition = new Markable[getCurrentDiscourse().getDiscourseElementCount()][0];
+    	markablesAtDiscoursePosition = new Markable[getCurrentDiscourse().getDiscourseElementCount()][];
+        // Positions without markables share one empty array
+        Arrays.fill(markablesAtDiscoursePosition, MarkableBucket.EMPTY);
         int tempDiscPos = 0;
         String tempDE = "";
         /** Get array of all discourse element IDs this MarkableLayer has markables on. */
@@ -1844,7 +2801,7 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
             tempDiscPos = this.getCurrentDiscourse().getDiscoursePositionFromDiscourseElementID(tempDE);
             if (tempDiscPos != -1)
             {            
-                this.markablesAtDiscoursePosition[tempDiscPos] = this.getAllMarkablesAtDiscourseElement(tempDE, true);            
+                this.markablesAtDiscoursePosition[tempDiscPos] = this.getMarkablesAtDiscourseElementView(tempDE, true);            
             }
         }                
     }
@@ -1865,7 +2822,7 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     public final void updateDiscoursePositionToMarkableMapping(String tempDE)
     {
         int tempDiscPos = getCurrentDiscourse().getDiscoursePositionFromDiscourseElementID(tempDE);
-        markablesAtDiscoursePosition[tempDiscPos] = getAllMarkablesAtDiscourseElement(tempDE, true);            
+        markablesAtDiscoursePosition[tempDiscPos] = getMarkablesAtDiscourseElementView(tempDE, true);            
     }
     
     protected final void updateNameLabelText()
@@ -2019,6 +2976,7 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     public final void setActive()
     {
+        if (deferred) { materialize(); }
         activatorComboBox.removeActionListener(this);
         active = true;
         System.err.println("Layer "+markableLevelName+" has been set to active");
@@ -2056,6 +3014,7 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     
     public final void setVisible()
     {
+        if (deferred) { materialize(); }
         activatorComboBox.removeActionListener(this);
         active = false;
         System.err.println("Layer "+markableLevelName+" has been set to visible!");
@@ -2618,171 +3577,67 @@ public class MarkableLevel implements java.awt.event.ActionListener, MarkableLev
     */
     /** This method parses the value of a span attribute and returns an Array with one Array per fragment. 
         Spans of the form word_x..word_y will be expanded to include all intermediate ids.
-        Note: This works be retrieving the first element in the span and iterating until the last
-        element in the span is found. That means that this does not assume the numerical ID parts to
-        be integers. */
-    private final static String[][] parseMarkableSpan(String span, DocumentImpl dom, MarkableLevel _level)
-    {
-        String currentspan="";
-        ArrayList spanlist = new ArrayList();
-        String[] fragArray= null;
+        Note: Fragments are expanded using the base data index of the current discourse, which lists all base data element
+        IDs in document order. That means that this does not assume the numerical ID parts to be integers. */
+    private final static String[][] parseMarkableSpan(String span, MarkableLevel _level)
+    {
+        MMAX2BasedataIndex index = _level.getCurrentDiscourse().getBasedataIndex();
+        ArrayList<String[]> spanlist = new ArrayList<String[]>();
 
         /* Get overall length of span attribute */
         int spanlen = span.length();
-
-        /** Iterate over entire span String */
-        for (int i=0;i<spanlen;i++)
+        int fragmentStart = 0;
+        /** Iterate over entire span String, from one span separator (i.e. ,) to the next */
+        while (true)
         {
-            /** Move to next span separator (i.e. ,) */
-            if(span.charAt(i) != ',')
+            int fragmentEnd = span.indexOf(',', fragmentStart);
+            if (fragmentEnd == -1)
             {
-                currentspan=currentspan+span.charAt(i);
-                continue;
+                fragmentEnd = spanlen;
             }
-            currentspan.trim();
-            fragArray=parseMarkableSpanFragmentToArray(currentspan, dom, _level);
-            spanlist.add(fragArray);
-            currentspan="";
-            fragArray=null;
-        }// for
-        
-        currentspan.trim();
-        fragArray=parseMarkableSpanFragmentToArray(currentspan,dom,_level);
-        spanlist.add(fragArray);
-        currentspan="";
-        fragArray=null;
+            spanlist.add(parseMarkableSpanFragmentToArray(span.substring(fragmentStart, fragmentEnd).trim(), index, _level));
+            if (fragmentEnd == spanlen)
+            {
+                break;
+            }
+            fragmentStart = fragmentEnd+1;
+        }
         
-        return (String[][]) spanlist.toArray(new String[1][1]);
+        return spanlist.toArray(new String[spanlist.size()][]);
     }
     
 
     
     /** This method parses the value of a span fragment (either word_1..word_4 or word_3) and returns an array of all elements.
-        Spans of the form word_x..word_y are expanded to include all intermediate ids. 
-        Note: This works be retrieving the first element in the span and iterating until the last
-        element in the span is found. That means that this does not assume the numerical ID parts to
-        be integers.*/
-    private final static String[] parseMarkableSpanFragmentToArray(String span, DocumentImpl dom, MarkableLevel _level)
+        Spans of the form word_x..word_y are expanded to include all intermediate ids, by slicing the ID array of index from
+        the position of word_x up to word_y (or up to the last element whose numerical ID is not greater than that of word_y,
+        if word_y does not exist). */
+    private final static String[] parseMarkableSpanFragmentToArray(String span, MMAX2BasedataIndex index, MarkableLevel _level)
     {        
-	String firstIDString;
-	String lastIDString;
-
-//	System.err.println(span);
-	
-        // Create list to receive intermediate result
-	ArrayList newWordsIDList = new ArrayList();
-
-	if (span.indexOf("..") == -1)
-	{
-            /* No .. found, so span is one element only */
-            newWordsIDList.add(span);
-	}
-        else
-        {            
-            /* Extract leftmost id string from span */
-            firstIDString=span.substring(0,span.indexOf(".."));
-            /* Extract rightmost id string from span */
-            lastIDString=span.substring(span.lastIndexOf("..") + 2);
-
-            double lastIDValue = Double.parseDouble(lastIDString.substring(lastIDString.indexOf("_")+1));
-            // Get first element in span  
-            Node currentNode = getWordNodeOrClosestSuccessor(dom, firstIDString);
-            
-            
-            if (currentNode == null)
-            {                
-                String message = "A markable on level "+_level.getMarkableLevelName()+" references an element with id "+firstIDString+",\n";
-                message = message + "but an element with ID "+firstIDString+" could not be found!\n";
-                message = message + "This is a serious error, and might be caused by a missing DTD declaration in the word file.";
-                JOptionPane.showMessageDialog(null,message,"ID not found !",JOptionPane.ERROR_MESSAGE);
-                System.exit(0);                                
-            }
-             
-            newWordsIDList.add(firstIDString);
-            Node nextNode = null;
-            while(true)
-            {
-                // Set next to next after current
-                nextNode = currentNode.getNextSibling();
-                if (nextNode == null)
-                {
-                    break;
-                }
-                // If next is no element, do nothing with next node
-                if (nextNode.getNodeType() != Node.ELEMENT_NODE)
-                {
-                    // 
-                    currentNode = nextNode;
-                    continue;
-                }
-                
-                // nextNode is an element node
-                // add its id to the list
-                newWordsIDList.add(nextNode.getAttributes().getNamedItem("id").getNodeValue());
-                String justAddedID = nextNode.getAttributes().getNamedItem("id").getNodeValue();
-//                System.err.println(justAddedID);
-                double justAddedValue = Double.parseDouble(justAddedID.substring(justAddedID.indexOf("_")+1));
-                // Break if just added was last in span
-                if (justAddedID.equalsIgnoreCase(lastIDString))
-                {
-                    break;
-                }
-                // ... or even later
-                if (justAddedValue > lastIDValue)
-                {
-                    newWordsIDList.remove(newWordsIDList.size()-1);
-                    break;
-                }                
-                currentNode = nextNode;
-            }                        
-        }
-        
-	return (String[]) newWordsIDList.toArray(new String[0]);
-   }    
-    
-    
-    private final static Node getWordNodeOrClosestSuccessor(DocumentImpl dom, String id)
-    {
-        Node result = null;
-        result = dom.getElementById(id);
-        if (result == null)
+        int separator = span.indexOf("..");
+        if (separator == -1)
         {
-            // The node with id id could not be retrieved
-            // Extract name space from id
-            String nameSpace = id.substring(0,id.indexOf("_"));
-            int requiredID = Integer.parseInt(id.substring(id.indexOf("_")+1));
-            Node node = dom.getDocumentElement();
-            node = node.getFirstChild();
-            // Iterate over all elements in supplied dom
-            while(true)
-            {       
-                if (node != null && node.getNodeType()==Node.ELEMENT_NODE && node.getAttributes() != null)
-                {
-                    if (node.getAttributes() != null)
-                    {
-                        if (node.getAttributes().getNamedItem("id")!= null)
-                        {
-                            // The current element has an id
-                            String currentIDString =node.getAttributes().getNamedItem("id").getNodeValue();
-                            // get numerical value
-                            int currentIDNum = Integer.parseInt(currentIDString.substring(currentIDString.indexOf("_")+1));
-                            // If current element has higher id then required one, break
-                            if (currentIDNum >= requiredID)
-                            {
-                                result=node;
-                                break;
-                            }
-                        }
-                    }
-                }
-                else if (node == null)
-                {
-                    break;
-                }            
-                Node tmpnode = node.getNextSibling();
-                node = tmpnode;
-            }
+            /* No .. found, so span is one element only */
+            return new String[] {span};
         }
-        return result;
-    }    
+
+        /* Extract leftmost id string from span */
+        String firstIDString=span.substring(0,separator);
+        /* Extract rightmost id string from span */
+        String lastIDString=span.substring(span.lastIndexOf("..") + 2);
+
+        // If the first element does not exist (any more), start at the closest successor 
+        int firstPosition = index.getPositionOrClosestSuccessor(firstIDString);
+        if (firstPosition == -1)
+        {                
+            String message = "A markable on level "+_level.getMarkableLevelName()+" references an element with id "+firstIDString+",\n";
+            message = message + "but an element with ID "+firstIDString+" could not be found!\n";
+            message = message + "This is a serious error, and might be caused by a missing DTD declaration in the word file.";
+            JOptionPane.showMessageDialog(null,message,"ID not found !",JOptionPane.ERROR_MESSAGE);
+            System.exit(0);                                
+        }
+        
+        // The first ID is always the one from the span, even if a successor had to be used
+        return index.getIDs(firstIDString, firstPosition, index.getSpanEnd(firstPosition, lastIDString));
+   }
 }
\ No newline at end of file
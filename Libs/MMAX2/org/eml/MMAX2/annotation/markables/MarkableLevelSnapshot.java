@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.annotation.markables;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.eml.MMAX2.discourse.MMAX2Discourse;
+
+/** Immutable copy of the content of one MarkableLevel as it is written to its markable file, so that the file can be written
+    on another thread while the level is being edited. Creating a snapshot is cheap: it shares the span strings and attribute
+    code arrays of the markables, which are replaced rather than modified when a markable changes (cf. Markable.getCachedSpan()
+    and Markable.getAttributeCodes()). Attribute codes are decoded when the snapshot is written, which is safe since the
+    MarkableAttributeDictionary never reassigns codes. */
+final class MarkableLevelSnapshot
+{
+    /** Order of markables in markable files: by DISCOURSEORDERCOMP, with ties broken by IDCOMP. */
+    private static final Comparator SAVE_ORDER = new Comparator()
+    {
+        @SuppressWarnings("unchecked")
+        public int compare(Object markable1, Object markable2)
+        {
+            int result = MMAX2Discourse.DISCOURSEORDERCOMP.compare(markable1, markable2);
+            if (result == 0)
+            {
+                result = MMAX2Discourse.IDCOMP.compare(markable1, markable2);
+            }
+            return result;
+        }
+    };
+
+    final String levelName;
+    final String fileName;
+    final String encoding;
+    final String header;
+    final String dtdReference;
+    final String nameSpace;
+    final MarkableAttributeDictionary dictionary;
+    /** IDs, spans and attribute codes of the markables, in the order in which they are written. */
+    final String[] ids;
+    final String[] spans;
+    final int[][] attributeCodes;
+
+    /** Creates a snapshot of the markables currently on level. This must be called on the thread that modifies level, which
+        MarkableLevel.saveMarkables() ensures by running on the event dispatch thread if there is a GUI. */
+    @SuppressWarnings("unchecked")
+    MarkableLevelSnapshot(MarkableLevel level, String _fileName, String _encoding, String _header, String _dtdReference, String _nameSpace)
+    {
+        levelName = level.getMarkableLevelName();
+        fileName = _fileName;
+        encoding = _encoding;
+        header = _header;
+        dtdReference = _dtdReference;
+        nameSpace = _nameSpace;
+        dictionary = level.getAttributeDictionary();
+
+        Markable[] markables = (Markable[]) level.getMarkables().toArray(new Markable[0]);
+        Arrays.sort(markables, SAVE_ORDER);
+        ids = new String[markables.length];
+        spans = new String[markables.length];
+        attributeCodes = new int[markables.length][];
+        for (int z=0;z<markables.length;z++)
+        {
+            ids[z] = markables[z].getID();
+            spans[z] = markables[z].getCachedSpan();
+            attributeCodes[z] = markables[z].getAttributeCodes();
+        }
+    }
+
+    final int size()
+    {
+        return ids.length;
+    }
+}
@@ -18,6 +18,7 @@ package org.eml.MMAX2.annotation.markables;
 
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.StringTokenizer;
 
@@ -45,6 +46,13 @@ public class SimpleMarkableCustomization
     private ArrayList attributeNamesForStyles = new ArrayList();
     private ArrayList relationStyles = new ArrayList();
     
+    /** Ordinals in the level's attribute index of the markables matching this customization, or null if not computed yet. */
+    private BitSet matchingOrdinals = null;
+    /** Modification count of the attribute index when matchingOrdinals was computed. */
+    private int matchingOrdinalsModificationCount = -1;
+    /** True if some criterion cannot be answered from the attribute index, so that matches() has to test each markable. */
+    private boolean unindexable = false;
+    
     /** Creates new SimpleMarkableCustomization */
     public SimpleMarkableCustomization(MarkableLevel _level, String raw_criteria, int _connector, SimpleAttributeSet _attributes) 
     {
@@ -185,12 +193,52 @@ public class SimpleMarkableCustomization
     }
 
     
+    /** Returns 1 if markable matches this customization, 0 if it does not, and -1 if this cannot be determined from the 
+        attribute index of the level. The matching markables are computed for all markables at once, and only again after 
+        some markable on the level has changed. */
+    private final synchronized int getIndexedMatch(Markable markable)
+    {
+        if (unindexable)
+        {
+            return -1;
+        }
+        MarkableAttributeIndex index = level.getOrCreateAttributeIndex();
+        int modificationCount = index.getModificationCount();
+        if (matchingOrdinals == null || modificationCount != matchingOrdinalsModificationCount)
+        {
+            // Same choice between matchesAll() and matchesAny() as below
+            boolean[] matchAll = new boolean[matchingCriteria.length];
+            for (int z=0;z<matchingCriteria.length;z++)
+            {
+                matchAll[z] = matchingCriteria[z].getNegated() && matchingCriteria[z].getRegExpMatch()==false;
+            }
+            matchingOrdinals = level.getMatchingOrdinals(matchingCriteria, matchAll, connector);
+            matchingOrdinalsModificationCount = modificationCount;
+            if (matchingOrdinals == null)
+            {
+                unindexable = true;
+                return -1;
+            }
+        }
+        int ordinal = index.getOrdinal(markable);
+        if (ordinal == -1)
+        {
+            return -1;
+        }
+        return matchingOrdinals.get(ordinal) ? 1 : 0;
+    }
+    
     public final SimpleAttributeSet matches(Markable markable)
     {            
         boolean match = false;
         SimpleAttributeSet result = null;
         MMAX2MatchingCriterion currentCrit = null;
-        if (connector==MMAX2Constants.AND)
+        int indexedMatch = getIndexedMatch(markable);
+        if (indexedMatch != -1)
+        {
+            match = (indexedMatch == 1);
+        }
+        else if (connector==MMAX2Constants.AND)
         {
             for (int z=0;z<matchingCriteria.length;z++)
             {
@@ -1201,7 +1201,7 @@ public class MMAX2AnnotationScheme implements AnnotationSchemeAPI
             if ((tempattribs.get(currentAttributeString))==null || tempattribs.get(currentAttributeString).equals(""))
             {
                 // If the value the markable has is empty, simply remove without asking
-                markable.getAttributes().remove(currentAttributeString);
+                markable.removeAttributeValue(currentAttributeString);
                 continue;
             }
             else if (tempattribs.get(currentAttributeString).equalsIgnoreCase("empty"))
@@ -1210,7 +1210,7 @@ public class MMAX2AnnotationScheme implements AnnotationSchemeAPI
                 if (currentAttributeType == AttributeAPI.MARKABLE_POINTER || currentAttributeType == AttributeAPI.MARKABLE_SET)
                 {
                     // If the value the markable has is 'empty', simply remove without asking
-                    markable.getAttributes().remove(currentAttributeString);
+                    markable.removeAttributeValue(currentAttributeString);
                     continue;                    
                 }
             }            
@@ -1268,7 +1268,7 @@ public class MMAX2AnnotationScheme implements AnnotationSchemeAPI
                         else // freetext or nominal
                         {
                             // Simply remove 
-                            markable.getAttributes().remove(currentAttributeString);
+                            markable.removeAttributeValue(currentAttributeString);
                         }
                     }// deletion requested by user                         
                     else
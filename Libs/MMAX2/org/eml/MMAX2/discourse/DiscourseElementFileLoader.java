@@ -36,6 +36,9 @@ public class DiscourseElementFileLoader
  
     /** DOM representation of the currently loaded discourse element file. */
     protected DocumentImpl deDOM = null;
+    
+    /** Column store representation of the currently loaded discourse element file, if loaded with loadColumnar(). */
+    protected MMAX2WordStore deStore = null;
         
     /** Main class for testing purposes. Usage: DiscourseElementFileLoader [words.xml|gestures.xml|keyactions.xml] */
     public static void main(String args[])
@@ -100,6 +103,47 @@ public class DiscourseElementFileLoader
         return c;
     }
     
+    /** Load discourse element file of name fileName into an MMAX2WordStore instead of a DOM. The file is streamed, so that 
+        memory is required for the resulting column store only. Base data loaded like this cannot be edited. If the file has 
+        content that a column store cannot represent, it is loaded as a DOM instead (cf. getWordStore()). */
+    final public int loadColumnar(String fileName)
+    {
+        deFileName = new File(fileName).getAbsolutePath();
+        deDOM = null;
+        deStore = null;
+        try
+        {
+            deStore = MMAX2WordStore.load(deFileName);
+        }
+        catch (javax.xml.stream.XMLStreamException exception)
+        {
+            String error = exception.toString();
+            if (exception.getLocation() != null)
+            {
+                error = "Line: "+exception.getLocation().getLineNumber()+" Column: "+exception.getLocation().getColumnNumber()+"\n"+error;
+            }
+            JOptionPane.showMessageDialog(null,error,"DiscourseElementFileLoader: "+fileName,JOptionPane.ERROR_MESSAGE);
+            System.exit(0);
+        }
+        catch (java.io.IOException exception)
+        {
+            String error = exception.toString();
+            JOptionPane.showMessageDialog(null,error,"DiscourseElementFileLoader: "+fileName,JOptionPane.ERROR_MESSAGE);
+            System.exit(0);
+        }
+        if (deStore == null)
+        {
+            return load(fileName);
+        }
+        return deStore.size();
+    }
+    
+    /** Get the column store representation of the currently loaded discourse elements file, or null if it was loaded as a DOM. */
+    final public MMAX2WordStore getWordStore()
+    {
+        return deStore;
+    }
+    
     /** Get the entire DOM representation of the currently loaded discourse elements file. */
     final public DocumentImpl getDOM()
     {
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.discourse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.xerces.dom.DocumentImpl;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/** Index of the base data elements in the order in which they appear in the base data file. Unlike discourse positions,
+    which are assigned during style sheet execution, this order is available as soon as the base data has been loaded,
+    and is used for expanding markable spans of the form word_x..word_y without walking the DOM. The index also finds
+    the closest successor of IDs that do not exist (any more), and is updated in place when base data elements are
+    added or deleted. */
+public class MMAX2BasedataIndex
+{
+    /** Contains at position X the ID of the X-th base data element. */
+    private String[] ids;
+    /** Contains at position X the numerical part of the ID at position X (the part after the first '_'), or NaN. */
+    private double[] numericValues;
+    /** Maps IDs to their positions in ids. */
+    private HashMap<String, Integer> positionOfID;
+    /** Contains at position X the maximum of numericValues[0..X], with NaN counting as negative infinity. Non-decreasing, 
+        so that the first element with a numerical ID not smaller than some value can be found by binary search. */
+    private double[] maxNumericValues;
+    /** Number of positions X at which numericValues[X] is NaN or not greater than numericValues[X-1]. The numerical values of 
+        all IDs are strictly ascending in base data order if this is 0. */
+    private int descentCount;
+    /** One entry per insertion (position+1) and removal (-(position+1)) since this index was created, in order, except for the
+        first trimmedModificationCount ones, which no range refers to any more (cf. trimModifications()). Used for adjusting 
+        ranges of positions that were computed before (cf. adjustRanges()). */
+    private MMAX2IntArrayBuilder modifications = new MMAX2IntArrayBuilder(16);
+    private int trimmedModificationCount = 0;
+
+    /** Creates an index of all elements with an id attribute directly below the root element of dom. */
+    public MMAX2BasedataIndex(DocumentImpl dom)
+    {
+        ArrayList<String> idList = new ArrayList<String>();
+        Node node = dom.getDocumentElement().getFirstChild();
+        while (node != null)
+        {
+            if (node.getNodeType()==Node.ELEMENT_NODE && ((Element)node).hasAttribute("id"))
+            {
+                idList.add(((Element)node).getAttribute("id"));
+            }
+            node = node.getNextSibling();
+        }
+        init(idList.toArray(new String[0]));
+    }
+
+    /** Creates an index of all elements with an id in store. */
+    public MMAX2BasedataIndex(MMAX2WordStore store)
+    {
+        ArrayList<String> idList = new ArrayList<String>(store.size());
+        for (int row=0;row<store.size();row++)
+        {
+            if (store.getID(row) != null)
+            {
+                idList.add(store.getID(row));
+            }
+        }
+        init(idList.toArray(new String[0]));
+    }
+
+    private final void init(String[] _ids)
+    {
+        ids = _ids;
+        numericValues = new double[ids.length];
+        positionOfID = new HashMap<String, Integer>(ids.length*2);
+        for (int p=0;p<ids.length;p++)
+        {
+            positionOfID.put(ids[p], p);
+            numericValues[p] = getNumericValue(ids[p]);
+        }
+        maxNumericValues = new double[ids.length];
+        descentCount = countDescents(0, ids.length);
+        updateDerivedValues(0);
+    }
+
+    /** Recomputes maxNumericValues from position from onwards. */
+    private final void updateDerivedValues(int from)
+    {
+        for (int p=from;p<ids.length;p++)
+        {
+            double previousMax = (p == 0 ? Double.NEGATIVE_INFINITY : maxNumericValues[p-1]);
+            maxNumericValues[p] = (Double.isNaN(numericValues[p]) ? previousMax : Math.max(previousMax, numericValues[p]));
+        }
+    }
+
+    /** Returns the number of descents (cf. descentCount) at the positions from (inclusive) to to (exclusive). */
+    private final int countDescents(int from, int to)
+    {
+        int result = 0;
+        for (int p=Math.max(from, 0);p<Math.min(to, ids.length);p++)
+        {
+            if (Double.isNaN(numericValues[p]) || (p > 0 && numericValues[p] <= numericValues[p-1]))
+            {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the numerical part of id (the part after the first '_'), or NaN if there is none. */
+    public static final double getNumericValue(String id)
+    {
+        try
+        {
+            return Double.parseDouble(id.substring(id.indexOf("_")+1));
+        }
+        catch (java.lang.NumberFormatException ex)
+        {
+            return Double.NaN;
+        }
+    }
+
+    public final int size()
+    {
+        return ids.length;
+    }
+
+    /** Returns the position of the element with ID id in base data order, or -1. */
+    public final int getPosition(String id)
+    {
+        Integer position = positionOfID.get(id);
+        if (position == null)
+        {
+            return -1;
+        }
+        return position.intValue();
+    }
+
+    public final String getID(int position)
+    {
+        return ids[position];
+    }
+
+    /** Returns the position of the element with ID id or, if it does not exist, the position of the first element (in base
+        data order) whose numerical ID is greater than that of id. Returns -1 if there is no such element. */
+    public final int getPositionOrClosestSuccessor(String id)
+    {
+        int result = getPosition(id);
+        if (result == -1)
+        {
+            double requiredValue = getNumericValue(id);
+            if (Double.isNaN(requiredValue))
+            {
+                return -1;
+            }
+            int low = 0;
+            int high = ids.length-1;
+            while (low <= high)
+            {
+                int mid = (low+high) >>> 1;
+                if (maxNumericValues[mid] < requiredValue)
+                {
+                    low = mid+1;
+                }
+                else
+                {
+                    high = mid-1;
+                }
+            }
+            if (low < ids.length)
+            {
+                result = low;
+            }
+        }
+        return result;
+    }
+
+    /** Adds newID at position, moving all elements from position onwards one position to the right. */
+    public final void insert(String newID, int position)
+    {
+        // Only the descents at position and position+1 can change
+        descentCount -= countDescents(position, position+1);
+        String[] newIDs = new String[ids.length+1];
+        double[] newNumericValues = new double[ids.length+1];
+        System.arraycopy(ids, 0, newIDs, 0, position);
+        System.arraycopy(ids, position, newIDs, position+1, ids.length-position);
+        System.arraycopy(numericValues, 0, newNumericValues, 0, position);
+        System.arraycopy(numericValues, position, newNumericValues, position+1, ids.length-position);
+        newIDs[position] = newID;
+        newNumericValues[position] = getNumericValue(newID);
+        ids = newIDs;
+        numericValues = newNumericValues;
+        maxNumericValues = Arrays.copyOf(maxNumericValues, ids.length);
+        for (int p=position;p<ids.length;p++)
+        {
+            positionOfID.put(ids[p], p);
+        }
+        descentCount += countDescents(position, position+2);
+        updateDerivedValues(position);
+        modifications.add(position+1);
+    }
+
+    /** Adds newID directly before the existing element referenceID. */
+    public final void insertBefore(String newID, String referenceID)
+    {
+        int position = getPosition(referenceID);
+        if (position != -1)
+        {
+            insert(newID, position);
+        }
+    }
+
+    /** Adds newID directly after the existing element referenceID. */
+    public final void insertAfter(String newID, String referenceID)
+    {
+        int position = getPosition(referenceID);
+        if (position != -1)
+        {
+            insert(newID, position+1);
+        }
+    }
+
+    /** Removes the element with ID id, moving all elements after it one position to the left. */
+    public final void remove(String id)
+    {
+        int position = getPosition(id);
+        if (position == -1)
+        {
+            return;
+        }
+        positionOfID.remove(id);
+        // Only the descents at position and position+1 can change
+        descentCount -= countDescents(position, position+2);
+        String[] newIDs = new String[ids.length-1];
+        double[] newNumericValues = new double[ids.length-1];
+        System.arraycopy(ids, 0, newIDs, 0, position);
+        System.arraycopy(ids, position+1, newIDs, position, newIDs.length-position);
+        System.arraycopy(numericValues, 0, newNumericValues, 0, position);
+        System.arraycopy(numericValues, position+1, newNumericValues, position, newIDs.length-position);
+        ids = newIDs;
+        numericValues = newNumericValues;
+        maxNumericValues = Arrays.copyOf(maxNumericValues, ids.length);
+        for (int p=position;p<ids.length;p++)
+        {
+            positionOfID.put(ids[p], p);
+        }
+        descentCount += countDescents(position, position+1);
+        updateDerivedValues(position);
+        modifications.add(-(position+1));
+    }
+
+    /** Returns the number of insertions and removals since this index was created. */
+    public final int getModificationCount()
+    {
+        return trimmedModificationCount+modifications.size();
+    }
+
+    /** Discards the insertions and removals before modification count oldestReferencedCount, which must not be greater than 
+        the modification count of any range that may still be passed to adjustRanges(). */
+    public final void trimModifications(int oldestReferencedCount)
+    {
+        int count = Math.min(oldestReferencedCount, getModificationCount())-trimmedModificationCount;
+        if (count > 0)
+        {
+            modifications.removeFirst(count);
+            trimmedModificationCount += count;
+        }
+    }
+
+    /** Adjusts ranges, which contains pairs of (inclusive) start and (exclusive) end positions that were valid when the 
+        modification count was sinceModificationCount, to all insertions and removals since. Elements inserted inside a range 
+        become part of it, ranges lose removed elements, and pairs with a start of -1 are left unchanged. */
+    public final void adjustRanges(int[] ranges, int sinceModificationCount)
+    {
+        if (sinceModificationCount < trimmedModificationCount)
+        {
+            throw new IllegalArgumentException("Modifications since "+sinceModificationCount+" have been trimmed");
+        }
+        for (int m=sinceModificationCount-trimmedModificationCount;m<modifications.size();m++)
+        {
+            int modification = modifications.get(m);
+            for (int r=0;r<ranges.length;r+=2)
+            {
+                if (ranges[r] == -1) continue;
+                if (modification > 0)
+                {
+                    int position = modification-1;
+                    if (ranges[r] >= position) ranges[r]++;
+                    if (ranges[r+1] > position) ranges[r+1]++;
+                }
+                else
+                {
+                    int position = -modification-1;
+                    if (ranges[r] > position) ranges[r]--;
+                    if (ranges[r+1] > position) ranges[r+1]--;
+                }
+            }
+        }
+    }
+
+    /** Returns the position of the first element of fragment if fragment consists of consecutive elements of this index, 
+        or -1 otherwise. */
+    public final int getSliceStart(String[] fragment)
+    {
+        if (fragment.length == 0)
+        {
+            return -1;
+        }
+        int start = getPosition(fragment[0]);
+        if (start == -1 || start+fragment.length > ids.length)
+        {
+            return -1;
+        }
+        for (int z=1;z<fragment.length;z++)
+        {
+            if (ids[start+z].equals(fragment[z])==false)
+            {
+                return -1;
+            }
+        }
+        return start;
+    }
+
+    /** Returns the IDs from position start (inclusive) to end (exclusive), with the first one replaced by firstID. */
+    public final String[] getIDs(String firstID, int start, int end)
+    {
+        String[] result = new String[end-start];
+        result[0] = firstID;
+        System.arraycopy(ids, start+1, result, 1, end-start-1);
+        return result;
+    }
+
+    /** Returns the (exclusive) end position of the span word_x..lastID that begins at position start. The span extends up to and
+        including the first element after start whose ID equals lastID (ignoring case), or up to but excluding the first
+        element whose numerical ID is greater than that of lastID, whichever comes first. */
+    public final int getSpanEnd(int start, String lastID)
+    {
+        double lastValue = getNumericValue(lastID);
+        if (descentCount == 0)
+        {
+            // IDs are unique and ascending, so the end can be found by binary search
+            int low = start+1;
+            int high = ids.length-1;
+            while (low <= high)
+            {
+                int mid = (low+high) >>> 1;
+                if (numericValues[mid] <= lastValue)
+                {
+                    low = mid+1;
+                }
+                else
+                {
+                    high = mid-1;
+                }
+            }
+            return low;
+        }
+        for (int p=start+1;p<ids.length;p++)
+        {
+            if (ids[p].equalsIgnoreCase(lastID))
+            {
+                return p+1;
+            }
+            if (numericValues[p] > lastValue)
+            {
+                return p;
+            }
+        }
+        return ids.length;
+    }
+}
@@ -25,14 +25,10 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
-import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.Map.Entry;
 
 import javax.swing.Box;
 import javax.swing.JButton;
@@ -46,10 +42,8 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
 import javax.swing.text.DefaultStyledDocument;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 
 import org.apache.xerces.dom.DocumentImpl;
 import org.eml.MMAX2.annotation.markables.AlphabeticMarkableComparator;
@@ -85,6 +79,17 @@ public class MMAX2Discourse implements DiscourseAPI
     protected DocumentImpl wordDOM = null;
     protected String wordFileName="";
     
+    /** Base data in column store representation. Only set if the base data was loaded in columnar mode, wordDOM is null then. */
+    protected MMAX2WordStore wordStore = null;
+    
+    /** Index of base data element IDs in base data order, created on demand by getBasedataIndex(). */
+    private volatile MMAX2BasedataIndex basedataIndex = null;
+    /** The discourseElementAtPosition array and base data index modification count for which inBasedataOrder was computed. */
+    private String[] inBasedataOrderPositions = null;
+    private int inBasedataOrderModificationCount = -1;
+    /** True if the DE at each discourse position X is the X-th base data element (cf. isInBasedataOrder()). */
+    private boolean inBasedataOrder = false;
+    
     protected String[] styleSheetFileNames;
     protected String currentStyleSheet;
 
@@ -96,29 +101,32 @@ public class MMAX2Discourse implements DiscourseAPI
     protected HashMap<String, Integer> discoursePositionOfDiscourseElement=null;    
     
     /** Contains at position X the display start position (i.e. character position in display string) of the DE with Discourse position X. */   
-    protected Integer[] displayStartPosition = null;    
-    protected ArrayList<Integer> temporaryDisplayStartPosition=null;
+    protected int[] displayStartPosition = null;    
+    protected MMAX2IntArrayBuilder temporaryDisplayStartPosition=null;
     
-    /** Contains at position X the display start position (i.e. character position in display string) of the DE with Discourse position X. */    
-    protected Integer[] displayEndPosition = null;
-    protected ArrayList<Integer> temporaryDisplayEndPosition=null;        
+    /** Contains at position X the display end position (i.e. character position in display string) of the DE with Discourse position X. */    
+    protected int[] displayEndPosition = null;
+    protected MMAX2IntArrayBuilder temporaryDisplayEndPosition=null;        
     
-    protected StringWriter incrementalTransformationResult = null; 
+    protected MMAX2TransformationBuffer incrementalTransformationResult = null; 
     
     /** Position up to which the incrementalTransformationResult has already been processed, incremented by method getNextDocumentChunk(). */
     protected int lastStart = 0;
     
     protected MarkableChart chart;
     
-    protected HashMap<Object, Object> markableDisplayAssociation=null;
-    protected HashMap<Object, Object> hotSpotDisplayAssociation=null;
+    /** Associates the display positions of markable handles with their markables. */
+    protected MMAX2DisplayAssociationStore<Markable> markableDisplayAssociation=null;
+    /** Associates the display positions of hot spots with their hot spot texts. */
+    protected MMAX2DisplayAssociationStore<String> hotSpotDisplayAssociation=null;
     
-    public static StartingMarkableComparator STARTCOMP=null;
-    public static EndingMarkableComparator ENDCOMP=null;
-    public static AlphabeticMarkableComparator ALPHACOMP=null;
-    public static DiscourseOrderMarkableComparator DISCOURSEORDERCOMP=null;
-    public static MarkableLevelPositionComparator LEVELCOMP=null;
-    public static MarkableIDComparator IDCOMP=null;
+    /* Comparators are stateless, so they are created once and shared by all discourses (which may be loaded concurrently). */
+    public static StartingMarkableComparator STARTCOMP=new StartingMarkableComparator();
+    public static EndingMarkableComparator ENDCOMP=new EndingMarkableComparator();
+    public static AlphabeticMarkableComparator ALPHACOMP=new AlphabeticMarkableComparator();
+    public static DiscourseOrderMarkableComparator DISCOURSEORDERCOMP=new DiscourseOrderMarkableComparator();
+    public static MarkableLevelPositionComparator LEVELCOMP=new MarkableLevelPositionComparator();
+    public static MarkableIDComparator IDCOMP=new MarkableIDComparator();
     
     protected MMAX2 mmax2 = null;
         
@@ -130,18 +138,11 @@ public class MMAX2Discourse implements DiscourseAPI
         hasGUI = withGUI;
         discoursePositionOfDiscourseElement = new HashMap<String, Integer>();
         chart = new MarkableChart(this);
-        temporaryDisplayStartPosition = new ArrayList<Integer>();
-        temporaryDisplayEndPosition = new ArrayList<Integer>();
+        temporaryDisplayStartPosition = new MMAX2IntArrayBuilder();
+        temporaryDisplayEndPosition = new MMAX2IntArrayBuilder();
         temporaryDiscourseElementAtPosition = new ArrayList<String>();
-        markableDisplayAssociation = new HashMap<Object, Object>();
-        hotSpotDisplayAssociation = new HashMap<Object, Object>();
-        
-        STARTCOMP = new StartingMarkableComparator();
-        ENDCOMP = new EndingMarkableComparator();
-        ALPHACOMP = new AlphabeticMarkableComparator();
-        DISCOURSEORDERCOMP = new DiscourseOrderMarkableComparator();
-        LEVELCOMP = new MarkableLevelPositionComparator();
-        IDCOMP = new MarkableIDComparator();        
+        markableDisplayAssociation = new MMAX2DisplayAssociationStore<Markable>();
+        hotSpotDisplayAssociation = new MMAX2DisplayAssociationStore<String>();
     }
 
 
@@ -222,11 +223,9 @@ public class MMAX2Discourse implements DiscourseAPI
         hotSpotDisplayAssociation.clear();        
         hotSpotDisplayAssociation = null;
         
-        STARTCOMP =  null;
-        ENDCOMP = null;
-        DISCOURSEORDERCOMP = null;
-        LEVELCOMP = null;        
         wordDOM = null;
+        wordStore = null;
+        basedataIndex = null;
         hash = null;
 
     }
@@ -269,7 +268,7 @@ public class MMAX2Discourse implements DiscourseAPI
     {
         if (markableDisplayAssociation.size()!=0)
         {
-            return (Integer[]) (((Set)markableDisplayAssociation.keySet()).toArray(new Integer[1]));
+            return toIntegerArray(markableDisplayAssociation.getAllPositions());
         }
         else
         {
@@ -282,58 +281,134 @@ public class MMAX2Discourse implements DiscourseAPI
     {
         // No active/inactive distinction necessary, because only active Markables will have MarkableHandles anyway
         // WRONG: Handles of deactivated layers will stay around until next re-application !!
-        Markable result = (Markable) markableDisplayAssociation.get(displayPosition);
+        Markable result = markableDisplayAssociation.get(displayPosition);
         return result;
     }
      
     public final String getHotSpotAtDisplayAssociation(int displayPosition)
     {
-        String result = (String) hotSpotDisplayAssociation.get(displayPosition);
+        String result = hotSpotDisplayAssociation.get(displayPosition);
         return result;        
     }
     
+    /** Removes all handles of Markable removee, and returns their display positions in ascending order. */
     public final Integer[] removeDisplayAssociationsForMarkable(Markable removee)
     {
-        Set all = markableDisplayAssociation.entrySet();
-        Iterator it = all.iterator();
-        ArrayList<Integer> positions = new ArrayList<Integer>();
-        Integer currentPos = null;
-        boolean added = false;
-        while (it.hasNext())
-        {
-            Entry<?, ?> current = (Entry<?, ?>) it.next();
-            if (current.getValue().equals(removee))
+        return toIntegerArray(markableDisplayAssociation.remove(removee));
+    }
+    
+    private static final Integer[] toIntegerArray(int[] positions)
+    {
+        Integer[] result = new Integer[positions.length];
+        for (int p=0;p<positions.length;p++)
+        {
+            result[p] = positions[p];
+        }
+        return result;
+    }
+    
+    /** Returns the word DOM, or null if the base data was loaded in columnar mode (cf. getWordStore()). */
+    public final DocumentImpl getWordDOM()
+    {
+        return wordDOM;
+    }
+    
+    /** Returns the column store holding the base data, or null if the base data was loaded as a DOM (cf. getWordDOM()). */
+    public final MMAX2WordStore getWordStore()
+    {
+        return wordStore;
+    }
+    
+    /** Returns the index of base data element IDs in base data order, creating it if required. Creation is synchronized because
+        markable levels may be loaded concurrently, while an existing index is returned without locking. */
+    public final MMAX2BasedataIndex getBasedataIndex()
+    {
+        MMAX2BasedataIndex result = basedataIndex;
+        if (result != null)
+        {
+            return result;
+        }
+        synchronized (this)
+        {
+            if (basedataIndex == null)
             {
-                it.remove();
-                // Get current position
-                currentPos = (Integer) current.getKey();
-                if (positions.size()==0)
+                if (wordDOM != null)
                 {
-                    // The list is still empty, so simply add 
-                    positions.add(currentPos);
+                    basedataIndex = new MMAX2BasedataIndex(wordDOM);
                 }
                 else
                 {
-                    // Find insertion point
-                    for (int p=0;p<positions.size();p++)
-                    {
-                        if ((((Integer)positions.get(p)).intValue())>currentPos.intValue())
-                        {
-                            positions.add(p,currentPos);
-                            added=true;
-                            break;
-                        }
-                    }
+                    basedataIndex = new MMAX2BasedataIndex(wordStore);
                 }
-                if(!added) positions.add(currentPos);
             }
+            return basedataIndex;
         }
-        return (Integer[]) positions.toArray(new Integer[0]);
     }
     
-    public final DocumentImpl getWordDOM()
+    /** Discards the index of base data element IDs, so that it will be recreated from the word DOM upon next access. */
+    public final synchronized void invalidateBasedataIndex()
     {
-        return wordDOM;
+        basedataIndex = null;
+    }
+    
+    /** Updates the index of base data element IDs (if it exists) after the element newID has been inserted directly before
+        (if before is true) or after the element referenceID. */
+    private final synchronized void updateBasedataIndexAfterInsertion(String newID, String referenceID, boolean before)
+    {
+        if (basedataIndex != null)
+        {
+            if (before)
+            {
+                basedataIndex.insertBefore(newID, referenceID);
+            }
+            else
+            {
+                basedataIndex.insertAfter(newID, referenceID);
+            }
+            trimBasedataIndexModifications();
+        }
+    }
+    
+    /** Updates the index of base data element IDs (if it exists) after the element deleteeID has been deleted. */
+    private final synchronized void updateBasedataIndexAfterDeletion(String deleteeID)
+    {
+        if (basedataIndex != null)
+        {
+            basedataIndex.remove(deleteeID);
+            trimBasedataIndexModifications();
+        }
+    }
+    
+    /** Discards the modifications of the base data index that no markable needs for adjusting its fragment ranges any more, 
+        so that they do not accumulate over a long session. */
+    private final void trimBasedataIndexModifications()
+    {
+        basedataIndex.trimModifications(getCurrentMarkableChart().getOldestBasedataModificationCount(basedataIndex.getModificationCount()));
+    }
+    
+    /** Returns true if discourse positions follow base data order, i.e. if the DE at discourse position X is the X-th base
+        data element, or if no discourse positions have been assigned yet. Markables can then be changed directly in terms of 
+        base data positions, with the same result as in terms of discourse positions (cf. Markable.addDiscourseElements()). 
+        The result is computed again only after the style sheet has been applied or the base data has changed. */
+    public final synchronized boolean isInBasedataOrder()
+    {
+        if (discourseElementAtPosition == null)
+        {
+            return true;
+        }
+        MMAX2BasedataIndex index = getBasedataIndex();
+        if (inBasedataOrderPositions != discourseElementAtPosition || inBasedataOrderModificationCount != index.getModificationCount())
+        {
+            boolean result = (discourseElementAtPosition.length == index.size());
+            for (int p=0;result && p<discourseElementAtPosition.length;p++)
+            {
+                result = discourseElementAtPosition[p].equals(index.getID(p));
+            }
+            inBasedataOrder = result;
+            inBasedataOrderPositions = discourseElementAtPosition;
+            inBasedataOrderModificationCount = index.getModificationCount();
+        }
+        return inBasedataOrder;
     }
     
     public final int getDisplayStartPositionFromDiscoursePosition(int discoursePosition)
@@ -341,7 +416,7 @@ public class MMAX2Discourse implements DiscourseAPI
         int result = -1;
         try
         {
-            result = displayStartPosition[discoursePosition].intValue();
+            result = displayStartPosition[discoursePosition];
         }        
         catch (java.lang.ArrayIndexOutOfBoundsException ex)
         {
@@ -355,7 +430,7 @@ public class MMAX2Discourse implements DiscourseAPI
         int result = -1;
         try
         {
-            result = displayEndPosition[discoursePosition].intValue();
+            result = displayEndPosition[discoursePosition];
         }  
         catch (java.lang.ArrayIndexOutOfBoundsException ex)
         {
@@ -376,7 +451,7 @@ public class MMAX2Discourse implements DiscourseAPI
         {
         	try
         	{
-        		if (displayStartPosition[startPos].equals(displayPosition))
+        		if (displayStartPosition[startPos] == displayPosition)
         		{
         			// The user clicked the first character
         			return startPos;
@@ -394,7 +469,7 @@ public class MMAX2Discourse implements DiscourseAPI
         {
         	try
         	{
-        		if (displayEndPosition[endPos].equals(displayPosition))
+        		if (displayEndPosition[endPos] == displayPosition)
         		{
         			// The user clicked the first character
         			return endPos;
@@ -472,6 +547,14 @@ public class MMAX2Discourse implements DiscourseAPI
             
      public final void registerAllDiscourseElements()
      {
+         if (wordDOM == null)
+         {
+             for (int z=0;z<wordStore.size();z++)
+             {
+                 registerDiscourseElement(wordStore.getID(z));
+             }
+             return;
+         }
          NodeList allWords = wordDOM.getElementsByTagName("word");
          for (int z=0;z<allWords.getLength();z++)
          {
@@ -828,10 +911,15 @@ public class MMAX2Discourse implements DiscourseAPI
   
 */    
     
-    /** Returns the Node representation of the discourse element with id ID.*/
+    /** Returns the Node representation of the discourse element with id ID. If the base data was loaded in columnar mode, 
+        this is a new Element that is not part of any document tree, so that changes to it have no effect.*/
     public final Node getDiscourseElementNode(String ID)
     {
         Node result = null;         
+        if (wordDOM == null && wordStore != null)
+        {
+            return wordStore.createElement(ID);
+        }
         try        
         {            
             result = wordDOM.getElementById(ID);
@@ -846,6 +934,15 @@ public class MMAX2Discourse implements DiscourseAPI
     protected final void setWordDOM(DocumentImpl dom)
     {
         wordDOM = dom;
+        wordStore = null;
+        invalidateBasedataIndex();
+    }
+    
+    protected final void setWordStore(MMAX2WordStore store)
+    {
+        wordStore = store;
+        wordDOM = null;
+        invalidateBasedataIndex();
     }
     
     public final void resetForStyleSheetReapplication()
@@ -859,13 +956,11 @@ public class MMAX2Discourse implements DiscourseAPI
 //        long time = System.currentTimeMillis();
         
         temporaryDiscourseElementAtPosition = new ArrayList();
-        temporaryDisplayEndPosition = new ArrayList();
-        temporaryDisplayStartPosition = new ArrayList();
+        temporaryDisplayEndPosition = new MMAX2IntArrayBuilder();
+        temporaryDisplayStartPosition = new MMAX2IntArrayBuilder();
         lastStart = 0;
         markableDisplayAssociation.clear();
-        markableDisplayAssociation = new HashMap();
         hotSpotDisplayAssociation.clear();
-        hotSpotDisplayAssociation = new HashMap();
         
         hash = null;
         
@@ -929,17 +1024,15 @@ public class MMAX2Discourse implements DiscourseAPI
             overrideStyleFileName = currentStyleSheet;
         }
         
-        /* Create string writer to accept XSL processor output */
-        incrementalTransformationResult = new StringWriter();
+        /* Create buffer to accept XSL processor output */
+        incrementalTransformationResult = new MMAX2TransformationBuffer();
 
-        /* Create XSL processor */
-        TransformerFactory tFactory = TransformerFactory.newInstance();
+        /* Create XSL processor. The compiled style sheet is shared and recompiled only if the file has changed. */
         Transformer transformer = null;
         
         try
         {            
-            //transformer = tFactory.newTransformer(new StreamSource("FILE:"+overrideStyleFileName)); // This does not throw any errors!            
-        	transformer = tFactory.newTransformer(new StreamSource(new File(overrideStyleFileName).toURI().toString())); // This does not throw any errors!
+        	transformer = MMAX2StyleSheetCache.getTemplates(overrideStyleFileName).newTransformer();
         }
         catch (javax.xml.transform.TransformerConfigurationException ex )
         {          
@@ -952,9 +1045,19 @@ public class MMAX2Discourse implements DiscourseAPI
         	ex.printStackTrace();
         }
                              
+        /* Make this the discourse that the style sheet's extension functions operate on, for the current thread only */
+        MMAX2Discourse previousDiscourse = MMAX2DiscourseLoader.bindTransformationDiscourse(this);
         try
         {
-        	transformer.transform(new DOMSource(wordDOM ), new StreamResult(incrementalTransformationResult));
+        	if (wordDOM != null)
+        	{
+        		transformer.transform(new DOMSource(wordDOM ), new StreamResult(incrementalTransformationResult));
+        	}
+        	else
+        	{
+        		// The style sheet is applied to a SAX view of the column store, so no DOM has to be created
+        		transformer.transform(wordStore.createSource(), new StreamResult(incrementalTransformationResult));
+        	}
         }
         catch (javax.xml.transform.TransformerException ex)
         {
@@ -964,22 +1067,19 @@ public class MMAX2Discourse implements DiscourseAPI
         	JOptionPane.showMessageDialog(null,error,"Discourse: "+overrideStyleFileName,JOptionPane.ERROR_MESSAGE);
         	ex.printStackTrace();
         }
+        finally
+        {
+        	MMAX2DiscourseLoader.bindTransformationDiscourse(previousDiscourse);
+        }
         
         discourseElementAtPosition = (String[]) temporaryDiscourseElementAtPosition.toArray(new String[1]);
-        displayStartPosition = (Integer[]) temporaryDisplayStartPosition.toArray(new Integer[1]);
-        displayEndPosition = (Integer[]) temporaryDisplayEndPosition.toArray(new Integer[1]);
+        displayStartPosition = temporaryDisplayStartPosition.toArray();
+        displayEndPosition = temporaryDisplayEndPosition.toArray();
         
         temporaryDiscourseElementAtPosition.clear();
         temporaryDisplayEndPosition.clear();
         temporaryDisplayStartPosition.clear();
-        try
-        {
-            incrementalTransformationResult.close();
-        }
-        catch (java.io.IOException ex)
-        {
-            
-        }
+        incrementalTransformationResult.close();
         
         System.gc();            
     }
@@ -1014,20 +1114,20 @@ public class MMAX2Discourse implements DiscourseAPI
     
        
     /** This method returns the current length of this.incrementalTransformationResult. It is used to associate Discourse Elements
-        with display string positions during stylesheet execution. */
+        with display string positions during stylesheet execution. This is constant time. */
     public final int getCurrentDocumentPosition()
     {
-        incrementalTransformationResult.flush();
-        return incrementalTransformationResult.getBuffer().length();
+        return incrementalTransformationResult.length();
     }   
     
-    /** This method returns the next chunk of the incremental transformation result that has not yet been processed. */
+    /** This method returns the next chunk of the incremental transformation result that has not yet been processed. 
+        Only the characters written since the last call are copied, so that repeated calls during stylesheet execution are 
+        linear in the size of the entire result. */
     public final String getNextDocumentChunk()
     {        
-        incrementalTransformationResult.flush();
-        String temp = incrementalTransformationResult.toString();                
-        String result =  temp.substring(lastStart);
-        lastStart = temp.length();
+        int end = incrementalTransformationResult.length();
+        String result = incrementalTransformationResult.substring(lastStart, end);
+        lastStart = end;
         return result;                
     }
     
@@ -1063,7 +1163,6 @@ public class MMAX2Discourse implements DiscourseAPI
     
     public final String getStyleSheetOutput()
     {
-        incrementalTransformationResult.flush();
         return incrementalTransformationResult.toString();
     }
     
@@ -1217,6 +1316,7 @@ public class MMAX2Discourse implements DiscourseAPI
         
         // Remove node to be deleted
         deletee.getParentNode().removeChild(deletee);        
+        updateBasedataIndexAfterDeletion(deleteesID);
         mmax2.getCurrentTextPane().setControlIsPressed(false);   
         getCurrentMarkableChart().updateAllMarkableLevels();
         mmax2.requestReapplyDisplay();
@@ -1413,6 +1513,7 @@ public class MMAX2Discourse implements DiscourseAPI
                     referenceNode.getParentNode().insertBefore(newWord, referenceNode);                    
                     // Make new element retrievable by id
                     mmax2.getCurrentDiscourse().addWithID(newID, newWord);                                
+                    updateBasedataIndexAfterInsertion(newID, referenceNode.getAttributes().getNamedItem("id").getNodeValue(), true);
                 }
             }
             else if (mode == MMAX2Constants.INSERT_DE_AFTER)
@@ -1436,6 +1537,7 @@ public class MMAX2Discourse implements DiscourseAPI
                     referenceNode.getParentNode().insertBefore(newWord, rightReferenceNode);
                     // Make new element retrievable by id
                     mmax2.getCurrentDiscourse().addWithID(newID, newWord);                    
+                    updateBasedataIndexAfterInsertion(newID, referenceNode.getAttributes().getNamedItem("id").getNodeValue(), false);
                 }
             }
         }
@@ -1568,6 +1670,11 @@ public class MMAX2Discourse implements DiscourseAPI
     
     public final void saveBasedata(String newFileName)
     {
+        if (wordDOM == null)
+        {
+            System.err.println("Basedata was loaded in columnar mode and cannot be modified, not saving!");
+            return;
+        }
         if (mmax2 != null)
         {
             if (mmax2.getIsBasedataModified()==false)
@@ -18,7 +18,13 @@ package org.eml.MMAX2.discourse;
 
 // Display Attributes
 import java.awt.Color;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.swing.JOptionPane;
 
@@ -26,8 +32,11 @@ import org.apache.xerces.dom.DocumentImpl;
 import org.apache.xerces.parsers.DOMParser;
 import org.apache.xpath.NodeSet;
 import org.eml.MMAX2.annotation.markables.Markable;
+import org.eml.MMAX2.annotation.markables.MarkableChart;
 import org.eml.MMAX2.annotation.markables.MarkableFileLoader;
 import org.eml.MMAX2.annotation.markables.MarkableLevel;
+import org.eml.MMAX2.annotation.scheme.MMAX2AnnotationScheme;
+import org.eml.MMAX2.gui.document.MMAX2Document;
 import org.eml.MMAX2.utils.MMAX2Utils;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
@@ -43,6 +52,7 @@ public class MMAX2DiscourseLoader
     protected String commonQueryPath			= "";    
     protected String rootPath 					= "";    
     protected String wordFileName 				= "";    
+    protected String commonPathsFileName		= "";
 
     protected String[] markableFileNames;
     protected String[] markableLevelNames;
@@ -57,11 +67,27 @@ public class MMAX2DiscourseLoader
     protected String[] userSwitches = new String[0];        
         
     private String nameSpace="";    
-    /** This has to be static so it can be called from static method getDiscourseElementNodes(String span). */
-    protected static MMAX2Discourse currentDiscourse;
+    /** The discourse created by this loader. */
+    protected MMAX2Discourse currentDiscourse;
+    
+    /** The discourse that the XSL extension functions below operate on. This is bound for the duration of each style sheet
+        application to the thread running the transformation (cf. MMAX2Discourse.applyStyleSheet()), so that several discourses
+        can be transformed concurrently on separate threads. */
+    private static final ThreadLocal<MMAX2Discourse> transformationDiscourse = new ThreadLocal<MMAX2Discourse>();
 
     boolean VERBOSE = false;
     boolean DEBUG = false;
+    /** If true, base data is streamed into an MMAX2WordStore instead of a DOM (-Dcolumnar_basedata=true). Only used without GUI, 
+        because base data held in a column store cannot be edited. */
+    boolean COLUMNAR_BASEDATA = false;
+    /** If true, markable levels are loaded concurrently (-Dparallel_loading=true). */
+    boolean PARALLEL_LOADING = false;
+    /** If true, markables on levels that are inactive at startup are only created when they are first needed (disable with 
+        -Dlazy_levels=false). */
+    boolean LAZY_LEVELS = true;
+    /** Where snapshots of the loaded discourse are kept (-Dsnapshot_cache=true for next to the .mmax file, or the name of a 
+        directory), or null if they are not used (cf. MMAX2DiscourseSnapshot). */
+    String SNAPSHOT_CACHE = null;
     
     /** Creates new DiscourseLoader from the supplied .MMAX file. */
     public MMAX2DiscourseLoader(String mmaxFileName, boolean withGUI, String suppliedCommonPathsFile) 
@@ -72,6 +98,18 @@ public class MMAX2DiscourseLoader
     	try { if (System.getProperty("debug").equalsIgnoreCase("true")) {DEBUG = true;} }
     	catch (java.lang.NullPointerException x) { }
 
+    	try { if (System.getProperty("columnar_basedata").equalsIgnoreCase("true") && !withGUI) {COLUMNAR_BASEDATA = true;} }
+    	catch (java.lang.NullPointerException x) { }
+
+    	try { if (System.getProperty("parallel_loading").equalsIgnoreCase("true")) {PARALLEL_LOADING = true;} }
+    	catch (java.lang.NullPointerException x) { }
+
+    	try { if (System.getProperty("lazy_levels").equalsIgnoreCase("false")) {LAZY_LEVELS = false;} }
+    	catch (java.lang.NullPointerException x) { }
+
+    	try { if (System.getProperty("snapshot_cache").equalsIgnoreCase("false")==false) {SNAPSHOT_CACHE = System.getProperty("snapshot_cache");} }
+    	catch (java.lang.NullPointerException x) { }
+
         // Suppose that default common paths is to be used
         boolean useDefault = true;
         if (suppliedCommonPathsFile.equals("")==false)
@@ -128,6 +166,7 @@ public class MMAX2DiscourseLoader
         String cpFileName = commonPathsFile;
         // Default: assume common_paths.xml at MMAX2 project root path
         if (useDefault) { cpFileName=rootPath+cpFileName; }
+        commonPathsFileName = cpFileName;
                                 
         try { parser.parse(new InputSource(new File(cpFileName).toURI().toString()));}
         catch (org.xml.sax.SAXParseException exception)
@@ -469,14 +508,69 @@ public class MMAX2DiscourseLoader
         	System.exit(0);
         }
                   
-        DiscourseElementFileLoader deloader = new DiscourseElementFileLoader();
-        if (isVerbose()) {System.err.print("\n  Loading basedata from "+wordFileName+" ... ");}
-        int b=deloader.load(wordFileName);
-        if (isVerbose()) {System.err.println(b+" elements have been loaded!");}
+        File snapshotFile = getSnapshotFile(mmaxFileName);
+        ArrayList<String> snapshotInputFileNames = null;
+        DataInputStream snapshot = null;
+        MMAX2WordStore snapshotStore = null;
+        if (snapshotFile != null)
+        {
+            snapshotInputFileNames = getSnapshotInputFileNames(mmaxFileName);
+        }
+        if (snapshotInputFileNames != null)
+        {
+            snapshot = MMAX2DiscourseSnapshot.open(snapshotFile, snapshotInputFileNames);
+        }
+        if (snapshot != null)
+        {
+            if (isVerbose()) {System.err.print("\n  Loading basedata from snapshot "+snapshotFile+" ... ");}
+            try { snapshotStore = MMAX2WordStore.read(snapshot); }
+            catch (IOException ex)
+            {
+                System.err.println("Cannot read snapshot "+snapshotFile+": "+ex.getMessage());
+                snapshot = null;
+            }
+            if (isVerbose() && snapshotStore != null) {System.err.println(snapshotStore.size()+" elements have been loaded!");}
+        }
+
+        DiscourseElementFileLoader deloader = null;
+        if (snapshotStore == null)
+        {
+            deloader = new DiscourseElementFileLoader();
+            if (isVerbose()) {System.err.print("\n  Loading basedata from "+wordFileName+" ... ");}
+            int b=0;
+            if (COLUMNAR_BASEDATA)
+            {
+                b=deloader.loadColumnar(wordFileName);
+            }
+            else
+            {
+                b=deloader.load(wordFileName);
+            }
+            if (isVerbose()) {System.err.println(b+" elements have been loaded!");}
+        }
 
         /* Create MMAX2Discourse object */
         currentDiscourse = new MMAX2Discourse(withGUI);
-        currentDiscourse.setWordDOM(deloader.getDOM());
+        if (snapshotStore != null)
+        {
+            if (COLUMNAR_BASEDATA)
+            {
+                currentDiscourse.setWordStore(snapshotStore);
+            }
+            else
+            {
+                currentDiscourse.setWordDOM(snapshotStore.createDocument());
+            }
+        }
+        // The base data may have been loaded as a DOM even in columnar mode, if the column store could not represent it
+        else if (deloader.getWordStore() != null)
+        {
+            currentDiscourse.setWordStore(deloader.getWordStore());
+        }
+        else
+        {
+            currentDiscourse.setWordDOM(deloader.getDOM());
+        }
         currentDiscourse.setWordFileName(wordFileName);
         currentDiscourse.setCommonBasedataPath(commonBasedataPath);
         
@@ -485,25 +579,255 @@ public class MMAX2DiscourseLoader
         currentDiscourse.setNameSpace(nameSpace);        
         currentDiscourse.setStyleSheetFileNames(this.styleSheetFileNames);
         
-        // Create one MFL instance
-        MarkableFileLoader mfl = new MarkableFileLoader();
         int currentMaxID =0;
+        int totalMaxID = -1;
+        if (snapshotStore != null)
+        {
+            totalMaxID = createMarkableLevelsFromSnapshot(snapshot);
+            if (totalMaxID == -1) { System.err.println("Cannot read markable levels from snapshot "+snapshotFile+", loading them again!"); }
+        }
+        boolean loadedFromSnapshot = totalMaxID != -1;
+        if (loadedFromSnapshot)
+        {
+            // All levels have been created from the snapshot
+        }
+        else if (PARALLEL_LOADING && levelCount > 1)
+        {
+            totalMaxID = loadMarkableLevelsInParallel();
+        }
+        else
+        {
+            totalMaxID = 0;
+            // Create one MFL instance
+            MarkableFileLoader mfl = new MarkableFileLoader();
+            // Iterate over all markable file names found
+            for (int p=0;p<levelCount;p++)
+            {
+//                if (isVerbose()) System.err.println("\n  Loading markable level "+markableLevelNames[p]+" ... ");
+                MarkableLevel newLevel = loadMarkableLevel(mfl, p);
+                currentMaxID = createMarkables(newLevel, p);            
+                if (currentMaxID > totalMaxID) totalMaxID = currentMaxID;
+                currentDiscourse.getCurrentMarkableChart().addMarkableLevel(newLevel);
+            }                
+        }
+        currentDiscourse.getCurrentMarkableChart().setNextFreeMarkableIDNum(totalMaxID+1);
+
+        if (snapshotInputFileNames != null && loadedFromSnapshot == false)
+        {
+            writeSnapshot(snapshotFile, snapshotInputFileNames, snapshotStore, deloader);
+        }
+    }
+    
+    /** Returns the file in which the snapshot of the discourse in mmaxFileName is kept, or null if snapshots are not used. */
+    private final File getSnapshotFile(String mmaxFileName)
+    {
+        if (SNAPSHOT_CACHE == null || SNAPSHOT_CACHE.equals(""))
+        {
+            return null;
+        }
+        if (SNAPSHOT_CACHE.equalsIgnoreCase("true"))
+        {
+            return new File(mmaxFileName+".snapshot");
+        }
+        File mmaxFile = new File(mmaxFileName).getAbsoluteFile();
+        // Discourses with the same name in different directories may share one cache directory
+        return new File(SNAPSHOT_CACHE, mmaxFile.getName()+"."+Integer.toHexString(mmaxFile.getPath().hashCode())+".snapshot");
+    }
+    
+    /** Returns the names of all files that the discourse is loaded from, which a snapshot of it depends on, or null if the 
+        snapshot cannot be used, because a markable level has a journal of unsaved changes (cf. MarkableLevel.replayJournal()). */
+    private final ArrayList<String> getSnapshotInputFileNames(String mmaxFileName)
+    {
+        ArrayList<String> result = new ArrayList<String>();
+        result.add(mmaxFileName);
+        result.add(commonPathsFileName);
+        result.add(wordFileName);
+        for (int p=0;p<levelCount;p++)
+        {
+            if (new File(markableFileNames[p]+".journal").exists())
+            {
+                if (isVerbose()) {System.err.println("  Not using snapshot, level "+markableLevelNames[p]+" has a journal");}
+                return null;
+            }
+            result.add(markableFileNames[p]);
+            result.add(schemeFileNames[p]);
+            if (customizationFileNames[p].equals("")==false)
+            {
+                result.add(customizationFileNames[p]);
+            }
+        }
+        return result;
+    }
+    
+    /** Creates all markable levels, with their markables, from snapshot, which must be positioned after the base data, and adds 
+        them to the MarkableChart. Markable and base data files are not parsed, but annotation schemes and customizations are. 
+        Returns the highest markable ID number on any level, or -1 if the snapshot could not be read, in which case no level
+        has been added. */
+    private final int createMarkableLevelsFromSnapshot(DataInputStream snapshot)
+    {
+        MarkableLevel[] levels = new MarkableLevel[levelCount];
         int totalMaxID = 0;
-        // Iterate over all markable file names found
+        try
+        {
+            if (snapshot.readInt() != levelCount)
+            {
+                return -1;
+            }
+            for (int p=0;p<levelCount;p++)
+            {
+                if (snapshot.readUTF().equals(markableLevelNames[p])==false)
+                {
+                    return -1;
+                }
+                if (isVerbose()) {System.err.println("  Loading markable level "+markableLevelNames[p]+" from snapshot");}
+                DocumentImpl markableDOM = MarkableLevel.readSnapshotDOM(snapshot);
+                levels[p] = new MarkableLevel(markableDOM, markableFileNames[p], markableLevelNames[p], new MMAX2AnnotationScheme(schemeFileNames[p]), customizationFileNames[p]);
+                levels[p].setCurrentDiscourse(currentDiscourse);
+                if (startupModes[p].equalsIgnoreCase("inactive") || startupModes[p].equalsIgnoreCase("invisible"))
+                {
+                    levels[p].setInactive();
+                }
+                else if (startupModes[p].equalsIgnoreCase("visible"))
+                {
+                    levels[p].setVisible();
+                }
+                int maxID = levels[p].createMarkables(snapshot);
+                if (maxID > totalMaxID) totalMaxID = maxID;
+            }
+        }
+        catch (IOException ex)
+        {
+            System.err.println(ex.getMessage());
+            return -1;
+        }
         for (int p=0;p<levelCount;p++)
         {
-//            if (isVerbose()) System.err.println("\n  Loading markable level "+markableLevelNames[p]+" ... ");
-            mfl.load(markableFileNames[p],markableLevelNames[p],schemeFileNames[p],customizationFileNames[p], startupModes[p]);
-
-            // Get markable level object. Up to now, this has only a non-null DOM, but no markables yet
-            MarkableLevel newLevel = mfl.getMarkableLevel();
-            // Set reference to associated discourse. This is required for next call (cf. below)
-            newLevel.setCurrentDiscourse(currentDiscourse);
-            currentMaxID = newLevel.createMarkables();            
-            if (currentMaxID > totalMaxID) totalMaxID = currentMaxID;
-            currentDiscourse.getCurrentMarkableChart().addMarkableLevel(newLevel);
-        }                
-        currentDiscourse.getCurrentMarkableChart().setNextFreeMarkableIDNum(totalMaxID+1);
+            currentDiscourse.getCurrentMarkableChart().addMarkableLevel(levels[p]);
+        }
+        return totalMaxID;
+    }
+    
+    /** Writes a snapshot of the discourse that has just been loaded to snapshotFile, unless a level has been changed or is 
+        read-only after loading. The base data is taken from store if it has been read from a snapshot already, else from 
+        deloader. */
+    private final void writeSnapshot(File snapshotFile, ArrayList<String> inputFileNames, MMAX2WordStore store, DiscourseElementFileLoader deloader)
+    {
+        MarkableLevel[] levels = new MarkableLevel[levelCount];
+        for (int p=0;p<levelCount;p++)
+        {
+            levels[p] = currentDiscourse.getCurrentMarkableChart().getMarkableLevelByName(markableLevelNames[p], false);
+            if (levels[p] == null || levels[p].getIsDirty() || levels[p].getIsReadOnly())
+            {
+                if (isVerbose()) {System.err.println("  Not writing snapshot, level "+markableLevelNames[p]+" is modified or read-only");}
+                return;
+            }
+        }
+        if (store == null)
+        {
+            store = deloader.getWordStore() != null ? deloader.getWordStore() : MMAX2WordStore.fromDocument(deloader.getDOM());
+        }
+        if (store == null)
+        {
+            return;
+        }
+        if (MMAX2DiscourseSnapshot.write(snapshotFile, inputFileNames, store, levels) && isVerbose())
+        {
+            System.err.println("  Snapshot written to "+snapshotFile);
+        }
+    }
+    
+    /** Loads the markable file and annotation scheme of level number p with mfl, and returns the new MarkableLevel. 
+        Markables have not been created yet at this point. */
+    private final MarkableLevel loadMarkableLevel(MarkableFileLoader mfl, int p)
+    {
+        mfl.load(markableFileNames[p],markableLevelNames[p],schemeFileNames[p],customizationFileNames[p], startupModes[p]);
+        // Get markable level object. Up to now, this has only a non-null DOM, but no markables yet
+        MarkableLevel newLevel = mfl.getMarkableLevel();
+        // Set reference to associated discourse. This is required for createMarkables()
+        newLevel.setCurrentDiscourse(currentDiscourse);
+        return newLevel;
+    }
+    
+    /** Creates the markables on newLevel, which is level number p, and returns the highest markable ID number on it. If the level
+        is inactive at startup, creating its markables is deferred until they are first needed (cf. MarkableLevel.materialize()). */
+    private final int createMarkables(MarkableLevel newLevel, int p)
+    {
+        if (LAZY_LEVELS && (startupModes[p].equalsIgnoreCase("inactive") || startupModes[p].equalsIgnoreCase("invisible")))
+        {
+            if (isVerbose()) {System.err.println("  Deferring markable creation on inactive level "+markableLevelNames[p]);}
+            return newLevel.deferMarkableCreation();
+        }
+        return newLevel.createMarkables();
+    }
+    
+    /** Loads all markable levels (markable file, annotation scheme, and markables) concurrently on a pool of at most one thread per
+        processor, each with its own MarkableFileLoader. Levels are then added to the MarkableChart in the order in which they are 
+        declared, so that the result is the same as after sequential loading. A level that fails to load concurrently is loaded again
+        sequentially. Returns the highest markable ID number on any level. */
+    private final int loadMarkableLevelsInParallel()
+    {
+        // Create the base data index beforehand, as all levels need it for span expansion
+        currentDiscourse.getBasedataIndex();
+        
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(levelCount, Runtime.getRuntime().availableProcessors())));
+        ArrayList<Future<LoadedMarkableLevel>> loadedLevels = new ArrayList<Future<LoadedMarkableLevel>>();
+        for (int p=0;p<levelCount;p++)
+        {
+            final int levelIndex = p;
+            loadedLevels.add(pool.submit(new Callable<LoadedMarkableLevel>()
+            {
+                public LoadedMarkableLevel call()
+                {
+                    MarkableLevel newLevel = loadMarkableLevel(new MarkableFileLoader(), levelIndex);
+                    return new LoadedMarkableLevel(newLevel, createMarkables(newLevel, levelIndex));
+                }
+            }));
+        }
+        
+        int totalMaxID = 0;
+        try
+        {
+            for (int p=0;p<levelCount;p++)
+            {
+                LoadedMarkableLevel loaded = null;
+                try
+                {
+                    loaded = loadedLevels.get(p).get();
+                }
+                catch (java.util.concurrent.ExecutionException ex)
+                {
+                    System.err.println("Error loading markable level "+markableLevelNames[p]+" concurrently, loading it again!");
+                    ex.getCause().printStackTrace();
+                    MarkableLevel newLevel = loadMarkableLevel(new MarkableFileLoader(), p);
+                    loaded = new LoadedMarkableLevel(newLevel, createMarkables(newLevel, p));
+                }
+                if (loaded.maxID > totalMaxID) totalMaxID = loaded.maxID;
+                currentDiscourse.getCurrentMarkableChart().addMarkableLevel(loaded.level);
+            }
+        }
+        catch (java.lang.InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            ex.printStackTrace();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        return totalMaxID;
+    }
+    
+    /** A MarkableLevel with created markables, together with the highest markable ID number on it. */
+    private static final class LoadedMarkableLevel
+    {
+        private final MarkableLevel level;
+        private final int maxID;
+        
+        private LoadedMarkableLevel(MarkableLevel _level, int _maxID)
+        {
+            level = _level;
+            maxID = _maxID;
+        }
     }
     
     public boolean isVerbose()
@@ -556,16 +880,58 @@ public class MMAX2DiscourseLoader
     {
         return currentDiscourse;
     }    
+    
+    /** Binds discourse to the current thread as the target of all XSL extension functions in this class, and returns the
+        discourse previously bound (or null). Passing null removes the binding. <b>Internal use only!</b>*/
+    public static MMAX2Discourse bindTransformationDiscourse(MMAX2Discourse discourse)
+    {
+        MMAX2Discourse previous = transformationDiscourse.get();
+        if (discourse == null)
+        {
+            transformationDiscourse.remove();
+        }
+        else
+        {
+            transformationDiscourse.set(discourse);
+        }
+        return previous;
+    }
+    
+    /** Returns the discourse that the current thread is transforming. Throws an IllegalStateException if no discourse is bound
+        to the current thread, i.e. if an extension function is called from a transformation that was not started by 
+        MMAX2Discourse.applyStyleSheet(). The transformer reports this as a TransformerException. */
+    private static MMAX2Discourse getTransformationDiscourse()
+    {
+        MMAX2Discourse result = transformationDiscourse.get();
+        if (result == null)
+        {
+            throw new IllegalStateException("No discourse is bound to thread "+Thread.currentThread().getName()+
+                    ": MMAX2 extension functions can only be used in style sheets applied by MMAX2Discourse.applyStyleSheet()");
+        }
+        return result;
+    }
+    
+    /** Returns the markable chart of the discourse that the current thread is transforming. */
+    private static MarkableChart getTransformationChart()
+    {
+        return getTransformationDiscourse().getCurrentMarkableChart();
+    }
+    
+    /** Returns the display document of the discourse that the current thread is transforming, or null if that discourse
+        has no GUI. */
+    private static MMAX2Document getTransformationDocument()
+    {
+        MMAX2Discourse discourse = getTransformationDiscourse();
+        return (discourse.getHasGUI() ? discourse.getDisplayDocument() : null);
+    }
                
     public static String addHotSpot(String toDisplay, String hotSpotText)
     {
+        MMAX2Discourse currentDiscourse = getTransformationDiscourse();
         int extent = toDisplay.length();
         /** Get current document position, i.e. character stream position. */
         int currentDocumentPosition = currentDiscourse.getCurrentDocumentPosition();
-        for (int temp=0;temp<extent;temp++)
-        {
-            currentDiscourse.hotSpotDisplayAssociation.put(new Integer(currentDocumentPosition+temp),hotSpotText);
-        }
+        currentDiscourse.hotSpotDisplayAssociation.add(currentDocumentPosition,extent,hotSpotText);
         return toDisplay;
     }
     
@@ -590,155 +956,89 @@ public class MMAX2DiscourseLoader
         return string1+" "+string2+" "+string3+" "+string4+" "+string5;
     }
     
-    /** Adds a left markable handle (clickable area directly associated with a markable) of size extent. */    
-    public static void addLeftMarkableHandle(String layerName, String markableId, int extent)    
+    /** Associates the markable with ID markableId on level layerName with the next extent display positions, and adds a 
+        left (if left is true) or right markable handle at position handleOffset relative to these. All addLeftMarkableHandle()
+        and addRightMarkableHandle() variants below end up here. */
+    private static void addMarkableHandle(String layerName, String markableId, int extent, int handleOffset, boolean left)
     {
+        MMAX2Discourse currentDiscourse = getTransformationDiscourse();
         /** Get reference to markable to which handle is added. */
         Markable currentMarkable = currentDiscourse.getCurrentMarkableChart().getMarkableLevelByName(layerName,true).getMarkableByID(markableId);
         /** Get current document position, i.e. character stream position. */
         int currentDocumentPosition = currentDiscourse.getCurrentDocumentPosition();
-        currentMarkable.addLeftHandlePosition(currentDocumentPosition);        
-        for (int temp=0;temp<extent;temp++)
+        if (left)
         {
-            currentDiscourse.markableDisplayAssociation.put(new Integer(currentDocumentPosition+temp),currentMarkable);
+            currentMarkable.addLeftHandlePosition(currentDocumentPosition+handleOffset);
         }
+        else
+        {
+            currentMarkable.addRightHandlePosition(currentDocumentPosition+handleOffset);
+        }
+        currentDiscourse.markableDisplayAssociation.add(currentDocumentPosition,extent,currentMarkable);
+    }
+    
+    /** Adds a left markable handle (clickable area directly associated with a markable) of size extent. */    
+    public static void addLeftMarkableHandle(String layerName, String markableId, int extent)    
+    {
+        addMarkableHandle(layerName, markableId, extent, 0, true);
     }        
     
     /** Adds a right markable handle (clickable area directly associated with a markable) of size extent. */    
     public static void addRightMarkableHandle(String layerName, String markableId, int extent)    
     {
-        /** Get reference to markable to which handle is added. */
-        Markable currentMarkable = currentDiscourse.getCurrentMarkableChart().getMarkableLevelByName(layerName,true).getMarkableByID(markableId);
-        /** Get current document position, i.e. character stream position. */
-        int currentDocumentPosition = currentDiscourse.getCurrentDocumentPosition();       
-        currentMarkable.addRightHandlePosition(currentDocumentPosition+extent-1);        
-        for (int temp=0;temp<extent;temp++)
-        {
-            currentDiscourse.markableDisplayAssociation.put(new Integer(currentDocumentPosition+temp),currentMarkable);
-        }
+        addMarkableHandle(layerName, markableId, extent, extent-1, false);
     }    
 
-
-    
-    
-    
-    
-
-    /** Adds handleText as a left markable handle (clickable area directly associated with a markable). */    
+    /** Adds handleText as a left markable handle (clickable area directly associated with a markable), where the actual
+        handle is at position highlightPos in handleText. */    
     public static String addLeftMarkableHandle(String layerName, String markableId, String handleText, int highlightPos)    
     {
-        /** Get reference to markable to which handle is added. */
-        Markable currentMarkable = currentDiscourse.getCurrentMarkableChart().getMarkableLevelByName(layerName,true).getMarkableByID(markableId);
-        /** Get current document position, i.e. character stream position. */
-        int currentDocumentPosition = currentDiscourse.getCurrentDocumentPosition();
-        if (highlightPos == 1)
-        {
-            currentMarkable.addLeftHandlePosition(currentDocumentPosition);    
-        }
-        else
-        {
-            currentMarkable.addLeftHandlePosition(currentDocumentPosition+highlightPos-1);
-        }
-        int extent = handleText.length();
-        for (int temp=0;temp<extent;temp++)
-        {
-            currentDiscourse.markableDisplayAssociation.put(new Integer(currentDocumentPosition+temp),currentMarkable);
-        }
+        addMarkableHandle(layerName, markableId, handleText.length(), highlightPos-1, true);
         return handleText;
     }        
 
     /** Adds handleText as a left markable handle (clickable area directly associated with a markable). */    
     public static String addLeftMarkableHandle(String layerName, String markableId, String handleText)    
     {
-        /** Get reference to markable to which handle is added. */
-        Markable currentMarkable = currentDiscourse.getCurrentMarkableChart().getMarkableLevelByName(layerName,true).getMarkableByID(markableId);
-        /** Get current document position, i.e. character stream position. */
-        int currentDocumentPosition = currentDiscourse.getCurrentDocumentPosition();
-        currentMarkable.addLeftHandlePosition(currentDocumentPosition);    
-        int extent = handleText.length();
-        for (int temp=0;temp<extent;temp++)
-        {
-            currentDiscourse.markableDisplayAssociation.put(new Integer(currentDocumentPosition+temp),currentMarkable);
-        }
+        addMarkableHandle(layerName, markableId, handleText.length(), 0, true);
         return handleText;
     }        
     
-    
-    /** Adds handleText as a right markable handle (clickable area directly associated with a markable). */    
+    /** Adds handleText as a right markable handle (clickable area directly associated with a markable), where the actual
+        handle is at position highlightPos in handleText. */    
     public static String addRightMarkableHandle(String layerName, String markableId, String handleText, int highlightPos)    
     {
-        /** Get reference to markable to which handle is added. */
-        Markable currentMarkable = currentDiscourse.getCurrentMarkableChart().getMarkableLevelByName(layerName,true).getMarkableByID(markableId);
-        int extent = handleText.length();
-        /** Get current document position, i.e. character stream position. */
-        int currentDocumentPosition = currentDiscourse.getCurrentDocumentPosition();
-        if (highlightPos == extent)
-        {
-            currentMarkable.addRightHandlePosition(currentDocumentPosition+extent-1);       
-        }
-        else
-        {
-            currentMarkable.addRightHandlePosition(currentDocumentPosition+extent-1-(extent-highlightPos));
-        }
-        for (int temp=0;temp<extent;temp++)
-        {
-            currentDiscourse.markableDisplayAssociation.put(new Integer(currentDocumentPosition+temp),currentMarkable);
-        }
+        addMarkableHandle(layerName, markableId, handleText.length(), highlightPos-1, false);
         return handleText;
     }    
     
     /** Adds handleText as a right markable handle (clickable area directly associated with a markable). */    
     public static String addRightMarkableHandle(String layerName, String markableId, String handleText)    
     {
-        /** Get reference to markable to which handle is added. */
-        Markable currentMarkable = currentDiscourse.getCurrentMarkableChart().getMarkableLevelByName(layerName,true).getMarkableByID(markableId);
-        int extent = handleText.length();
-        /** Get current document position, i.e. character stream position. */
-        int currentDocumentPosition = currentDiscourse.getCurrentDocumentPosition();
-        currentMarkable.addRightHandlePosition(currentDocumentPosition+extent-1);       
-        for (int temp=0;temp<extent;temp++)
-        {
-            currentDiscourse.markableDisplayAssociation.put(new Integer(currentDocumentPosition+temp),currentMarkable);
-        }
+        addMarkableHandle(layerName, markableId, handleText.length(), handleText.length()-1, false);
         return handleText;
     }    
     
-    
     /** Adds a right markable handle (clickable area directly associated with a markable) of size extent, where the actual handle is at position leftHandle relative to extent. */    
     public static void addLeftMarkableHandle(String layerName, String markableId, int extent, int leftHandle)    
     {
-        /** Get reference to markable to which handle is added. */
-        Markable currentMarkable = currentDiscourse.getCurrentMarkableChart().getMarkableLevelByName(layerName,true).getMarkableByID(markableId);
-        /** Get current document position, i.e. character stream position. */
-        int currentDocumentPosition = currentDiscourse.getCurrentDocumentPosition();
-        currentMarkable.addLeftHandlePosition(currentDocumentPosition+leftHandle-1);        
-        for (int temp=0;temp<extent;temp++)
-        {
-            currentDiscourse.markableDisplayAssociation.put(new Integer(currentDocumentPosition+temp),currentMarkable);
-        }
+        addMarkableHandle(layerName, markableId, extent, leftHandle-1, true);
     }    
     
     /** Adds a right markable handle (clickable area directly associated with a markable) of size extent, where the actual handle is at position rightHandle relative to extent. */    
     public static void addRightMarkableHandle(String layerName, String markableId, int extent, int rightHandle)    
     {
-        /** Get reference to markable to which handle is added. */
-        Markable currentMarkable = currentDiscourse.getCurrentMarkableChart().getMarkableLevelByName(layerName,true).getMarkableByID(markableId);
-        /** Get current document position, i.e. character stream position. */
-        int currentDocumentPosition = currentDiscourse.getCurrentDocumentPosition();
-        currentMarkable.addRightHandlePosition(currentDocumentPosition+rightHandle-1);        
-        for (int temp=0;temp<extent;temp++)
-        {
-            currentDiscourse.markableDisplayAssociation.put(new Integer(currentDocumentPosition+temp),currentMarkable);
-        }
+        addMarkableHandle(layerName, markableId, extent, rightHandle-1, false);
     }    
             
     public static void registerDiscourseElement(String id)
     {      
-       currentDiscourse.registerDiscourseElement(id);
+       getTransformationDiscourse().registerDiscourseElement(id);
     }
         
     public static boolean isOn(String switchName)
     {
+        MMAX2Discourse currentDiscourse = getTransformationDiscourse();
         if (currentDiscourse.getMMAX2() != null)
         {
             return currentDiscourse.getMMAX2().isOn(switchName);
@@ -757,6 +1057,7 @@ public class MMAX2DiscourseLoader
         display that this element starts at. <b>Internal use only!</b>*/
     public static void setDiscourseElementStart()
     {
+        MMAX2Discourse currentDiscourse = getTransformationDiscourse();
         try
         {
             // Get index in document string up to which the document has been transformed already.        
@@ -784,6 +1085,7 @@ public class MMAX2DiscourseLoader
         display that this element ends at. <b>Internal use only!</b>*/
     public static void setDiscourseElementEnd()
     {       
+        MMAX2Discourse currentDiscourse = getTransformationDiscourse();
         try
         {        
             // Get index in document string up to which the document has been transformed already.
@@ -800,130 +1102,138 @@ public class MMAX2DiscourseLoader
                
     public static void startItalic()
     {
-       if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setItalic(true);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setItalic(true);
     }
     
     public static void endItalic()
     {
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setItalic(false);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setItalic(false);
     }
         
     public static void startBold()
     {
-    	//System.err.println("setBold=True");
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setBold(true);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setBold(true);
     }  
     
     public static void endBold()
     {
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setBold(false);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setBold(false);
     }
 
     public static void startUnderline()
     {
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setUnderline(true);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setUnderline(true);
     }    
     
     public static void endUnderline()
     {
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setUnderline(false);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setUnderline(false);
     }
     
     public static void startSubscript()
     {
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setSubscript(true);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setSubscript(true);
     }
     
     public static void endSubscript()
     {
-        if (currentDiscourse.getHasGUI())    currentDiscourse.getDisplayDocument().setSubscript(false);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setSubscript(false);
     }
     
     public static void startStrikeThrough()
     {
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setStrikeThrough(true);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setStrikeThrough(true);
     }
     
     public static void endStrikeThrough()
     {
-        if (currentDiscourse.getHasGUI())    currentDiscourse.getDisplayDocument().setStrikeThrough(false);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setStrikeThrough(false);
     }
 
     public static void startSuperscript()
     {
-        if (currentDiscourse.getHasGUI())   currentDiscourse.getDisplayDocument().setSuperscript(true);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setSuperscript(true);
     }
     
     public static void endSuperscript()
     {
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setSuperscript(false);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setSuperscript(false);
     }
         
     
     public static void startColor(String colorName)
     {      
-        // If no color is explicitly associated with a level, use default foreground color black
-        Color color = MMAX2Utils.getColorByName(colorName);
-        if (color == null) color = Color.black;
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setColor(color, true);
+        setColor(MMAX2Utils.getColorByName(colorName), true);
     }
     
     public static void endColor(String colorName)
     {
-        // If no color is explicitly associated with a level, use default foreground color black
-        Color color = MMAX2Utils.getColorByName(colorName);
-        if (color == null) color = Color.black;
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setColor(color, false);
+        setColor(MMAX2Utils.getColorByName(colorName), false);
     }    
     
     
     public static void startAssociatedColor(String levelname)
     {
-        // If no color is explicitly associated with a level, use default foreground color black
-        Color color = currentDiscourse.getCurrentMarkableChart().getForegroundColorForLevel(levelname);
-        if (color == null) color = Color.black;
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setColor(color, true);
+        setColor(getTransformationChart().getForegroundColorForLevel(levelname), true);
     }
     
     public static void endAssociatedColor(String levelname)
+    {
+        setColor(getTransformationChart().getForegroundColorForLevel(levelname), false);
+    }
+    
+    /** Starts (if start is true) or ends color in the display document, if any. */
+    private static void setColor(Color color, boolean start)
     {
         // If no color is explicitly associated with a level, use default foreground color black
-        Color color = currentDiscourse.getCurrentMarkableChart().getForegroundColorForLevel(levelname);
         if (color == null) color = Color.black;
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().setColor(color, false);
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.setColor(color, start);
     }
 
     public final static String getFromHash(String key)
     {
-        return currentDiscourse.getFromHash(key);
+        return getTransformationDiscourse().getFromHash(key);
     }
     
     public final static void putInHash(String key, String value)
     {
-        currentDiscourse.putInHash(key, value);
+        getTransformationDiscourse().putInHash(key, value);
     }
         
 
     public final static boolean inMarkableFromLevel(String DE_ID, String targetLevelName)
     {
-        return currentDiscourse.getCurrentMarkableChart().inMarkableFromLevel(DE_ID, targetLevelName);
+        return getTransformationChart().inMarkableFromLevel(DE_ID, targetLevelName);
     }
 
     
     public final static boolean inMarkableFromLevel(String markableID, String ownLevelName, String targetLevelName)
     {
-        return currentDiscourse.getCurrentMarkableChart().inMarkableFromLevel(markableID, ownLevelName, targetLevelName);                
+        return getTransformationChart().inMarkableFromLevel(markableID, ownLevelName, targetLevelName);                
     }
     
     
     public final static boolean startsMarkableFromLevel(String markableID, String ownLevelName, String targetLevelName)
     {
-        return currentDiscourse.getCurrentMarkableChart().startsMarkableFromLevel(markableID, ownLevelName, targetLevelName);                
+        return getTransformationChart().startsMarkableFromLevel(markableID, ownLevelName, targetLevelName);                
     }
 
     public final static boolean finishesMarkableFromLevel(String markableID, String ownLevelName, String targetLevelName)
     {
-        return currentDiscourse.getCurrentMarkableChart().finishesMarkableFromLevel(markableID, ownLevelName, targetLevelName);                
+        return getTransformationChart().finishesMarkableFromLevel(markableID, ownLevelName, targetLevelName);                
     }
     
     public final String getCommonStylePath()
@@ -933,8 +1243,8 @@ public class MMAX2DiscourseLoader
     
     public static void flushDocument()
     {
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getDisplayDocument().flush();
-        if (currentDiscourse.getHasGUI()) currentDiscourse.getCurrentDocumentPosition();
+        MMAX2Document document = getTransformationDocument();
+        if (document != null) document.flush();
     }
     
     /** This method returns a NodeSet of all Markables from all ACTIVE layers beginning at the DiscourseElement with ID 
@@ -944,7 +1254,7 @@ public class MMAX2DiscourseLoader
         ordered before shorter ones. This way, MarkableLayers are added on top of each other. */        
     public final static NodeList getStartedMarkables(String discourseElementId)
     {
-        return currentDiscourse.getCurrentMarkableChart().getActiveStartedMarkables(discourseElementId);
+        return getTransformationChart().getActiveStartedMarkables(discourseElementId);
     }
 
     /** This method returns a NodeSet of all Markables from all ACTIVE layers beginning at the DiscourseElement with ID 
@@ -954,18 +1264,18 @@ public class MMAX2DiscourseLoader
         ordered before shorter ones. This way, MarkableLayers are added on top of each other. */        
     public final static NodeList getStartedMarkables(String discourseElementId, String levels)
     {
-        return currentDiscourse.getCurrentMarkableChart().getActiveStartedMarkables(discourseElementId,levels);
+        return getTransformationChart().getActiveStartedMarkables(discourseElementId,levels);
     }
     
     
     public final static NodeSet getEndedMarkables(String discourseElementId)
     {
-        return currentDiscourse.getCurrentMarkableChart().getActiveEndedMarkables(discourseElementId);
+        return getTransformationChart().getActiveEndedMarkables(discourseElementId);
     }   
 
     public final static NodeSet getEndedMarkables(String discourseElementId, String levels)
     {
-        return currentDiscourse.getCurrentMarkableChart().getActiveEndedMarkables(discourseElementId,levels);
+        return getTransformationChart().getActiveEndedMarkables(discourseElementId,levels);
     }   
     
     
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.discourse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import org.eml.MMAX2.annotation.markables.MarkableLevel;
+
+/** Binary snapshot of a loaded discourse, which replaces parsing the base data and markable files on the next start. A snapshot
+    holds the base data elements in discourse order (as an MMAX2WordStore), and for every markable level the properties of its
+    markable file and its markables, with fragments as ranges in the base data index and attribute names and values interned
+    once per level (cf. MarkableLevel.writeSnapshot()). Set and pointer relations need not be stored, since they are rebuilt
+    from the relation attributes. A snapshot is only valid as long as none of the files it was created from (.mmax file, common
+    paths, base data, markable, scheme and customization files) has changed in path, size or modification time. The content
+    is protected by a checksum, and is written to a temporary file first, which then replaces the snapshot in one rename. */
+public class MMAX2DiscourseSnapshot
+{
+    private static final int MAGIC = 0x4D4D5832; // MMX2
+    /** Must be incremented whenever the file format changes. */
+    private static final int VERSION = 2;
+
+    private MMAX2DiscourseSnapshot()
+    {
+
+    }
+
+    /** Returns the content of the snapshot in snapshotFile, positioned at the base data (cf. MMAX2WordStore.read()). Returns null
+        if the file does not exist, cannot be read, was written by a different version, is damaged, or was created from input
+        files other than inputFileNames (or from different versions of them). */
+    public static final DataInputStream open(File snapshotFile, ArrayList<String> inputFileNames)
+    {
+        if (snapshotFile.exists()==false)
+        {
+            return null;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                return null;
+            }
+            int inputCount = in.readInt();
+            if (inputCount != inputFileNames.size())
+            {
+                return null;
+            }
+            for (int z=0;z<inputCount;z++)
+            {
+                File inputFile = new File(inputFileNames.get(z));
+                if (in.readUTF().equals(inputFile.getAbsolutePath())==false || in.readLong() != inputFile.length() || in.readLong() != inputFile.lastModified())
+                {
+                    return null;
+                }
+            }
+            byte[] content = new byte[in.readInt()];
+            long checksum = in.readLong();
+            in.readFully(content);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            if (crc.getValue() != checksum)
+            {
+                System.err.println("Snapshot "+snapshotFile.getAbsolutePath()+" is damaged, ignoring it.");
+                return null;
+            }
+            return new DataInputStream(new ByteArrayInputStream(content));
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Cannot read snapshot "+snapshotFile.getAbsolutePath()+": "+ex.getMessage());
+            return null;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try { in.close(); }
+                catch (IOException ex) { }
+            }
+        }
+    }
+
+    /** Writes a snapshot of the base data in store and of levels (in the order in which they are declared) to snapshotFile,
+        keyed by inputFileNames. Returns true if the snapshot has been replaced. */
+    public static final boolean write(File snapshotFile, ArrayList<String> inputFileNames, MMAX2WordStore store, MarkableLevel[] levels)
+    {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(1 << 16);
+        try
+        {
+            DataOutputStream out = new DataOutputStream(content);
+            store.write(out);
+            out.writeInt(levels.length);
+            for (int l=0;l<levels.length;l++)
+            {
+                out.writeUTF(levels[l].getMarkableLevelName());
+                levels[l].writeSnapshot(out);
+            }
+            out.flush();
+        }
+        catch (IOException ex)
+        {
+            // E.g. a value too long for writeUTF()
+            System.err.println("Cannot create snapshot "+snapshotFile.getAbsolutePath()+": "+ex.getMessage());
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content.toByteArray());
+
+        File tempFile = new File(snapshotFile.getAbsolutePath()+".tmp");
+        FileOutputStream fos = null;
+        boolean written = false;
+        try
+        {
+            fos = new FileOutputStream(tempFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(inputFileNames.size());
+            for (int z=0;z<inputFileNames.size();z++)
+            {
+                File inputFile = new File(inputFileNames.get(z));
+                out.writeUTF(inputFile.getAbsolutePath());
+                out.writeLong(inputFile.length());
+                out.writeLong(inputFile.lastModified());
+            }
+            out.writeInt(content.size());
+            out.writeLong(crc.getValue());
+            content.writeTo(out);
+            out.flush();
+            written = true;
+        }
+        catch (IOException ex) { System.err.println("Cannot write snapshot "+snapshotFile.getAbsolutePath()+": "+ex.getMessage()); }
+        finally
+        {
+            if (fos != null)
+            {
+                try { fos.close(); }
+                catch (IOException ex) { written = false; System.err.println(ex.getMessage()); }
+            }
+        }
+        if (written == false)
+        {
+            tempFile.delete();
+            return false;
+        }
+
+        try
+        {
+            try
+            {
+                Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Cannot replace snapshot "+snapshotFile.getAbsolutePath()+": "+ex.getMessage());
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /** Writes value, which may be null, to out. */
+    public static final void writeString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    /** Reads a value written by writeString() from in. */
+    public static final String readString(DataInputStream in) throws IOException
+    {
+        if (in.readBoolean()==false)
+        {
+            return null;
+        }
+        return in.readUTF();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.discourse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Associates ranges of display positions (e.g. markable handles or hot spots) with objects. Each range is stored once
+    as an interval rather than once per character. Ranges never overlap: like a map from display positions to objects, the
+    last object associated with a position wins, so adding a range trims or splits the older ranges it overlaps. Ranges are
+    kept in a tree by start position, so that adding (in any order), lookup of the object at a display position, and removal
+    are logarithmic. All ranges of one object can be removed via a reverse index without scanning the other ranges. */
+public class MMAX2DisplayAssociationStore<V>
+{
+    /** One range of display positions associated with value. */
+    private static final class Range
+    {
+        /** Inclusive display start position. */
+        int start;
+        /** Exclusive display end position. */
+        int end;
+        final Object value;
+
+        Range(int _start, int _end, Object _value)
+        {
+            start = _start;
+            end = _end;
+            value = _value;
+        }
+    }
+
+    private static final Comparator<Range> START_ORDER = new Comparator<Range>()
+    {
+        public int compare(Range range1, Range range2)
+        {
+            return range1.start < range2.start ? -1 : (range1.start == range2.start ? 0 : 1);
+        }
+    };
+
+    /** All ranges by their start position. */
+    private final TreeMap<Integer, Range> rangesByStart = new TreeMap<Integer, Range>();
+    /** Maps each associated object to its ranges. */
+    private final HashMap<Object, ArrayList<Range>> rangesOfValue = new HashMap<Object, ArrayList<Range>>();
+    /** Number of display positions covered by ranges. */
+    private int positionCount = 0;
+
+    public MMAX2DisplayAssociationStore()
+    {
+
+    }
+
+    /** Associates the extent display positions beginning at start with value, replacing any earlier associations of them. */
+    public final void add(int start, int extent, V value)
+    {
+        if (extent <= 0 || value == null)
+        {
+            return;
+        }
+        int end = start+extent;
+
+        // A range that begins before start keeps its part before start, and its part after end (if any) is split off
+        Map.Entry<Integer, Range> before = rangesByStart.lowerEntry(Integer.valueOf(start));
+        if (before != null && before.getValue().end > start)
+        {
+            Range range = before.getValue();
+            if (range.end > end)
+            {
+                addRange(new Range(end, range.end, range.value));
+                positionCount-=extent;
+            }
+            else
+            {
+                positionCount-=(range.end-start);
+            }
+            range.end = start;
+        }
+
+        // Ranges that begin within the new one lose their part within it, or are removed entirely
+        Range trimmed = null;
+        Iterator<Range> within = rangesByStart.subMap(Integer.valueOf(start), true, Integer.valueOf(end), false).values().iterator();
+        while (within.hasNext())
+        {
+            Range range = within.next();
+            within.remove();
+            if (range.end > end)
+            {
+                // Only the last one can extend beyond end
+                positionCount-=(end-range.start);
+                range.start = end;
+                trimmed = range;
+            }
+            else
+            {
+                positionCount-=(range.end-range.start);
+                removeFromValue(range);
+            }
+        }
+        if (trimmed != null)
+        {
+            rangesByStart.put(Integer.valueOf(trimmed.start), trimmed);
+        }
+
+        addRange(new Range(start, end, value));
+        positionCount+=extent;
+    }
+
+    /** Returns the object associated with displayPosition, or null. */
+    @SuppressWarnings("unchecked")
+    public final V get(int displayPosition)
+    {
+        Map.Entry<Integer, Range> entry = rangesByStart.floorEntry(Integer.valueOf(displayPosition));
+        if (entry != null && displayPosition < entry.getValue().end)
+        {
+            return (V) entry.getValue().value;
+        }
+        return null;
+    }
+
+    /** Removes all ranges associated with value, and returns the display positions they covered in ascending order. */
+    public final int[] remove(V value)
+    {
+        ArrayList<Range> ranges = rangesOfValue.remove(value);
+        if (ranges == null)
+        {
+            return new int[0];
+        }
+        Collections.sort(ranges, START_ORDER);
+        MMAX2IntArrayBuilder positions = new MMAX2IntArrayBuilder(16);
+        for (int r=0;r<ranges.size();r++)
+        {
+            Range range = ranges.get(r);
+            rangesByStart.remove(Integer.valueOf(range.start));
+            for (int pos=range.start;pos<range.end;pos++)
+            {
+                positions.add(pos);
+            }
+            positionCount-=(range.end-range.start);
+        }
+        return positions.toArray();
+    }
+
+    /** Returns all display positions that are associated with some object, in ascending order. */
+    public final int[] getAllPositions()
+    {
+        int[] result = new int[positionCount];
+        int filled = 0;
+        Iterator<Range> it = rangesByStart.values().iterator();
+        while (it.hasNext())
+        {
+            Range range = it.next();
+            for (int pos=range.start;pos<range.end;pos++)
+            {
+                result[filled++] = pos;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the number of display positions that are associated with some object. */
+    public final int size()
+    {
+        return positionCount;
+    }
+
+    public final void clear()
+    {
+        rangesByStart.clear();
+        rangesOfValue.clear();
+        positionCount = 0;
+    }
+
+    private final void addRange(Range range)
+    {
+        rangesByStart.put(Integer.valueOf(range.start), range);
+        ArrayList<Range> ranges = rangesOfValue.get(range.value);
+        if (ranges == null)
+        {
+            ranges = new ArrayList<Range>(2);
+            rangesOfValue.put(range.value, ranges);
+        }
+        ranges.add(range);
+    }
+
+    /** Removes range from the reverse index. */
+    private final void removeFromValue(Range range)
+    {
+        ArrayList<Range> ranges = rangesOfValue.get(range.value);
+        for (int r=0;r<ranges.size();r++)
+        {
+            if (ranges.get(r) == range)
+            {
+                ranges.remove(r);
+                break;
+            }
+        }
+        if (ranges.isEmpty())
+        {
+            rangesOfValue.remove(range.value);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.discourse;
+
+import java.util.Arrays;
+
+/** Growable list of primitive ints, used instead of ArrayList&lt;Integer&gt; where large numbers of positions are collected
+    (e.g. during style sheet execution). Capacity is doubled when exhausted, so that adding is amortised constant time. */
+public class MMAX2IntArrayBuilder
+{
+    private int[] values;
+    private int size = 0;
+
+    public MMAX2IntArrayBuilder()
+    {
+        this(1024);
+    }
+
+    public MMAX2IntArrayBuilder(int initialCapacity)
+    {
+        values = new int[Math.max(initialCapacity, 1)];
+    }
+
+    public final void add(int value)
+    {
+        if (size == values.length)
+        {
+            values = Arrays.copyOf(values, values.length*2);
+        }
+        values[size++] = value;
+    }
+
+    public final int get(int index)
+    {
+        if (index >= size)
+        {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return values[index];
+    }
+
+    public final int size()
+    {
+        return size;
+    }
+
+    /** Removes the first count values, moving the remaining ones to the front. */
+    public final void removeFirst(int count)
+    {
+        if (count > size)
+        {
+            throw new ArrayIndexOutOfBoundsException(count);
+        }
+        System.arraycopy(values, count, values, 0, size-count);
+        size -= count;
+    }
+
+    /** Removes all values, but keeps the allocated capacity. */
+    public final void clear()
+    {
+        size = 0;
+    }
+
+    /** Returns a new array of length size() containing the values added so far. */
+    public final int[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.discourse;
+
+import java.io.File;
+import java.util.HashMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+/** Process-wide cache of compiled XSL style sheets. Style sheets are keyed by their canonical path and recompiled only
+    if the modification time of the file has changed since it was last compiled. Templates objects are thread-safe, so
+    one compiled style sheet can be shared by all MMAX2Discourse objects. */
+public class MMAX2StyleSheetCache
+{
+    /** Maps canonical style sheet file names to their CachedStyleSheet. */
+    private static final HashMap<String, CachedStyleSheet> cache = new HashMap<String, CachedStyleSheet>();
+
+    private MMAX2StyleSheetCache()
+    {
+
+    }
+
+    /** Returns the compiled style sheet for file styleSheetFileName, compiling it only if it is not in the cache or if the file
+        has been modified since it was compiled. */
+    public static final Templates getTemplates(String styleSheetFileName) throws TransformerConfigurationException
+    {
+        File styleSheetFile = new File(styleSheetFileName);
+        String key = null;
+        try
+        {
+            key = styleSheetFile.getCanonicalPath();
+        }
+        catch (java.io.IOException ex)
+        {
+            key = styleSheetFile.getAbsolutePath();
+        }
+        long lastModified = styleSheetFile.lastModified();
+
+        synchronized (cache)
+        {
+            CachedStyleSheet cached = cache.get(key);
+            if (cached != null && cached.lastModified == lastModified)
+            {
+                return cached.templates;
+            }
+            Templates templates = TransformerFactory.newInstance().newTemplates(new StreamSource(styleSheetFile.toURI().toString()));
+            cache.put(key, new CachedStyleSheet(templates, lastModified));
+            return templates;
+        }
+    }
+
+    /** Removes all compiled style sheets from the cache. */
+    public static final void clear()
+    {
+        synchronized (cache)
+        {
+            cache.clear();
+        }
+    }
+
+    private static final class CachedStyleSheet
+    {
+        private final Templates templates;
+        private final long lastModified;
+
+        private CachedStyleSheet(Templates _templates, long _lastModified)
+        {
+            templates = _templates;
+            lastModified = _lastModified;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.discourse;
+
+import java.io.Writer;
+import java.util.ArrayList;
+
+/** Append-only character sink accepting the output of the XSL transformation. Characters are stored in fixed-size
+    blocks, so that the current length is available in constant time and any range of characters written so far can be
+    retrieved without copying the entire transformation result (as StringWriter.toString() would).
+    Used by MMAX2Discourse.getCurrentDocumentPosition() and MMAX2Discourse.getNextDocumentChunk(). */
+public class MMAX2TransformationBuffer extends Writer
+{
+    /** Number of characters per block. */
+    private static final int BLOCK_SIZE = 16384;
+
+    /** List of blocks of size BLOCK_SIZE, all of which except the last are completely filled. */
+    private ArrayList<char[]> blocks = new ArrayList<char[]>();
+
+    /** Number of characters written to this buffer so far. */
+    private int length = 0;
+
+    public MMAX2TransformationBuffer()
+    {
+        super();
+    }
+
+    /** Returns the number of characters written to this buffer so far. This is constant time. */
+    public final int length()
+    {
+        return length;
+    }
+
+    /** Returns the block that the next character is to be written to, adding a new one if required. */
+    private final char[] getWritableBlock()
+    {
+        int blockIndex = length / BLOCK_SIZE;
+        if (blockIndex == blocks.size())
+        {
+            blocks.add(new char[BLOCK_SIZE]);
+        }
+        return blocks.get(blockIndex);
+    }
+
+    public final void write(int c)
+    {
+        char[] block = getWritableBlock();
+        block[length % BLOCK_SIZE] = (char) c;
+        length++;
+    }
+
+    public final void write(char[] cbuf, int off, int len)
+    {
+        while (len > 0)
+        {
+            char[] block = getWritableBlock();
+            int blockOffset = length % BLOCK_SIZE;
+            int toCopy = Math.min(len, BLOCK_SIZE - blockOffset);
+            System.arraycopy(cbuf, off, block, blockOffset, toCopy);
+            length+=toCopy;
+            off+=toCopy;
+            len-=toCopy;
+        }
+    }
+
+    public final void write(String str, int off, int len)
+    {
+        while (len > 0)
+        {
+            char[] block = getWritableBlock();
+            int blockOffset = length % BLOCK_SIZE;
+            int toCopy = Math.min(len, BLOCK_SIZE - blockOffset);
+            str.getChars(off, off+toCopy, block, blockOffset);
+            length+=toCopy;
+            off+=toCopy;
+            len-=toCopy;
+        }
+    }
+
+    /** Returns the characters from start (inclusive) to end (exclusive). Only the requested range is copied. */
+    public final String substring(int start, int end)
+    {
+        if (start < 0 || end > length || start > end)
+        {
+            throw new StringIndexOutOfBoundsException("Range "+start+" - "+end+" invalid for length "+length);
+        }
+        if (start == end)
+        {
+            return "";
+        }
+        char[] result = new char[end-start];
+        int filled = 0;
+        int pos = start;
+        while (pos < end)
+        {
+            char[] block = blocks.get(pos / BLOCK_SIZE);
+            int blockOffset = pos % BLOCK_SIZE;
+            int toCopy = Math.min(end-pos, BLOCK_SIZE - blockOffset);
+            System.arraycopy(block, blockOffset, result, filled, toCopy);
+            filled+=toCopy;
+            pos+=toCopy;
+        }
+        return new String(result);
+    }
+
+    /** Returns the characters from start (inclusive) up to the current end of this buffer. */
+    public final String substring(int start)
+    {
+        return substring(start, length);
+    }
+
+    public final String toString()
+    {
+        return substring(0, length);
+    }
+
+    /** No-op, since all characters are immediately available. */
+    public final void flush()
+    {
+
+    }
+
+    /** No-op, the content remains accessible after closing. */
+    public final void close()
+    {
+
+    }
+}
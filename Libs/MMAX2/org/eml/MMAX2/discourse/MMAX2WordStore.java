@@ -0,0 +1,877 @@
+/*
+ * Copyright 2021 Mark-Christoph Müller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. */
+
+package org.eml.MMAX2.discourse;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.sax.SAXSource;
+
+import org.apache.xerces.dom.DocumentImpl;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+/** Compact, read-only column store for base data elements, used instead of the word DOM when base data is loaded in
+    columnar mode (cf. DiscourseElementFileLoader.loadColumnar()). The file is read with StAX, and every element is stored
+    as one row: its element name, ID, text, and one dictionary-encoded column per attribute name. Repeated names, texts and 
+    attribute values are stored only once. The style sheet is applied to a SAX view of the store (cf. createSource()), and 
+    Element objects for single base data elements are only created on request (cf. createElement()). Files with content that
+    the store cannot represent are rejected by load(), so that they can be loaded as a DOM instead. */
+public class MMAX2WordStore
+{
+    /** Matches the public and system ID (in quotes) in a DOCTYPE declaration, as groups 1 and 2 or as group 3. */
+    private static final Pattern DOCTYPE_IDS = Pattern.compile("<!DOCTYPE\\s+\\S+\\s+(?:PUBLIC\\s+(\"[^\"]*\"|'[^']*')(?:\\s+(\"[^\"]*\"|'[^']*'))?|SYSTEM\\s+(\"[^\"]*\"|'[^']*'))");
+
+    /** Name of the root element (normally words). */
+    private String rootElementName = "words";
+    /** Names and values of the attributes of the root element, incl. default values from the DTD. */
+    private String[] rootAttributeNames = new String[0];
+    private String[] rootAttributeValues = new String[0];
+    /** The DOCTYPE declaration of the base data file as found in the file, or empty string. */
+    private String doctypeDeclaration = "";
+    /** True if the base data file has a DOCTYPE declaration, and its public and system ID (each null if not given). */
+    private boolean hasDoctype = false;
+    private String doctypePublicId = null;
+    private String doctypeSystemId = null;
+    private String encoding = null;
+
+    private int size = 0;
+    /** Element names of the rows (normally word). */
+    private String[] elementNames = new String[1024];
+    private String[] ids = new String[1024];
+    private String[] texts = new String[1024];
+    private HashMap<String, Integer> positionOfID = new HashMap<String, Integer>();
+
+    /** Names of all attributes other than id, in the order in which they were first encountered. */
+    private ArrayList<String> attributeNames = new ArrayList<String>();
+    /** Contains for each entry of attributeNames the codes of the attribute values for all rows. 0 means 'not set',
+        all other codes are 1-based indices into the dictionary of the same column. */
+    private ArrayList<int[]> attributeCodes = new ArrayList<int[]>();
+    /** Contains for each entry of attributeNames the list of distinct values. */
+    private ArrayList<ArrayList<String>> attributeDictionaries = new ArrayList<ArrayList<String>>();
+    /** Used during loading only, maps values to their codes for each column. */
+    private ArrayList<HashMap<String, Integer>> attributeCodesOfValues = new ArrayList<HashMap<String, Integer>>();
+    /** Used during loading only, to store each distinct text and element name only once. */
+    private HashMap<String, String> distinctTexts = new HashMap<String, String>();
+    private HashMap<String, String> distinctElementNames = new HashMap<String, String>();
+
+    /** Document used for creating detached Elements for single rows. */
+    private DocumentImpl elementFactory = null;
+
+    private MMAX2WordStore()
+    {
+
+    }
+
+    /** Reads the base data file fileName into a new MMAX2WordStore. The DTD is read, so that default attribute values are 
+        applied as by the DOM loader, but external entities are not resolved. Returns null (after printing the reason) if the
+        file contains anything that the store cannot represent, i.e. elements below the base data elements, text outside of 
+        them, namespaces, unresolved entity references, or base data elements without an id attribute. */
+    public static final MMAX2WordStore load(String fileName) throws IOException, XMLStreamException
+    {
+        MMAX2WordStore store = new MMAX2WordStore();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        InputStream in = new FileInputStream(fileName);
+        XMLStreamReader reader = null;
+        try
+        {
+            // The system ID is required for resolving a relative DTD reference
+            reader = factory.createXMLStreamReader(new File(fileName).toURI().toString(), in);
+            store.encoding = reader.getCharacterEncodingScheme();
+            int depth = 0;
+            StringBuilder text = new StringBuilder();
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.DTD)
+                {
+                    store.setDoctype(reader.getText());
+                }
+                else if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    depth++;
+                    if (usesNamespaces(reader))
+                    {
+                        return reject(fileName, "namespaces are used on element "+reader.getLocalName());
+                    }
+                    if (depth == 1)
+                    {
+                        store.rootElementName = reader.getLocalName();
+                        store.setRootAttributes(reader);
+                    }
+                    else if (depth == 2)
+                    {
+                        if (store.startRow(reader)==false)
+                        {
+                            return reject(fileName, "element "+reader.getLocalName()+" number "+(store.size+1)+" has no id attribute");
+                        }
+                        text.setLength(0);
+                    }
+                    else
+                    {
+                        return reject(fileName, "element "+reader.getLocalName()+" is nested in a base data element");
+                    }
+                }
+                else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)
+                {
+                    if (depth == 2)
+                    {
+                        text.append(reader.getText());
+                    }
+                    else if (reader.isWhiteSpace()==false)
+                    {
+                        return reject(fileName, "there is text outside of base data elements");
+                    }
+                }
+                else if (event == XMLStreamConstants.ENTITY_REFERENCE)
+                {
+                    return reject(fileName, "entity "+reader.getLocalName()+" cannot be resolved");
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    if (depth == 2)
+                    {
+                        store.endRow(text.toString());
+                    }
+                    depth--;
+                }
+            }
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                reader.close();
+            }
+            in.close();
+        }
+        store.trim();
+        return store;
+    }
+
+    /** Creates a new MMAX2WordStore with the content of the base data DOM dom, e.g. for writing it to a snapshot (cf. 
+        MMAX2DiscourseSnapshot). Returns null (after printing the reason) if dom contains anything that the store cannot 
+        represent, as in load(). */
+    public static final MMAX2WordStore fromDocument(DocumentImpl dom)
+    {
+        MMAX2WordStore store = new MMAX2WordStore();
+        Element root = dom.getDocumentElement();
+        if (root == null)
+        {
+            return rejectDocument("there is no root element");
+        }
+        if (usesNamespaces(root))
+        {
+            return rejectDocument("namespaces are used on element "+root.getNodeName());
+        }
+        store.rootElementName = root.getNodeName();
+        NamedNodeMap rootAttributes = root.getAttributes();
+        store.rootAttributeNames = new String[rootAttributes.getLength()];
+        store.rootAttributeValues = new String[rootAttributes.getLength()];
+        for (int a=0;a<rootAttributes.getLength();a++)
+        {
+            store.rootAttributeNames[a] = rootAttributes.item(a).getNodeName();
+            store.rootAttributeValues[a] = rootAttributes.item(a).getNodeValue();
+        }
+        DocumentType doctype = dom.getDoctype();
+        if (doctype != null)
+        {
+            store.hasDoctype = true;
+            store.doctypePublicId = doctype.getPublicId();
+            store.doctypeSystemId = doctype.getSystemId();
+        }
+        store.encoding = dom.getXmlEncoding();
+        
+        StringBuilder text = new StringBuilder();
+        for (Node node=root.getFirstChild();node != null;node=node.getNextSibling())
+        {
+            short type = node.getNodeType();
+            if (type == Node.ELEMENT_NODE)
+            {
+                Element element = (Element) node;
+                if (usesNamespaces(element))
+                {
+                    return rejectDocument("namespaces are used on element "+element.getNodeName());
+                }
+                store.beginRow(element.getNodeName());
+                NamedNodeMap attributes = element.getAttributes();
+                for (int a=0;a<attributes.getLength();a++)
+                {
+                    store.setAttribute(attributes.item(a).getNodeName(), attributes.item(a).getNodeValue());
+                }
+                if (store.ids[store.size] == null)
+                {
+                    return rejectDocument("element "+element.getNodeName()+" number "+(store.size+1)+" has no id attribute");
+                }
+                text.setLength(0);
+                for (Node child=element.getFirstChild();child != null;child=child.getNextSibling())
+                {
+                    if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE)
+                    {
+                        text.append(child.getNodeValue());
+                    }
+                    else if (child.getNodeType() == Node.ELEMENT_NODE || child.getNodeType() == Node.ENTITY_REFERENCE_NODE)
+                    {
+                        return rejectDocument(child.getNodeName()+" is nested in a base data element");
+                    }
+                }
+                store.endRow(text.toString());
+            }
+            else if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE)
+            {
+                if (node.getNodeValue().trim().length() != 0)
+                {
+                    return rejectDocument("there is text outside of base data elements");
+                }
+            }
+            else if (type == Node.ENTITY_REFERENCE_NODE)
+            {
+                return rejectDocument("entity "+node.getNodeName()+" is used outside of base data elements");
+            }
+        }
+        store.trim();
+        return store;
+    }
+
+    /** Prints why a base data DOM cannot be held in a column store, and returns null. */
+    private static final MMAX2WordStore rejectDocument(String reason)
+    {
+        System.err.println("Base data cannot be held in a column store ("+reason+").");
+        return null;
+    }
+
+    /** Returns true if element or one of its attributes has a namespace, or if it declares one. */
+    private static final boolean usesNamespaces(Element element)
+    {
+        if (element.getNodeName().indexOf(':') != -1 || hasNamespace(element.getNamespaceURI()))
+        {
+            return true;
+        }
+        NamedNodeMap attributes = element.getAttributes();
+        for (int a=0;a<attributes.getLength();a++)
+        {
+            String name = attributes.item(a).getNodeName();
+            if (name.equals("xmlns") || name.indexOf(':') != -1)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Prints why fileName cannot be loaded into a column store, and returns null. */
+    private static final MMAX2WordStore reject(String fileName, String reason)
+    {
+        System.err.println("Base data file "+fileName+" cannot be held in a column store ("+reason+"), loading it as a DOM instead.");
+        return null;
+    }
+
+    /** Returns true if the element at which reader currently is or one of its attributes has a namespace, or if it declares one. */
+    private static final boolean usesNamespaces(XMLStreamReader reader)
+    {
+        if (reader.getNamespaceCount() > 0 || hasNamespace(reader.getNamespaceURI()) || hasNamespace(reader.getPrefix()))
+        {
+            return true;
+        }
+        for (int a=0;a<reader.getAttributeCount();a++)
+        {
+            if (hasNamespace(reader.getAttributeNamespace(a)) || hasNamespace(reader.getAttributePrefix(a)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final boolean hasNamespace(String uriOrPrefix)
+    {
+        return uriOrPrefix != null && uriOrPrefix.equals("")==false;
+    }
+
+    /** Stores the DOCTYPE declaration declaration, and the public and system ID given in it. */
+    private final void setDoctype(String declaration)
+    {
+        doctypeDeclaration = declaration;
+        hasDoctype = true;
+        Matcher matcher = DOCTYPE_IDS.matcher(declaration);
+        if (matcher.lookingAt())
+        {
+            if (matcher.group(1) != null)
+            {
+                doctypePublicId = unquote(matcher.group(1));
+                doctypeSystemId = unquote(matcher.group(2));
+            }
+            else
+            {
+                doctypeSystemId = unquote(matcher.group(3));
+            }
+        }
+    }
+
+    /** Returns quoted without its enclosing quotes, or null if quoted is null. */
+    private static final String unquote(String quoted)
+    {
+        if (quoted == null)
+        {
+            return null;
+        }
+        return quoted.substring(1, quoted.length()-1);
+    }
+
+    /** Stores the attributes of the root element, at which reader currently is. */
+    private final void setRootAttributes(XMLStreamReader reader)
+    {
+        rootAttributeNames = new String[reader.getAttributeCount()];
+        rootAttributeValues = new String[reader.getAttributeCount()];
+        for (int a=0;a<rootAttributeNames.length;a++)
+        {
+            rootAttributeNames[a] = reader.getAttributeLocalName(a);
+            rootAttributeValues[a] = reader.getAttributeValue(a);
+        }
+    }
+
+    /** Adds a new row for the element at which reader currently is. Returns false if the element has no id attribute. */
+    private final boolean startRow(XMLStreamReader reader)
+    {
+        beginRow(reader.getLocalName());
+        for (int a=0;a<reader.getAttributeCount();a++)
+        {
+            setAttribute(reader.getAttributeLocalName(a), reader.getAttributeValue(a));
+        }
+        return ids[size] != null;
+    }
+
+    /** Adds a new row for an element with name elementName, without attributes so far. */
+    private final void beginRow(String elementName)
+    {
+        if (size == ids.length)
+        {
+            elementNames = Arrays.copyOf(elementNames, size*2);
+            ids = Arrays.copyOf(ids, size*2);
+            texts = Arrays.copyOf(texts, size*2);
+            for (int c=0;c<attributeCodes.size();c++)
+            {
+                attributeCodes.set(c, Arrays.copyOf(attributeCodes.get(c), size*2));
+            }
+        }
+        String distinctElementName = distinctElementNames.get(elementName);
+        if (distinctElementName == null)
+        {
+            distinctElementName = elementName;
+            distinctElementNames.put(elementName, elementName);
+        }
+        elementNames[size] = distinctElementName;
+        ids[size] = null;
+    }
+
+    /** Sets attribute name of the current row to value. */
+    private final void setAttribute(String name, String value)
+    {
+        if (name.equals("id"))
+        {
+            ids[size] = value;
+            positionOfID.put(value, size);
+        }
+        else
+        {
+            setAttributeCode(name, value);
+        }
+    }
+
+    private final void endRow(String text)
+    {
+        String distinctText = distinctTexts.get(text);
+        if (distinctText == null)
+        {
+            distinctText = text;
+            distinctTexts.put(text, text);
+        }
+        texts[size] = distinctText;
+        size++;
+    }
+
+    private final void setAttributeCode(String name, String value)
+    {
+        int column = attributeNames.indexOf(name);
+        if (column == -1)
+        {
+            column = attributeNames.size();
+            attributeNames.add(name);
+            attributeCodes.add(new int[ids.length]);
+            attributeDictionaries.add(new ArrayList<String>());
+            attributeCodesOfValues.add(new HashMap<String, Integer>());
+        }
+        Integer code = attributeCodesOfValues.get(column).get(value);
+        if (code == null)
+        {
+            attributeDictionaries.get(column).add(value);
+            code = attributeDictionaries.get(column).size();
+            attributeCodesOfValues.get(column).put(value, code);
+        }
+        attributeCodes.get(column)[size] = code.intValue();
+    }
+
+    /** Releases the additional capacity and the structures that are only required during loading. */
+    private final void trim()
+    {
+        elementNames = Arrays.copyOf(elementNames, size);
+        ids = Arrays.copyOf(ids, size);
+        texts = Arrays.copyOf(texts, size);
+        for (int c=0;c<attributeCodes.size();c++)
+        {
+            attributeCodes.set(c, Arrays.copyOf(attributeCodes.get(c), size));
+        }
+        attributeCodesOfValues = null;
+        distinctTexts = null;
+        distinctElementNames = null;
+    }
+
+    /** Returns the number of base data elements. */
+    public final int size()
+    {
+        return size;
+    }
+
+    public final String getID(int row)
+    {
+        return ids[row];
+    }
+
+    /** Returns all IDs in base data order. */
+    public final String[] getIDs()
+    {
+        return ids.clone();
+    }
+
+    public final String getText(int row)
+    {
+        return texts[row];
+    }
+
+    /** Returns the row of the element with ID id, or -1. */
+    public final int getRow(String id)
+    {
+        Integer row = positionOfID.get(id);
+        if (row == null)
+        {
+            return -1;
+        }
+        return row.intValue();
+    }
+
+    /** Returns the value of attribute name for the element in row, or null if it is not set. */
+    public final String getAttribute(int row, String name)
+    {
+        if (name.equals("id"))
+        {
+            return ids[row];
+        }
+        int column = attributeNames.indexOf(name);
+        if (column == -1)
+        {
+            return null;
+        }
+        int code = attributeCodes.get(column)[row];
+        if (code == 0)
+        {
+            return null;
+        }
+        return attributeDictionaries.get(column).get(code-1);
+    }
+
+    /** Returns a HashMap of all attributes (including id) of the element in row. */
+    public final HashMap<String, String> getAttributes(int row)
+    {
+        HashMap<String, String> result = new HashMap<String, String>();
+        result.put("id", ids[row]);
+        for (int c=0;c<attributeNames.size();c++)
+        {
+            int code = attributeCodes.get(c)[row];
+            if (code != 0)
+            {
+                result.put(attributeNames.get(c), attributeDictionaries.get(c).get(code-1));
+            }
+        }
+        return result;
+    }
+
+    public final String getRootElementName()
+    {
+        return rootElementName;
+    }
+
+    public final String getDoctypeDeclaration()
+    {
+        return doctypeDeclaration;
+    }
+
+    public final String getEncoding()
+    {
+        return encoding;
+    }
+
+    /** Returns a new DOM with the content of this store, as if it had been parsed from the original file (without comments
+        and processing instructions, which the store does not hold). Base data elements can be retrieved by ID. */
+    public final DocumentImpl createDocument()
+    {
+        DocumentImpl result = new DocumentImpl();
+        if (hasDoctype)
+        {
+            result.appendChild(result.createDocumentType(rootElementName, doctypePublicId, doctypeSystemId));
+        }
+        Element root = result.createElement(rootElementName);
+        for (int a=0;a<rootAttributeNames.length;a++)
+        {
+            root.setAttribute(rootAttributeNames[a], rootAttributeValues[a]);
+        }
+        result.appendChild(root);
+        for (int row=0;row<size;row++)
+        {
+            Element element = result.createElement(elementNames[row]);
+            element.setAttribute("id", ids[row]);
+            for (int c=0;c<attributeNames.size();c++)
+            {
+                int code = attributeCodes.get(c)[row];
+                if (code != 0)
+                {
+                    element.setAttribute(attributeNames.get(c), attributeDictionaries.get(c).get(code-1));
+                }
+            }
+            if (texts[row].length() != 0)
+            {
+                element.appendChild(result.createTextNode(texts[row]));
+            }
+            root.appendChild(element);
+            result.putIdentifier(ids[row], element);
+        }
+        result.setXmlEncoding(encoding);
+        result.setInputEncoding(encoding);
+        return result;
+    }
+
+    /** Writes the content of this store to out, for a snapshot of the discourse (cf. MMAX2DiscourseSnapshot). Element names, 
+        texts and attribute values are written once each, and rows refer to them by code. */
+    final void write(DataOutputStream out) throws IOException
+    {
+        out.writeUTF(rootElementName);
+        out.writeInt(rootAttributeNames.length);
+        for (int a=0;a<rootAttributeNames.length;a++)
+        {
+            out.writeUTF(rootAttributeNames[a]);
+            out.writeUTF(rootAttributeValues[a]);
+        }
+        out.writeUTF(doctypeDeclaration);
+        out.writeBoolean(hasDoctype);
+        MMAX2DiscourseSnapshot.writeString(out, doctypePublicId);
+        MMAX2DiscourseSnapshot.writeString(out, doctypeSystemId);
+        MMAX2DiscourseSnapshot.writeString(out, encoding);
+        
+        out.writeInt(size);
+        writeDistinct(out, elementNames);
+        for (int row=0;row<size;row++)
+        {
+            out.writeUTF(ids[row]);
+        }
+        writeDistinct(out, texts);
+        out.writeInt(attributeNames.size());
+        for (int c=0;c<attributeNames.size();c++)
+        {
+            out.writeUTF(attributeNames.get(c));
+            ArrayList<String> dictionary = attributeDictionaries.get(c);
+            out.writeInt(dictionary.size());
+            for (int v=0;v<dictionary.size();v++)
+            {
+                out.writeUTF(dictionary.get(v));
+            }
+            int[] codes = attributeCodes.get(c);
+            for (int row=0;row<size;row++)
+            {
+                out.writeInt(codes[row]);
+            }
+        }
+    }
+
+    /** Writes the distinct strings in values (of which size are used) to out, followed by the index of each value among them. */
+    private final void writeDistinct(DataOutputStream out, String[] values) throws IOException
+    {
+        HashMap<String, Integer> indexOfValue = new HashMap<String, Integer>();
+        ArrayList<String> distinctValues = new ArrayList<String>();
+        int[] indices = new int[size];
+        for (int row=0;row<size;row++)
+        {
+            Integer index = indexOfValue.get(values[row]);
+            if (index == null)
+            {
+                index = Integer.valueOf(distinctValues.size());
+                distinctValues.add(values[row]);
+                indexOfValue.put(values[row], index);
+            }
+            indices[row] = index.intValue();
+        }
+        out.writeInt(distinctValues.size());
+        for (int v=0;v<distinctValues.size();v++)
+        {
+            out.writeUTF(distinctValues.get(v));
+        }
+        for (int row=0;row<size;row++)
+        {
+            out.writeInt(indices[row]);
+        }
+    }
+
+    /** Reads a store written by write() from in. */
+    static final MMAX2WordStore read(DataInputStream in) throws IOException
+    {
+        MMAX2WordStore store = new MMAX2WordStore();
+        store.rootElementName = in.readUTF();
+        int rootAttributeCount = in.readInt();
+        store.rootAttributeNames = new String[rootAttributeCount];
+        store.rootAttributeValues = new String[rootAttributeCount];
+        for (int a=0;a<rootAttributeCount;a++)
+        {
+            store.rootAttributeNames[a] = in.readUTF();
+            store.rootAttributeValues[a] = in.readUTF();
+        }
+        store.doctypeDeclaration = in.readUTF();
+        store.hasDoctype = in.readBoolean();
+        store.doctypePublicId = MMAX2DiscourseSnapshot.readString(in);
+        store.doctypeSystemId = MMAX2DiscourseSnapshot.readString(in);
+        store.encoding = MMAX2DiscourseSnapshot.readString(in);
+        
+        int rows = in.readInt();
+        store.size = rows;
+        store.elementNames = readDistinct(in, rows);
+        store.ids = new String[rows];
+        store.positionOfID = new HashMap<String, Integer>(rows*2);
+        for (int row=0;row<rows;row++)
+        {
+            store.ids[row] = in.readUTF();
+            store.positionOfID.put(store.ids[row], row);
+        }
+        store.texts = readDistinct(in, rows);
+        int columns = in.readInt();
+        for (int c=0;c<columns;c++)
+        {
+            store.attributeNames.add(in.readUTF());
+            int dictionarySize = in.readInt();
+            ArrayList<String> dictionary = new ArrayList<String>(dictionarySize);
+            for (int v=0;v<dictionarySize;v++)
+            {
+                dictionary.add(in.readUTF());
+            }
+            store.attributeDictionaries.add(dictionary);
+            int[] codes = new int[rows];
+            for (int row=0;row<rows;row++)
+            {
+                codes[row] = in.readInt();
+            }
+            store.attributeCodes.add(codes);
+        }
+        store.attributeCodesOfValues = null;
+        store.distinctTexts = null;
+        store.distinctElementNames = null;
+        return store;
+    }
+
+    /** Reads rows values written by writeDistinct() from in. */
+    private static final String[] readDistinct(DataInputStream in, int rows) throws IOException
+    {
+        String[] distinctValues = new String[in.readInt()];
+        for (int v=0;v<distinctValues.length;v++)
+        {
+            distinctValues[v] = in.readUTF();
+        }
+        String[] result = new String[rows];
+        for (int row=0;row<rows;row++)
+        {
+            result[row] = distinctValues[in.readInt()];
+        }
+        return result;
+    }
+
+    /** Returns a new Element (not attached to any document tree) for the element with ID id, or null if there is none. */
+    public final synchronized Element createElement(String id)
+    {
+        int row = getRow(id);
+        if (row == -1)
+        {
+            return null;
+        }
+        if (elementFactory == null)
+        {
+            elementFactory = new DocumentImpl();
+        }
+        Element result = elementFactory.createElement(elementNames[row]);
+        result.setAttribute("id", ids[row]);
+        for (int c=0;c<attributeNames.size();c++)
+        {
+            int code = attributeCodes.get(c)[row];
+            if (code != 0)
+            {
+                result.setAttribute(attributeNames.get(c), attributeDictionaries.get(c).get(code-1));
+            }
+        }
+        result.appendChild(elementFactory.createTextNode(texts[row]));
+        return result;
+    }
+
+    /** Returns a Source that presents the content of this store to a Transformer as if it had been parsed from the original file. */
+    public final SAXSource createSource()
+    {
+        return new SAXSource(new WordStoreReader(), new InputSource());
+    }
+
+    /** XMLReader that produces SAX events directly from the columns of the store. */
+    private final class WordStoreReader implements XMLReader
+    {
+        private ContentHandler contentHandler = null;
+        private DTDHandler dtdHandler = null;
+        private EntityResolver entityResolver = null;
+        private ErrorHandler errorHandler = null;
+        private HashMap<String, Boolean> features = new HashMap<String, Boolean>();
+
+        public boolean getFeature(String name)
+        {
+            if (features.containsKey(name))
+            {
+                return features.get(name).booleanValue();
+            }
+            return name.equals("http://xml.org/sax/features/namespaces");
+        }
+
+        public void setFeature(String name, boolean value)
+        {
+            features.put(name, Boolean.valueOf(value));
+        }
+
+        public Object getProperty(String name)
+        {
+            return null;
+        }
+
+        public void setProperty(String name, Object value)
+        {
+
+        }
+
+        public void setEntityResolver(EntityResolver resolver)
+        {
+            entityResolver = resolver;
+        }
+
+        public EntityResolver getEntityResolver()
+        {
+            return entityResolver;
+        }
+
+        public void setDTDHandler(DTDHandler handler)
+        {
+            dtdHandler = handler;
+        }
+
+        public DTDHandler getDTDHandler()
+        {
+            return dtdHandler;
+        }
+
+        public void setContentHandler(ContentHandler handler)
+        {
+            contentHandler = handler;
+        }
+
+        public ContentHandler getContentHandler()
+        {
+            return contentHandler;
+        }
+
+        public void setErrorHandler(ErrorHandler handler)
+        {
+            errorHandler = handler;
+        }
+
+        public ErrorHandler getErrorHandler()
+        {
+            return errorHandler;
+        }
+
+        public void parse(String systemId) throws SAXException
+        {
+            parse(new InputSource(systemId));
+        }
+
+        public void parse(InputSource input) throws SAXException
+        {
+            if (contentHandler == null)
+            {
+                return;
+            }
+            AttributesImpl attributes = new AttributesImpl();
+            for (int a=0;a<rootAttributeNames.length;a++)
+            {
+                attributes.addAttribute("", rootAttributeNames[a], rootAttributeNames[a], "CDATA", rootAttributeValues[a]);
+            }
+            contentHandler.startDocument();
+            contentHandler.startElement("", rootElementName, rootElementName, attributes);
+            for (int row=0;row<size;row++)
+            {
+                attributes.clear();
+                attributes.addAttribute("", "id", "id", "ID", ids[row]);
+                for (int c=0;c<attributeNames.size();c++)
+                {
+                    int code = attributeCodes.get(c)[row];
+                    if (code != 0)
+                    {
+                        String name = attributeNames.get(c);
+                        attributes.addAttribute("", name, name, "CDATA", attributeDictionaries.get(c).get(code-1));
+                    }
+                }
+                contentHandler.startElement("", elementNames[row], elementNames[row], attributes);
+                char[] text = texts[row].toCharArray();
+                contentHandler.characters(text, 0, text.length);
+                contentHandler.endElement("", elementNames[row], elementNames[row]);
+            }
+            contentHandler.endElement("", rootElementName, rootElementName);
+            contentHandler.endDocument();
+        }
+    }
+}
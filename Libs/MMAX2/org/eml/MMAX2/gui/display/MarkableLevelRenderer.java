@@ -230,36 +230,33 @@ public class MarkableLevelRenderer
 
         int[] displayStartPositions = null;
         int[] displayEndPositions = null;
-        String[][] fragments = null;
         
         if (markable != null)
         {
             // Get each fragment and its resp. display start and end position
             displayStartPositions = markable.getDisplayStartPositions();
             displayEndPositions = markable.getDisplayEndPositions();
-            fragments = markable.getFragments(); // ok
         }
         // The current markable was deleted
         if (mode == MMAX2Constants.RENDER_REMOVED)
         {
-            String[] currentFrag = null;
+            String currentDE = null;
             doc.startChanges(markable);
-            // Get array of fragments
-            fragments = markable.getFragments();
             // Iterate over all fragments
-            for (int z=0;z<fragments.length;z++)
+            int fragmentCount = markable.getFragmentCount();
+            for (int z=0;z<fragmentCount;z++)
             {
-                // Get current fragment
-                currentFrag = fragments[z];
                 int discPos =0;
                 // Iterate over current fragment
-                for (int r=0;r<currentFrag.length;r++)
+                int fragmentSize = markable.getFragmentSize(z);
+                for (int r=0;r<fragmentSize;r++)
                 {                    
+                    currentDE = markable.getFragmentElementID(z, r);
                     // Get attributes to be displayed in this position.
                     // Since the markable has been removed already, it will not yield any attributes, 
                     // and thus will not show up any more.                     
-                    styleToUse=chart.getTopAttributesAtDiscourseElement(currentFrag[r]);
-                    discPos = level.getCurrentDiscourse().getDiscoursePositionFromDiscourseElementID(currentFrag[r]);
+                    styleToUse=chart.getTopAttributesAtDiscourseElement(currentDE);
+                    discPos = level.getCurrentDiscourse().getDiscoursePositionFromDiscourseElementID(currentDE);
                     doc.bulkApplyStyleToDiscourseElement(level.getCurrentDiscourse().getDisplayStartPositionFromDiscoursePosition(discPos),styleToUse,true);
                 }
             }
@@ -323,17 +320,16 @@ public class MarkableLevelRenderer
         else if (mode == MMAX2Constants.RERENDER_THIS)
         {
             // No mod for discont necessary
-            String[] currentFragment = null;
             String currentDE = "";
             int currentStart = 0;
-            for (int z=0;z<fragments.length;z++)
+            int fragmentCount = markable.getFragmentCount();
+            for (int z=0;z<fragmentCount;z++)
             {
-                // Get current fragment
-                currentFragment = fragments[z];
                 // Iterate over each element in current fragment
-                for (int p=0;p<currentFragment.length;p++)
+                int fragmentSize = markable.getFragmentSize(z);
+                for (int p=0;p<fragmentSize;p++)
                 {
-                    currentDE = currentFragment[p]; //                    
+                    currentDE = markable.getFragmentElementID(z, p); //                    
                     // New: This will add current font size as default
                     styleToUse=chart.getTopAttributesAtDiscourseElement(currentDE);
                     